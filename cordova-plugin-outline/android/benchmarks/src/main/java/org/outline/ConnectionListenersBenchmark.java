@@ -0,0 +1,74 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.outline.vpn.ConnectionHandle;
+
+/**
+ * Listener lookups of |OutlinePlugin.sendPluginResult|, with a listener registered for every
+ * connection and action. Status changes look up perennial listeners; promise results remove
+ * single-use listeners, which are registered again here to keep the map's size constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectionListenersBenchmark {
+  private static final int NUM_CONNECTIONS = 8;
+  // Values of the connection instance actions in |OutlinePlugin.Action|.
+  private static final String[] ACTIONS = {
+      "start", "startFastest", "stop", "onStatusChange", "isRunning", "isReachable", "getStats"};
+
+  private final ConnectionListeners<Object> listeners = new ConnectionListeners<>();
+  private final ConnectionHandle[] connections = new ConnectionHandle[NUM_CONNECTIONS];
+  private final Object listener = new Object();
+  private int next = 0;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < NUM_CONNECTIONS; ++i) {
+      connections[i] = ConnectionHandle.of(UUID.randomUUID().toString());
+      for (String action : ACTIONS) {
+        listeners.put(connections[i], action, listener);
+      }
+    }
+  }
+
+  @Benchmark
+  public Object getPerennialListener() {
+    return listeners.get(nextConnection(), "onStatusChange");
+  }
+
+  @Benchmark
+  public Object removeSingleUseListener() {
+    final ConnectionHandle connection = nextConnection();
+    final Object removed = listeners.remove(connection, "start");
+    listeners.put(connection, "start", listener);
+    return removed;
+  }
+
+  private ConnectionHandle nextConnection() {
+    next = (next + 1) & (NUM_CONNECTIONS - 1);
+    return connections[next];
+  }
+}
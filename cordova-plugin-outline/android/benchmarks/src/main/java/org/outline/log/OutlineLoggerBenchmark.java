@@ -0,0 +1,75 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Formatting of log messages on their way to logcat, which is stubbed out. Messages at INFO level
+ * and above are also queued as breadcrumbs, since error reporting is not initialized.
+ * |publishFineRecordAsync| measures the cost to the logging thread of handing a record to the
+ * background thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OutlineLoggerBenchmark {
+  private static final String TAG = "VpnTunnelService";
+  private static final String MESSAGE = "Starting VPN connection 0f2e4a7c";
+
+  private final AsyncLogHandler asyncHandler = new AsyncLogHandler(new Handler() {
+    @Override
+    public void publish(LogRecord record) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void flush() {}
+  });
+  private final LogRecord record = new LogRecord(Level.FINE, MESSAGE);
+
+  @TearDown
+  public void tearDown() {
+    asyncHandler.close();
+  }
+
+  @Benchmark
+  public void publishFineRecordAsync() {
+    asyncHandler.publish(record);
+  }
+
+  @Benchmark
+  public long recordFineMessage() {
+    OutlineLogger.recordMessage(Level.FINE, TAG, MESSAGE, null);
+    return android.util.Log.discardedChars;
+  }
+
+  @Benchmark
+  public long recordInfoMessage() {
+    OutlineLogger.recordMessage(Level.INFO, TAG, MESSAGE, null);
+    return android.util.Log.discardedChars;
+  }
+}
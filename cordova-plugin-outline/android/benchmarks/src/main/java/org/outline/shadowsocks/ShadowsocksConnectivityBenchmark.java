@@ -0,0 +1,46 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/* Synthesis of the SOCKS requests sent by the connectivity checks. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ShadowsocksConnectivityBenchmark {
+  @State(Scope.Thread)
+  public static class Domain {
+    @Param({"eff.org", "wikipedia.org"})
+    public String name;
+  }
+
+  @Benchmark
+  public byte[] socksTcpRequest(Domain domain) {
+    return ShadowsocksConnectivity.getSocksTcpRequest(domain.name);
+  }
+
+  @Benchmark
+  public byte[] socksUdpRequest() throws IOException {
+    return ShadowsocksConnectivity.getSocksUdpRequest();
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.NodeList;
+
+/**
+ * Computation of the routes that cover the address space except for the reserved excluded
+ * subnets. |getIpv4Routes| measures the cached path taken each time the VPN is established.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RouteSetBenchmark {
+  private List<Subnet> exclusions;
+  private byte[][] ipv4Addresses;
+  private int[] ipv4Prefixes;
+  private byte[][] ipv6Addresses;
+  private int[] ipv6Prefixes;
+
+  @Setup
+  public void setUp() throws Exception {
+    exclusions = new ArrayList<>();
+    try (InputStream input = getClass().getResourceAsStream("/bypass_subnets.xml")) {
+      final NodeList items =
+          DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input)
+              .getElementsByTagName("item");
+      for (int i = 0; i < items.getLength(); ++i) {
+        exclusions.add(Subnet.parse(items.item(i).getTextContent().trim()));
+      }
+    }
+    final List<Subnet> ipv4Exclusions = new ArrayList<>();
+    final List<Subnet> ipv6Exclusions = new ArrayList<>();
+    for (Subnet exclusion : exclusions) {
+      (exclusion.address.indexOf(':') < 0 ? ipv4Exclusions : ipv6Exclusions).add(exclusion);
+    }
+    ipv4Addresses = toAddresses(ipv4Exclusions);
+    ipv4Prefixes = toPrefixes(ipv4Exclusions);
+    ipv6Addresses = toAddresses(ipv6Exclusions);
+    ipv6Prefixes = toPrefixes(ipv6Exclusions);
+  }
+
+  @Benchmark
+  public byte[] computeIpv4Cover() {
+    return RouteSet.computeCover(ipv4Addresses, ipv4Prefixes, RouteSet.IPV4_ADDRESS_SIZE);
+  }
+
+  @Benchmark
+  public byte[] computeIpv6Cover() {
+    return RouteSet.computeCover(ipv6Addresses, ipv6Prefixes, RouteSet.IPV6_ADDRESS_SIZE);
+  }
+
+  @Benchmark
+  public List<Subnet> getIpv4Routes() {
+    return RouteSet.getRoutes(exclusions, false);
+  }
+
+  private static byte[][] toAddresses(final List<Subnet> subnets) throws Exception {
+    final byte[][] addresses = new byte[subnets.size()][];
+    for (int i = 0; i < addresses.length; ++i) {
+      addresses[i] = InetAddress.getByName(subnets.get(i).address).getAddress();
+    }
+    return addresses;
+  }
+
+  private static int[] toPrefixes(final List<Subnet> subnets) {
+    final int[] prefixes = new int[subnets.size()];
+    for (int i = 0; i < prefixes.length; ++i) {
+      prefixes[i] = subnets.get(i).prefix;
+    }
+    return prefixes;
+  }
+}
@@ -0,0 +1,60 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.NodeList;
+
+/* Parsing of the reserved excluded subnets, as done each time the VPN is established. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SubnetBenchmark {
+  private String[] subnetStrings;
+
+  // Reads the |reserved_excluded_subnets| string array from the plugin's resources.
+  @Setup
+  public void setUp() throws Exception {
+    try (InputStream input = getClass().getResourceAsStream("/bypass_subnets.xml")) {
+      final NodeList items =
+          DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input)
+              .getElementsByTagName("item");
+      subnetStrings = new String[items.getLength()];
+      for (int i = 0; i < items.getLength(); ++i) {
+        subnetStrings[i] = items.item(i).getTextContent().trim();
+      }
+    }
+  }
+
+  @Benchmark
+  public List<Subnet> parseExcludedSubnets() {
+    final List<Subnet> subnets = new ArrayList<>(subnetStrings.length);
+    for (final String subnetString : subnetStrings) {
+      subnets.add(Subnet.parse(subnetString));
+    }
+    return subnets;
+  }
+}
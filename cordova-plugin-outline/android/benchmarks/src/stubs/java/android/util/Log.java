@@ -0,0 +1,58 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * JVM stand-in for the Android log. Discards messages, so benchmarks measure the plugin code
+ * rather than logcat; their lengths are accumulated so the messages cannot be optimized away.
+ */
+public final class Log {
+  public static final int VERBOSE = 2;
+  public static final int DEBUG = 3;
+  public static final int INFO = 4;
+  public static final int WARN = 5;
+  public static final int ERROR = 6;
+  public static final int ASSERT = 7;
+
+  public static long discardedChars = 0;
+
+  private Log() {}
+
+  public static int println(int priority, String tag, String msg) {
+    final int length = tag.length() + msg.length();
+    discardedChars += length;
+    return length;
+  }
+
+  public static int e(String tag, String msg) {
+    return println(ERROR, tag, msg);
+  }
+
+  public static int e(String tag, String msg, Throwable tr) {
+    return println(ERROR, tag, msg + '\n' + getStackTraceString(tr));
+  }
+
+  public static String getStackTraceString(Throwable tr) {
+    if (tr == null) {
+      return "";
+    }
+    final StringWriter writer = new StringWriter();
+    tr.printStackTrace(new PrintWriter(writer));
+    return writer.toString();
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.NodeList;
+
+public class RouteSetTest {
+  @Test
+  public void ipv4CoverMatchesPreviousRoutes() throws Exception {
+    final List<String> routes = new ArrayList<>();
+    for (Subnet route : RouteSet.getRoutes(loadSubnets("/bypass_subnets.xml"), false)) {
+      routes.add(route.address + "/" + route.prefix);
+    }
+    final List<String> previousRoutes = new ArrayList<>();
+    for (Subnet route : loadSubnets("/previous_bypass_subnets.xml")) {
+      previousRoutes.add(route.address + "/" + route.prefix);
+    }
+    assertEquals(148, previousRoutes.size());
+    assertEquals(previousRoutes, routes);
+  }
+
+  @Test
+  public void ipv6HostExclusion() throws Exception {
+    final byte[] excluded = InetAddress.getByName("::1").getAddress();
+    final List<Subnet> routes =
+        RouteSet.getRoutes(Collections.singletonList(new Subnet("::1", 128)), true);
+    // The complement of a single address has one route per prefix length.
+    assertEquals(128, routes.size());
+    boolean hasHostRoute = false;
+    for (Subnet route : routes) {
+      assertTrue(route.prefix >= 1 && route.prefix <= 128);
+      assertFalse(contains(route, excluded));
+      hasHostRoute |= route.prefix == 128;
+    }
+    assertTrue(hasHostRoute);
+  }
+
+  @Test
+  public void ignoresExclusionsOfOtherFamily() {
+    final List<Subnet> routes =
+        RouteSet.getRoutes(Collections.singletonList(new Subnet("10.0.0.1", 32)), true);
+    assertEquals(1, routes.size());
+    assertEquals(0, routes.get(0).prefix);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsHostNames() {
+    RouteSet.getRoutes(Collections.singletonList(new Subnet("example.com", 32)), false);
+  }
+
+  private static List<Subnet> loadSubnets(final String resource) throws Exception {
+    final List<Subnet> subnets = new ArrayList<>();
+    try (InputStream input = RouteSetTest.class.getResourceAsStream(resource)) {
+      final NodeList items =
+          DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input)
+              .getElementsByTagName("item");
+      for (int i = 0; i < items.getLength(); ++i) {
+        subnets.add(Subnet.parse(items.item(i).getTextContent().trim()));
+      }
+    }
+    return subnets;
+  }
+
+  // Returns whether |address| is in |subnet|.
+  private static boolean contains(final Subnet subnet, final byte[] address) throws Exception {
+    final byte[] base = InetAddress.getByName(subnet.address).getAddress();
+    for (int bit = 0; bit < subnet.prefix; ++bit) {
+      final int mask = 0x80 >> (bit % 8);
+      if ((base[bit / 8] & mask) != (address[bit / 8] & mask)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
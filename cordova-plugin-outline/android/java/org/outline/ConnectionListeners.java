@@ -0,0 +1,55 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.outline.vpn.ConnectionHandle;
+
+/**
+ * Listeners of connection instance actions, keyed by connection handle and action. There is at
+ * most one listener per connection and action. Handles are interned, so lookups hash by identity
+ * and do not allocate. Thread-safe.
+ */
+class ConnectionListeners<T> {
+  private final ConcurrentMap<ConnectionHandle, Map<String, T>> listeners =
+      new ConcurrentHashMap<>();
+
+  /* Sets the listener for |action| on |connection|, replacing any previous one. */
+  void put(final ConnectionHandle connection, final String action, T listener) {
+    Map<String, T> connectionListeners = listeners.get(connection);
+    if (connectionListeners == null) {
+      final Map<String, T> newListeners = new ConcurrentHashMap<>();
+      connectionListeners = listeners.putIfAbsent(connection, newListeners);
+      if (connectionListeners == null) {
+        connectionListeners = newListeners;
+      }
+    }
+    connectionListeners.put(action, listener);
+  }
+
+  /* Returns the listener for |action| on |connection|, or null if there is none. */
+  T get(final ConnectionHandle connection, final String action) {
+    final Map<String, T> connectionListeners = listeners.get(connection);
+    return connectionListeners == null ? null : connectionListeners.get(action);
+  }
+
+  /* Removes and returns the listener for |action| on |connection|, or null if there is none. */
+  T remove(final ConnectionHandle connection, final String action) {
+    final Map<String, T> connectionListeners = listeners.get(connection);
+    return connectionListeners == null ? null : connectionListeners.remove(action);
+  }
+}
@@ -15,16 +15,12 @@
 package org.outline;
 
 import android.content.ActivityNotFoundException;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.net.VpnService;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
-import android.util.Pair;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -41,6 +37,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.outline.log.OutlineLogger;
 import org.outline.shadowsocks.ShadowsocksConnectivity;
+import org.outline.vpn.ConnectionHandle;
+import org.outline.vpn.VpnTunnelListener;
 import org.outline.vpn.VpnTunnelService;
 
 public class OutlinePlugin extends CordovaPlugin {
@@ -49,10 +47,14 @@ public class OutlinePlugin extends CordovaPlugin {
   // Actions supported by this plugin.
   public enum Action {
     START("start"),
+    START_FASTEST("startFastest"),
     STOP("stop"),
     ON_STATUS_CHANGE("onStatusChange"),
     IS_RUNNING("isRunning"),
     IS_REACHABLE("isReachable"),
+    GET_STATS("getStats"),
+    GET_SPLIT_TUNNELING("getSplitTunneling"),
+    SET_SPLIT_TUNNELING("setSplitTunneling"),
     INIT_ERROR_REPORTING("initializeErrorReporting"),
     REPORT_EVENTS("reportEvents"),
     QUIT("quitApplication");
@@ -114,40 +116,43 @@ public class OutlinePlugin extends CordovaPlugin {
     }
   }
 
-  // Extra parameters for Intent broadcasting.
-  public enum IntentExtra {
-    CONNECTION_ID("connectionExtra"),
-    PAYLOAD("payloadExtra"),
-    ERROR_CODE("errorCodeExtra");
-
-    public final String value;
-    IntentExtra(final String value) {
-      this.value = value;
-    }
-  }
-
+  // Preference in config.xml that enables warming up the last connection when the app starts.
+  private static final String WARM_UP_PREFERENCE = "OutlineWarmUpLastConnection";
+  // Preference in config.xml that routes IPv6 traffic through the VPN.
+  private static final String IPV6_PREFERENCE = "OutlineIpv6";
   private static final int REQUEST_CODE_PREPARE_VPN = 100;
   private static final int RESULT_OK = -1; // Standard activity result: operation succeeded.
   private static final HashSet<String> CONNECTION_INSTANCE_ACTIONS =
-      new HashSet<String>(Arrays.asList(Action.START.value, Action.STOP.value,
-          Action.IS_RUNNING.value, Action.ON_STATUS_CHANGE.value, Action.IS_REACHABLE.value));
+      new HashSet<String>(Arrays.asList(Action.START.value, Action.START_FASTEST.value,
+          Action.STOP.value, Action.IS_RUNNING.value, Action.ON_STATUS_CHANGE.value,
+          Action.IS_REACHABLE.value, Action.GET_STATS.value));
 
   private VpnTunnelService vpnTunnelService = null;
+  private VpnTunnelService.LocalBinder vpnTunnelBinder = null;
   private String startRequestConnectionId = null;
   private JSONObject startRequestConfig = null;
-  private Map<Pair<String, String>, CallbackContext> listeners = new ConcurrentHashMap();
+  private final ConnectionListeners<CallbackContext> listeners = new ConnectionListeners<>();
+  // Server rankings of START_FASTEST requests, reported once the connection starts.
+  private Map<String, JSONArray> startRequestRankings = new ConcurrentHashMap<>();
 
   // Class to bind to VpnTunnelService.
   private ServiceConnection serviceConnection =
       new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName className, IBinder binder) {
-          vpnTunnelService = ((VpnTunnelService.LocalBinder) binder).getService();
+          vpnTunnelBinder = (VpnTunnelService.LocalBinder) binder;
+          vpnTunnelBinder.addListener(vpnTunnelListener);
+          vpnTunnelService = vpnTunnelBinder.getService();
+          vpnTunnelService.setIpv6Enabled(preferences.getBoolean(IPV6_PREFERENCE, false));
+          if (preferences.getBoolean(WARM_UP_PREFERENCE, false)) {
+            vpnTunnelService.warmUpLastConnection();
+          }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName className) {
           vpnTunnelService = null;
+          vpnTunnelBinder = null;
         }
       };
 
@@ -156,13 +161,6 @@ public class OutlinePlugin extends CordovaPlugin {
     OutlineLogger.initializeLogging();
 
     Context context = getBaseContext();
-    IntentFilter broadcastFilter = new IntentFilter();
-    broadcastFilter.addAction(Action.START.value);
-    broadcastFilter.addAction(Action.STOP.value);
-    broadcastFilter.addAction(Action.ON_STATUS_CHANGE.value);
-    LocalBroadcastManager.getInstance(context)
-        .registerReceiver(vpnTunnelBroadcastReceiver, broadcastFilter);
-
     context.bindService(
         new Intent(context, VpnTunnelService.class), serviceConnection, Context.BIND_AUTO_CREATE);
   }
@@ -170,7 +168,9 @@ public class OutlinePlugin extends CordovaPlugin {
   @Override
   public void onDestroy() {
     Context context = getBaseContext();
-    LocalBroadcastManager.getInstance(context).unregisterReceiver(vpnTunnelBroadcastReceiver);
+    if (vpnTunnelBinder != null) {
+      vpnTunnelBinder.removeListener(vpnTunnelListener);
+    }
     context.unbindService(serviceConnection);
   }
 
@@ -216,10 +216,14 @@ public class OutlinePlugin extends CordovaPlugin {
                   // Connection instance actions
                   if (Action.START.is(action)) {
                     // Set instance variables in case we need to start the VPN service from
-                    // onActivityResult
+                    // onActivityResult. A plain start reports no ranking.
+                    startRequestRankings.remove(connectionId);
                     startRequestConnectionId = connectionId;
                     startRequestConfig = args.getJSONObject(1);
                     prepareAndStartVpnConnection();
+                  } else if (Action.START_FASTEST.is(action)) {
+                    startFastestVpnConnection(
+                        connectionId, args.getJSONArray(1), args.optBoolean(2, false));
                   } else if (Action.STOP.is(action)) {
                     stopVpnConnection(connectionId);
                   } else if (Action.IS_REACHABLE.is(action)) {
@@ -232,8 +236,14 @@ public class OutlinePlugin extends CordovaPlugin {
                     PluginResult result =
                         new PluginResult(PluginResult.Status.OK, isConnectionActive(connectionId));
                     sendPluginResult(connectionId, action, result, false);
+                  } else if (Action.GET_STATS.is(action)) {
+                    getConnectionStats(connectionId);
 
                     // Static actions
+                  } else if (Action.GET_SPLIT_TUNNELING.is(action)) {
+                    getSplitTunneling(callback);
+                  } else if (Action.SET_SPLIT_TUNNELING.is(action)) {
+                    setSplitTunneling(args.getJSONObject(0), callback);
                   } else if (Action.INIT_ERROR_REPORTING.is(action)) {
                     final String apiKey = args.getString(0);
                     OutlineLogger.initializeErrorReporting(getBaseContext(), apiKey);
@@ -289,6 +299,7 @@ public class OutlinePlugin extends CordovaPlugin {
     }
     if (result != RESULT_OK) {
       LOG.severe("Failed to prepare VPN.");
+      startRequestRankings.remove(startRequestConnectionId);
       PluginResult pluginResult =
           new PluginResult(PluginResult.Status.ERROR, ErrorCode.VPN_PERMISSION_NOT_GRANTED.value);
       sendPluginResult(startRequestConnectionId, Action.START.value, pluginResult, false);
@@ -304,12 +315,51 @@ public class OutlinePlugin extends CordovaPlugin {
   private void startVpnConnection() {
     LOG.info("Starting VPN connection");
     if (vpnTunnelService == null) {
+      startRequestRankings.remove(startRequestConnectionId);
       onVpnTunnelServiceNotBound(Action.START, startRequestConnectionId);
       return;
     }
     vpnTunnelService.startConnection(startRequestConnectionId, startRequestConfig);
   }
 
+  // Ranks the servers in |configs| and starts a VPN connection to the best one, if healthy. The
+  // ranking is reported to the START_FASTEST listener once the connection starts, and discarded
+  // if the start fails before reaching the service (e.g. VPN permission is denied).
+  private void startFastestVpnConnection(
+      final String connectionId, final JSONArray configs, boolean waitForAll)
+      throws JSONException {
+    LOG.info("Starting VPN connection to the fastest server");
+    if (vpnTunnelService == null) {
+      onVpnTunnelServiceNotBound(Action.START_FASTEST, connectionId);
+      return;
+    }
+    final JSONArray ranking = vpnTunnelService.rankServers(configs, waitForAll);
+    final JSONObject best = ranking.getJSONObject(0);
+    final int errorCode = best.getInt("errorCode");
+    if (errorCode != ErrorCode.NO_ERROR.value) {
+      LOG.warning(String.format(Locale.ROOT, "No healthy server: %s", ranking));
+      PluginResult result = new PluginResult(PluginResult.Status.ERROR, errorCode);
+      sendPluginResult(connectionId, Action.START_FASTEST.value, result, false);
+      return;
+    }
+    // Start as a regular connection, resolving the START_FASTEST promise with the start result.
+    final CallbackContext callback =
+        listeners.remove(ConnectionHandle.of(connectionId), Action.START_FASTEST.value);
+    if (callback != null) {
+      addListener(connectionId, Action.START.value, callback);
+    }
+    startRequestRankings.put(connectionId, ranking);
+    startRequestConnectionId = connectionId;
+    startRequestConfig = configs.getJSONObject(best.getInt("index"));
+    try {
+      prepareAndStartVpnConnection();
+    } catch (RuntimeException e) {
+      // The service will not report this start; drop the ranking before reporting the error.
+      startRequestRankings.remove(connectionId);
+      throw e;
+    }
+  }
+
   private void stopVpnConnection(final String connectionId) {
     LOG.info("Stopping VPN connection.");
     if (vpnTunnelService == null) {
@@ -328,6 +378,38 @@ public class OutlinePlugin extends CordovaPlugin {
     return vpnTunnelService.isConnectionActive(connectionId);
   }
 
+  // Sends the traffic counters of the connection to the GET_STATS listener.
+  private void getConnectionStats(final String connectionId) throws JSONException {
+    if (vpnTunnelService == null) {
+      onVpnTunnelServiceNotBound(Action.GET_STATS, connectionId);
+      return;
+    }
+    PluginResult result = new PluginResult(
+        PluginResult.Status.OK, vpnTunnelService.getConnectionStats(connectionId));
+    sendPluginResult(connectionId, Action.GET_STATS.value, result, false);
+  }
+
+  private void getSplitTunneling(final CallbackContext callback) throws JSONException {
+    if (vpnTunnelService == null) {
+      LOG.severe("VPN service not bound.");
+      callback.error(ErrorCode.UNEXPECTED.value);
+      return;
+    }
+    callback.success(vpnTunnelService.getSplitTunneling());
+  }
+
+  // Sets the applications that use the VPN; see |VpnTunnelService.setSplitTunneling|.
+  private void setSplitTunneling(final JSONObject settings, final CallbackContext callback)
+      throws JSONException {
+    if (vpnTunnelService == null) {
+      LOG.severe("VPN service not bound.");
+      callback.error(ErrorCode.UNEXPECTED.value);
+      return;
+    }
+    vpnTunnelService.setSplitTunneling(settings);
+    callback.success();
+  }
+
   // Helpers
 
   private Context getBaseContext() {
@@ -337,8 +419,7 @@ public class OutlinePlugin extends CordovaPlugin {
   // Adds a |callbackContext| to the |listeners| map, keying by |connectionId| and |action|.
   // We allow a single callback per connection instance and action.
   private void addListener(String connectionId, String action, CallbackContext callbackContext) {
-    final Pair<String, String> key = new Pair(connectionId, action);
-    listeners.put(key, callbackContext);
+    listeners.put(ConnectionHandle.of(connectionId), action, callbackContext);
   }
 
   // Returns whether |action| is a method of a JS Connection instance.
@@ -353,45 +434,38 @@ public class OutlinePlugin extends CordovaPlugin {
     sendPluginResult(connectionId, action.value, result, false);
   }
 
-  // Broadcasts
-
-  private VpnTunnelBroadcastReceiver vpnTunnelBroadcastReceiver =
-      new VpnTunnelBroadcastReceiver(OutlinePlugin.this);
+  // Connection events
 
-  private class VpnTunnelBroadcastReceiver extends BroadcastReceiver {
-    private OutlinePlugin outlinePlugin;
+  // Receives the service's events on its event loop, and resolves the listeners of their
+  // connection.
+  private final VpnTunnelListener vpnTunnelListener = new VpnTunnelListener() {
+    @Override
+    public void onStart(ConnectionHandle connection, int errorCode) {
+      final JSONArray ranking = startRequestRankings.remove(connection.id);
+      if (ranking != null && errorCode == ErrorCode.NO_ERROR.value) {
+        sendPluginResult(connection, Action.START.value,
+            new PluginResult(PluginResult.Status.OK, ranking), false);
+        return;
+      }
+      sendResult(connection, Action.START, errorCode);
+    }
 
-    public VpnTunnelBroadcastReceiver(OutlinePlugin outlinePlugin) {
-      this.outlinePlugin = outlinePlugin;
+    @Override
+    public void onStop(ConnectionHandle connection, int errorCode) {
+      sendResult(connection, Action.STOP, errorCode);
     }
 
     @Override
-    public void onReceive(Context context, Intent intent) {
-      final String action = intent.getAction();
-      String connectionId = intent.getStringExtra(IntentExtra.CONNECTION_ID.value);
-      int errorCode = intent.getIntExtra(IntentExtra.ERROR_CODE.value, ErrorCode.UNEXPECTED.value);
-      LOG.fine(String.format(
-          Locale.ROOT, "Service broadcast: %s, %s, %d", action, connectionId, errorCode));
-
-      PluginResult result;
-      boolean keepCallback = false;
-      if (errorCode == ErrorCode.NO_ERROR.value) {
-        if (Action.ON_STATUS_CHANGE.is(action)) {
-          int status =
-              intent.getIntExtra(IntentExtra.PAYLOAD.value, ConnectionStatus.INVALID.value);
-          if (status == ConnectionStatus.INVALID.value) {
-            LOG.warning("Failed to retrieve connection status.");
-            return;
-          }
-          result = new PluginResult(PluginResult.Status.OK, status);
-          keepCallback = true;
-        } else {
-          result = new PluginResult(PluginResult.Status.OK);
-        }
-      } else {
-        result = new PluginResult(PluginResult.Status.ERROR, errorCode);
-      }
-      outlinePlugin.sendPluginResult(connectionId, action, result, keepCallback);
+    public void onStatusChange(ConnectionHandle connection, int status) {
+      sendPluginResult(connection, Action.ON_STATUS_CHANGE.value,
+          new PluginResult(PluginResult.Status.OK, status), true);
+    }
+
+    private void sendResult(ConnectionHandle connection, Action action, int errorCode) {
+      final PluginResult result = errorCode == ErrorCode.NO_ERROR.value
+          ? new PluginResult(PluginResult.Status.OK)
+          : new PluginResult(PluginResult.Status.ERROR, errorCode);
+      sendPluginResult(connection, action.value, result, false);
     }
   };
 
@@ -405,20 +479,26 @@ public class OutlinePlugin extends CordovaPlugin {
           "failed to retrieve listener for connection ID %s, action %s", connectionId, action));
       return;
     }
-    final Pair<String, String> key = new Pair(connectionId, action);
-    if (!listeners.containsKey(key)) {
+    sendPluginResult(ConnectionHandle.of(connectionId), action, result, keepCallback);
+  }
+
+  private void sendPluginResult(
+      final ConnectionHandle connection,
+      final String action,
+      final PluginResult result,
+      boolean keepCallback) {
+    // Perennial listeners for events are kept; single-use listeners for promise commands are
+    // removed in the same lookup.
+    final CallbackContext callbackContext = keepCallback
+        ? listeners.get(connection, action)
+        : listeners.remove(connection, action);
+    if (callbackContext == null) {
       LOG.warning(String.format(Locale.ROOT,
-          "failed to retrieve listener for connection ID %s, action %s", connectionId, action));
+          "failed to retrieve listener for connection ID %s, action %s", connection, action));
       return;
     }
-
-    CallbackContext callbackContext = listeners.get(key);
     if (keepCallback) {
-      // Perennial listener for events.
       result.setKeepCallback(true);
-    } else {
-      // Single-use listener for a promise command.
-      listeners.remove(key);
     }
     callbackContext.sendPluginResult(result);
   }
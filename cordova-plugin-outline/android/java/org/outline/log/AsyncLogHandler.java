@@ -0,0 +1,177 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.log;
+
+import android.util.Log;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Log handler that publishes records to |delegate| on a background thread, so that logging does
+ * not block the caller. Records are handed over through a bounded ring buffer without locks; when
+ * it is full, records are dropped and their number is logged once the consumer catches up.
+ */
+class AsyncLogHandler extends Handler {
+  private static final String LOG_TAG = AsyncLogHandler.class.getName();
+  private static final int CAPACITY = 1024;  // Must be a power of two.
+  private static final int MASK = CAPACITY - 1;
+  // Bounds the consumer's sleep in case a wakeup is missed.
+  private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long FLUSH_TIMEOUT_MS = 1000;
+
+  private final Handler delegate;
+  // Records are stored at the producer index, modulo the capacity, and removed at the consumer
+  // index. Producers claim a slot by advancing the producer index, then store the record; a null
+  // slot below the producer index has been claimed but not stored yet.
+  private final AtomicReferenceArray<LogRecord> slots = new AtomicReferenceArray<>(CAPACITY);
+  private final AtomicLong producerIndex = new AtomicLong();
+  private final AtomicLong consumerIndex = new AtomicLong();
+  private final AtomicLong droppedRecords = new AtomicLong();
+  private final AtomicBoolean isConsumerParked = new AtomicBoolean();
+  private final Thread consumer;
+  private volatile boolean isClosed = false;
+
+  AsyncLogHandler(Handler delegate) {
+    this.delegate = delegate;
+    consumer = new Thread("outline-logger") {
+      @Override
+      public void run() {
+        consume();
+      }
+    };
+    consumer.setDaemon(true);
+    consumer.start();
+  }
+
+  /* Queues |record| if its level is loggable. Does not block, nor format the record. */
+  @Override
+  public void publish(LogRecord record) {
+    if (record == null || isClosed || !isLoggable(record)) {
+      return;
+    }
+    if (!offer(record)) {
+      droppedRecords.incrementAndGet();
+      return;
+    }
+    if (isConsumerParked.get() && isConsumerParked.compareAndSet(true, false)) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  /* Waits for the records queued so far to be published, for up to |FLUSH_TIMEOUT_MS|. */
+  @Override
+  public void flush() {
+    final long queuedIndex = producerIndex.get();
+    final long deadlineMs = System.currentTimeMillis() + FLUSH_TIMEOUT_MS;
+    while (consumerIndex.get() < queuedIndex && System.currentTimeMillis() < deadlineMs
+        && Thread.currentThread() != consumer && consumer.isAlive()) {
+      LockSupport.unpark(consumer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    delegate.flush();
+  }
+
+  /* Publishes the queued records and stops the consumer. Subsequent records are ignored. */
+  @Override
+  public void close() {
+    isClosed = true;
+    LockSupport.unpark(consumer);
+    try {
+      consumer.join(FLUSH_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    delegate.close();
+  }
+
+  // Returns false if the buffer is full.
+  private boolean offer(LogRecord record) {
+    while (true) {
+      final long index = producerIndex.get();
+      if (index - consumerIndex.get() >= CAPACITY) {
+        return false;
+      }
+      if (producerIndex.compareAndSet(index, index + 1)) {
+        slots.lazySet((int) index & MASK, record);
+        return true;
+      }
+    }
+  }
+
+  // Returns the oldest record, or null if there is none or it has not been stored yet. Only called
+  // by the consumer. The slot is cleared before the index advances, so producers never overwrite
+  // a record.
+  private LogRecord poll() {
+    final long index = consumerIndex.get();
+    final int slot = (int) index & MASK;
+    final LogRecord record = slots.get(slot);
+    if (record == null) {
+      return null;
+    }
+    slots.lazySet(slot, null);
+    consumerIndex.lazySet(index + 1);
+    return record;
+  }
+
+  private boolean isEmpty() {
+    return producerIndex.get() == consumerIndex.get();
+  }
+
+  private void consume() {
+    while (!isClosed || !isEmpty()) {
+      final LogRecord record = poll();
+      if (record != null) {
+        publishToDelegate(record);
+        continue;
+      }
+      if (!isEmpty()) {
+        Thread.yield();  // A producer is storing the next record.
+        continue;
+      }
+      reportDroppedRecords();
+      isConsumerParked.set(true);
+      // Re-check after announcing the park, since producers only wake up a parked consumer.
+      if (isEmpty() && !isClosed) {
+        LockSupport.parkNanos(this, IDLE_PARK_NS);
+      }
+      isConsumerParked.set(false);
+    }
+  }
+
+  private void reportDroppedRecords() {
+    final long dropped = droppedRecords.getAndSet(0);
+    if (dropped > 0) {
+      final LogRecord record = new LogRecord(
+          Level.WARNING, String.format(Locale.ROOT, "Dropped %d log records", dropped));
+      record.setLoggerName(LOG_TAG);
+      publishToDelegate(record);
+    }
+  }
+
+  private void publishToDelegate(LogRecord record) {
+    try {
+      delegate.publish(record);
+    } catch (RuntimeException e) {
+      Log.e(LOG_TAG, "Failed to publish log record", e);
+    }
+  }
+}
@@ -17,11 +17,13 @@ package org.outline.log;
 import android.content.Context;
 import android.util.Log;
 import java.util.Locale;
+import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
 import org.outline.log.SentryErrorReporter;
 
 /**
@@ -30,6 +32,8 @@ import org.outline.log.SentryErrorReporter;
  * Messages with log level INFO, and above, will also be recorded in the error
  * reporting framework. Exceptions are only logged locally to avoid sending
  * sensitive data to the error reporting framework as part of stack traces.
+ * Records are formatted and recorded on a background thread, so that logging
+ * does not block the caller.
  *
  * All classes in this package should use the Android logging class
  * (android.util.Log) in order to avoid circular dependencies.
@@ -40,12 +44,16 @@ public class OutlineLogger {
   // Disallow instantiation in favor of a purely static class.
   private OutlineLogger() {}
 
-  private static final Handler LOG_HANDLER = new Handler() {
+  // Formats the parameters of log records into their messages.
+  private static final Formatter MESSAGE_FORMATTER = new SimpleFormatter();
+
+  // Records messages synchronously; only called by |LOG_HANDLER|'s background thread.
+  private static final Handler RECORD_HANDLER = new Handler() {
     @Override
     public void publish(LogRecord record) {
       Level level = record.getLevel();
       String tag = loggerNameToTag(record.getLoggerName());
-      String message = record.getMessage();
+      String message = MESSAGE_FORMATTER.formatMessage(record);
       Throwable thrown = record.getThrown();
       recordMessage(level, tag, message, thrown);
     }
@@ -58,6 +66,8 @@ public class OutlineLogger {
     public void flush() {}
   };
 
+  private static final Handler LOG_HANDLER = new AsyncLogHandler(RECORD_HANDLER);
+
   /**
    * Initializes logging and the underlying error reporting framework.
    *
@@ -109,6 +119,8 @@ public class OutlineLogger {
    */
   public static void sendLogs(final String uuid) {
     try {
+      // Include the messages logged so far.
+      LOG_HANDLER.flush();
       SentryErrorReporter.send(uuid);
     } catch (Exception e) {
       Log.e(LOG_TAG, "Failed to send logs", e);
@@ -120,7 +132,7 @@ public class OutlineLogger {
    * prints the message to logcat. Exceptions are only logged locally and not recorded in the error
    * reporting framework.
    */
-  private static void recordMessage(
+  static void recordMessage(
       Level level, final String tag, final String msg, final Throwable thrown) {
     try {
       final String breadcrumb = String.format(Locale.ROOT, "%s:%s", tag, msg);
@@ -22,37 +22,84 @@ import io.sentry.event.Event;
 import io.sentry.event.EventBuilder;
 import io.sentry.Sentry;
 import java.lang.IllegalStateException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
 import java.util.UUID;
 
 /**
  * Wrapper class for the Sentry error reporting framework.
  */
 class SentryErrorReporter {
+  // Matches the number of breadcrumbs Sentry keeps by default.
+  private static final int MAX_QUEUED_BREADCRUMBS = 100;
+
   /**
-   * Encapsulates a Sentry message.
+   * Fixed-capacity ring of messages waiting to be recorded as breadcrumbs. Evicts the oldest
+   * messages when full, keeping count of them. Thread-safe.
    */
-  private static class SentryMessage {
-    private String msg;
-    private Breadcrumb.Level level;
-    SentryMessage(final String msg, Breadcrumb.Level level) {
-      this.msg = msg;
-      this.level = level;
+  private static class BreadcrumbRing {
+    private final String[] messages;
+    private final Breadcrumb.Level[] levels;
+    private final long[] timestampsMs;
+    private int head = 0;  // Index of the oldest message.
+    private int size = 0;
+    private long evicted = 0;
+
+    BreadcrumbRing(int capacity) {
+      messages = new String[capacity];
+      levels = new Breadcrumb.Level[capacity];
+      timestampsMs = new long[capacity];
     }
-    public Breadcrumb toBreadcrumb() {
-      return new BreadcrumbBuilder()
-          .setMessage(msg)
-          .setLevel(level)
-          .build();
+
+    synchronized void add(final String msg, Breadcrumb.Level level) {
+      final int index;
+      if (size == messages.length) {
+        index = head;
+        head = (head + 1) % messages.length;
+        ++evicted;
+      } else {
+        index = (head + size) % messages.length;
+        ++size;
+      }
+      messages[index] = msg;
+      levels[index] = level;
+      timestampsMs[index] = System.currentTimeMillis();
+    }
+
+    /* Removes all messages and returns them as breadcrumbs, oldest first. */
+    synchronized List<Breadcrumb> drain() {
+      final List<Breadcrumb> breadcrumbs = new ArrayList<>(size + 1);
+      if (evicted > 0) {
+        breadcrumbs.add(new BreadcrumbBuilder()
+                            .setMessage(String.format(Locale.ROOT,
+                                "%d earlier messages dropped", evicted))
+                            .setLevel(Breadcrumb.Level.WARNING)
+                            .setTimestamp(new Date(timestampsMs[head]))
+                            .build());
+      }
+      for (int i = 0; i < size; ++i) {
+        final int index = (head + i) % messages.length;
+        breadcrumbs.add(new BreadcrumbBuilder()
+                            .setMessage(messages[index])
+                            .setLevel(levels[index])
+                            .setTimestamp(new Date(timestampsMs[index]))
+                            .build());
+        messages[index] = null;
+      }
+      head = 0;
+      size = 0;
+      evicted = 0;
+      return breadcrumbs;
     }
   }
 
-  private static boolean isInitialized = false;
+  private static volatile boolean isInitialized = false;
 
-  // Queue of messages waiting to be sent once Sentry is initialized.
-  private static Queue<SentryMessage> breadcrumbsQueue = new LinkedList<SentryMessage>();
+  // Messages waiting to be recorded once Sentry is initialized.
+  private static final BreadcrumbRing queuedBreadcrumbs =
+      new BreadcrumbRing(MAX_QUEUED_BREADCRUMBS);
 
   // Disallow instantiation in favor of a purely static class.
   private SentryErrorReporter() {}
@@ -71,11 +118,7 @@ class SentryErrorReporter {
     }
     Sentry.init(dsn, new DataSensitiveAndroidSentryClientFactory(context));
     isInitialized = true;
-
-    // Record all queued breadcrumbs.
-    while (breadcrumbsQueue.size() > 0) {
-      Sentry.getContext().recordBreadcrumb(breadcrumbsQueue.remove().toBreadcrumb());
-    }
+    recordQueuedBreadcrumbs();
   }
 
   /**
@@ -89,6 +132,8 @@ class SentryErrorReporter {
     if (!isInitialized) {
       throw new IllegalStateException("Error reporting framework not initiated");
     }
+    // Record messages queued while initializing.
+    recordQueuedBreadcrumbs();
     final String uuid = eventId != null ? eventId : UUID.randomUUID().toString();
     // Associate this report with the event ID generated by Raven JS for cross-referencing. If the
     // ID is not present, use a random UUID to disambiguate the report message so it doesn't get
@@ -136,10 +181,17 @@ class SentryErrorReporter {
     recordMessage(msg, Breadcrumb.Level.INFO);
   }
 
+  // Records the queued messages in one batch.
+  private static void recordQueuedBreadcrumbs() {
+    for (Breadcrumb breadcrumb : queuedBreadcrumbs.drain()) {
+      Sentry.getContext().recordBreadcrumb(breadcrumb);
+    }
+  }
+
   // Record a log message to be sent with the next error report.
   private static void recordMessage(final String msg, Breadcrumb.Level level) {
     if (!isInitialized) {
-      breadcrumbsQueue.add(new SentryMessage(msg, level));
+      queuedBreadcrumbs.add(msg, level);
       return;
     }
     Sentry.getContext().recordBreadcrumb(
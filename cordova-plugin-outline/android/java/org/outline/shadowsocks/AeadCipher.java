@@ -0,0 +1,218 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Shadowsocks AEAD cipher, as specified in https://shadowsocks.org/en/spec/AEAD-Ciphers.html.
+ * Derives the master key from the access key password and the per-session subkeys from a salt.
+ */
+class AeadCipher {
+  static final int TAG_SIZE = 16;
+  static final int NONCE_SIZE = 12;
+  private static final byte[] SUBKEY_INFO = "ss-subkey".getBytes(Charset.forName("US-ASCII"));
+
+  // AEAD ciphers supported in-process. Keep in sync with the ciphers supported by ss-local.
+  enum Method {
+    // Android (Conscrypt, API 28+) and OpenJDK name ChaCha20-Poly1305 differently.
+    CHACHA20_IETF_POLY1305("chacha20-ietf-poly1305", 32, "ChaCha20",
+        "ChaCha20/Poly1305/NoPadding", "ChaCha20-Poly1305"),
+    AES_256_GCM("aes-256-gcm", 32, "AES", "AES/GCM/NoPadding"),
+    AES_192_GCM("aes-192-gcm", 24, "AES", "AES/GCM/NoPadding"),
+    AES_128_GCM("aes-128-gcm", 16, "AES", "AES/GCM/NoPadding");
+
+    final String name;
+    final int keySize;
+    final String keyAlgorithm;
+    final String[] transformations;
+
+    Method(String name, int keySize, String keyAlgorithm, String... transformations) {
+      this.name = name;
+      this.keySize = keySize;
+      this.keyAlgorithm = keyAlgorithm;
+      this.transformations = transformations;
+    }
+
+    // Returns the method named |name|, or null if it is not an AEAD method.
+    static Method fromName(final String name) {
+      for (Method method : values()) {
+        if (method.name.equals(name)) {
+          return method;
+        }
+      }
+      return null;
+    }
+
+    // Salt size equals the key size for all AEAD methods.
+    int saltSize() {
+      return keySize;
+    }
+
+    boolean isGcm() {
+      return "AES".equals(keyAlgorithm);
+    }
+  }
+
+  private final Method method;
+  private final byte[] masterKey;
+
+  private AeadCipher(Method method, byte[] masterKey) {
+    this.method = method;
+    this.masterKey = masterKey;
+  }
+
+  /**
+   * Creates a cipher for |methodName|, deriving the master key from |password|.
+   *
+   * @throws GeneralSecurityException if the method is not an AEAD method or is not supported by
+   *     the platform's security providers.
+   */
+  static AeadCipher create(final String methodName, final String password)
+      throws GeneralSecurityException {
+    final Method method = Method.fromName(methodName);
+    if (method == null) {
+      throw new GeneralSecurityException("Unsupported cipher: " + methodName);
+    }
+    getCipherInstance(method);  // Throws if unavailable.
+    return new AeadCipher(method, deriveMasterKey(password, method.keySize));
+  }
+
+  // Returns whether |methodName| can be handled in-process on this device.
+  static boolean isSupported(final String methodName) {
+    final Method method = Method.fromName(methodName);
+    if (method == null) {
+      return false;
+    }
+    try {
+      getCipherInstance(method);
+      return true;
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  int saltSize() {
+    return method.saltSize();
+  }
+
+  /* Returns a new session keyed by |salt|. The session's nonce starts at zero. */
+  Session newSession(final byte[] salt) throws GeneralSecurityException {
+    return new Session(hkdfSha1(masterKey, salt, SUBKEY_INFO, method.keySize));
+  }
+
+  /**
+   * Encrypts or decrypts a sequence of AEAD chunks with a single subkey and an incrementing nonce.
+   * Not thread-safe.
+   */
+  class Session {
+    private final SecretKeySpec subkey;
+    private final Cipher cipher;
+    private final byte[] nonce = new byte[NONCE_SIZE];
+
+    private Session(byte[] subkey) throws GeneralSecurityException {
+      this.subkey = new SecretKeySpec(subkey, method.keyAlgorithm);
+      this.cipher = getCipherInstance(method);
+    }
+
+    /* Encrypts the remaining bytes of |plaintext| into |out|, appending the tag. */
+    void seal(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+      cipher.init(Cipher.ENCRYPT_MODE, subkey, nextNonce());
+      cipher.doFinal(plaintext, out);
+    }
+
+    /* Decrypts |length| bytes of ciphertext, including the tag, from |in| into |out|. */
+    void open(ByteBuffer in, int length, ByteBuffer out) throws GeneralSecurityException {
+      final int limit = in.limit();
+      in.limit(in.position() + length);
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, subkey, nextNonce());
+        cipher.doFinal(in, out);
+      } finally {
+        in.limit(limit);
+      }
+    }
+
+    // Returns the parameters for the current nonce and increments it as a little-endian integer.
+    private AlgorithmParameterSpec nextNonce() {
+      final AlgorithmParameterSpec spec = method.isGcm()
+          ? new GCMParameterSpec(TAG_SIZE * 8, nonce)
+          : new IvParameterSpec(nonce);
+      for (int i = 0; i < nonce.length; ++i) {
+        if (++nonce[i] != 0) {
+          break;
+        }
+      }
+      return spec;
+    }
+  }
+
+  // Returns a cipher for the first of |method|'s transformations supported by the platform.
+  private static Cipher getCipherInstance(Method method) throws GeneralSecurityException {
+    GeneralSecurityException lastException = null;
+    for (String transformation : method.transformations) {
+      try {
+        return Cipher.getInstance(transformation);
+      } catch (GeneralSecurityException e) {
+        lastException = e;
+      }
+    }
+    throw lastException;
+  }
+
+  // OpenSSL's EVP_BytesToKey with MD5 and no salt, as used by Shadowsocks to derive the master key.
+  private static byte[] deriveMasterKey(final String password, int keySize)
+      throws GeneralSecurityException {
+    final byte[] passwordBytes = password.getBytes(Charset.forName("UTF-8"));
+    final MessageDigest md5 = MessageDigest.getInstance("MD5");
+    final byte[] key = new byte[keySize];
+    byte[] digest = new byte[0];
+    for (int offset = 0; offset < keySize; offset += digest.length) {
+      md5.update(digest);
+      md5.update(passwordBytes);
+      digest = md5.digest();
+      System.arraycopy(digest, 0, key, offset, Math.min(digest.length, keySize - offset));
+    }
+    return key;
+  }
+
+  // HKDF (RFC 5869) with SHA-1, used to derive session subkeys.
+  private static byte[] hkdfSha1(byte[] key, byte[] salt, byte[] info, int length)
+      throws GeneralSecurityException {
+    final Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec(salt, "HmacSHA1"));
+    final byte[] prk = mac.doFinal(key);
+    mac.init(new SecretKeySpec(prk, "HmacSHA1"));
+    final byte[] okm = new byte[length];
+    byte[] block = new byte[0];
+    for (int offset = 0, counter = 1; offset < length; offset += block.length, ++counter) {
+      mac.update(block);
+      mac.update(info);
+      mac.update((byte) counter);
+      block = mac.doFinal();
+      System.arraycopy(block, 0, okm, offset, Math.min(block.length, length - offset));
+    }
+    return okm;
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of fixed-size direct byte buffers. Direct buffers are expensive to allocate and are not
+ * promptly reclaimed by the garbage collector, so relays recycle them instead. Not thread-safe;
+ * each event loop owns its pool.
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final int maxPooledBuffers;
+  private final ArrayDeque<ByteBuffer> buffers;
+
+  /**
+   * @param bufferSize capacity of each buffer, in bytes.
+   * @param maxPooledBuffers maximum number of idle buffers retained by the pool.
+   */
+  public BufferPool(int bufferSize, int maxPooledBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxPooledBuffers = maxPooledBuffers;
+    this.buffers = new ArrayDeque<>(maxPooledBuffers);
+  }
+
+  /* Returns a cleared buffer, allocating it if the pool is empty. */
+  public ByteBuffer acquire() {
+    final ByteBuffer buffer = buffers.pollFirst();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /* Returns |buffer| to the pool. Buffers in excess of the pool size are left to the GC. */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize || buffers.size() >= maxPooledBuffers) {
+      return;
+    }
+    buffers.offerFirst(buffer);
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cancels an operation that spans threads, such as starting a connection and checking its server.
+ * Operations register the sockets they block on, which are closed as soon as the token is
+ * cancelled, so that blocked calls fail immediately instead of waiting for their timeouts. Once
+ * cancelled, a token stays cancelled. Thread-safe.
+ */
+public class CancellationToken {
+  // Guarded by |this|.
+  private boolean isCancelled = false;
+  private final Set<Closeable> resources = new HashSet<>();
+
+  /* Cancels the operation, closing its registered resources. Idempotent. */
+  public void cancel() {
+    final List<Closeable> resourcesToClose;
+    synchronized (this) {
+      if (isCancelled) {
+        return;
+      }
+      isCancelled = true;
+      resourcesToClose = new ArrayList<>(resources);
+      resources.clear();
+    }
+    for (Closeable resource : resourcesToClose) {
+      closeQuietly(resource);
+    }
+  }
+
+  public synchronized boolean isCancelled() {
+    return isCancelled;
+  }
+
+  /**
+   * Registers |resource| to be closed when the token is cancelled, until it is unregistered. If the
+   * token is already cancelled, closes |resource| immediately.
+   *
+   * @return whether the token was not cancelled.
+   */
+  public boolean register(final Closeable resource) {
+    synchronized (this) {
+      if (!isCancelled) {
+        resources.add(resource);
+        return true;
+      }
+    }
+    closeQuietly(resource);
+    return false;
+  }
+
+  public synchronized void unregister(final Closeable resource) {
+    resources.remove(resource);
+  }
+
+  private static void closeQuietly(final Closeable resource) {
+    try {
+      resource.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+}
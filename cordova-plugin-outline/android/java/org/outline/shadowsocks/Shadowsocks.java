@@ -15,36 +15,210 @@
 package org.outline.shadowsocks;
 
 import android.content.Context;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.outline.stats.TrafficStats;
 
-// Manages the life cycle and configuration of ss-local, the Shadowsocks client library.
+// Manages the life cycle and configuration of the local Shadowsocks client. AEAD ciphers are served
+// in-process by ShadowsocksLocalServer; other ciphers fall back to ss-local, the Shadowsocks client
+// library, running as a separate process.
 public class Shadowsocks {
+  // Receives the failure of the running local server.
+  public interface Listener {
+    // Called when the in-process server stops serving without being stopped, from its thread.
+    // Must not block.
+    void onFailure();
+  }
+
   private static final Logger LOG = Logger.getLogger(Shadowsocks.class.getName());
   private static final String LIB_SS_LOCAL_NAME = "libss-local.so";
-  private static final int PROCESS_START_WAIT_MS = 250;
+  private static final int PROCESS_START_TIMEOUT_MS = 2000;
+  // Maximum time to wait for a stopped ss-local to release the local port before starting anew.
+  private static final int PROCESS_EXIT_TIMEOUT_MS = 1000;
   public static final String LOCAL_SERVER_ADDRESS = "127.0.0.1";
   public static final String LOCAL_SERVER_PORT = "9999";
   public static final int SS_LOCAL_TIMEOUT_SECS = Integer.MAX_VALUE;
+  // Maximum time connections to the previous server are kept open after switching servers.
+  private static final int SWITCH_DRAIN_TIMEOUT_MS = 30000;
 
   private final String ssPath;
-  private Process ssProcess;
+  private final TrafficStats trafficStats;
+  private final Listener listener;
+  // Written while synchronized on the instance; volatile for the unsynchronized getters.
+  private volatile ShadowsocksProcess ssProcess;
+  // Process asked to terminate that may not have exited yet, and may still hold the local port.
+  private ShadowsocksProcess stoppingProcess;
+  private volatile ShadowsocksLocalServer localServer;
+  // Server for the configuration being switched to, listening on an ephemeral port to be checked.
+  private ShadowsocksLocalServer candidateServer;
+  private JSONObject candidateConfig;
 
-  public Shadowsocks(final Context context) {
+  // |trafficStats| is updated with the traffic relayed by the in-process server. |listener| is
+  // notified if the running server fails.
+  public Shadowsocks(
+      final Context context, final TrafficStats trafficStats, final Listener listener) {
+    this.trafficStats = trafficStats;
+    this.listener = listener;
     final String nativeLibraryDir =
         context.getApplicationContext().getApplicationInfo().nativeLibraryDir;
     this.ssPath = String.format(Locale.ROOT, "%s/%s", nativeLibraryDir, LIB_SS_LOCAL_NAME);
   }
 
-  // Launches ss-local as a separate process with the provided configuration.
-  public synchronized boolean start(JSONObject serverConfig) throws JSONException {
+  // Starts a local Shadowsocks server with the provided configuration. Returns whether the server is
+  // running.
+  public boolean start(JSONObject serverConfig) throws JSONException {
+    return start(serverConfig, new CancellationToken());
+  }
+
+  // Starts a local Shadowsocks server with the provided configuration, unless |cancellation| is
+  // cancelled first. Returns whether the server is running; a cancelled start stops the server.
+  public synchronized boolean start(JSONObject serverConfig, final CancellationToken cancellation)
+      throws JSONException {
+    stop(); // Try to stop in case there is a previous instance running.
+    if (cancellation.isCancelled()) {
+      return false;
+    }
+    final boolean isPortReleased = awaitStoppingProcess();
+    final String method = serverConfig.getString("method");
+    final boolean isStarted;
+    if (AeadCipher.isSupported(method)) {
+      isStarted = startLocalServer(serverConfig);
+    } else {
+      LOG.info(String.format(Locale.ROOT, "Cipher %s not supported in-process", method));
+      isStarted = startShadowsocksProcess(serverConfig, isPortReleased, cancellation);
+    }
+    if (isStarted && cancellation.isCancelled()) {
+      LOG.info("Shadowsocks start cancelled.");
+      stop();
+      return false;
+    }
+    return isStarted;
+  }
+
+  public synchronized void stop() {
+    discardSwitch();
+    stopLocalServer();
+    stopShadowsocksProcess();
+  }
+
+  // Returns whether the running server can switch to |serverConfig| without dropping connections,
+  // which requires both the current and the new server to be served in-process. Does not block on
+  // a start in progress.
+  public boolean canSwitchTo(JSONObject serverConfig) {
+    final ShadowsocksLocalServer server = localServer;
+    return server != null && server.isRunning()
+        && AeadCipher.isSupported(serverConfig.optString("method"));
+  }
+
+  // Prepares to switch to |serverConfig| by starting a temporary server for it on an ephemeral
+  // port, through which it can be checked while the current server keeps serving. Returns the
+  // port, or -1 if the server cannot be started. Follow with |commitSwitch| or |discardSwitch|.
+  public synchronized int prepareSwitch(JSONObject serverConfig) throws JSONException {
+    discardSwitch();
+    if (!canSwitchTo(serverConfig)) {
+      return -1;
+    }
+    try {
+      candidateServer = new ShadowsocksLocalServer(
+          new InetSocketAddress(serverConfig.getString("host"), serverConfig.getInt("port")),
+          AeadCipher.create(serverConfig.getString("method"), serverConfig.getString("password")));
+      final InetSocketAddress candidateAddress =
+          candidateServer.start(new InetSocketAddress(LOCAL_SERVER_ADDRESS, 0));
+      candidateConfig = serverConfig;
+      return candidateAddress.getPort();
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      LOG.log(Level.SEVERE, "Invalid Shadowsocks configuration", e);
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "Failed to start the candidate Shadowsocks server", e);
+    }
+    candidateServer = null;
+    return -1;
+  }
+
+  // Switches the running server to the configuration passed to |prepareSwitch|. New connections go
+  // to the new server immediately; existing connections continue on the previous server until they
+  // close, or for up to |SWITCH_DRAIN_TIMEOUT_MS|. Returns whether the switch took place.
+  public synchronized boolean commitSwitch() {
+    if (candidateServer == null || !canSwitchTo(candidateConfig)) {
+      discardSwitch();
+      return false;
+    }
+    try {
+      localServer.switchUpstream(
+          new InetSocketAddress(candidateConfig.getString("host"), candidateConfig.getInt("port")),
+          AeadCipher.create(
+              candidateConfig.getString("method"), candidateConfig.getString("password")),
+          SWITCH_DRAIN_TIMEOUT_MS);
+      return true;
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "Failed to switch Shadowsocks servers", e);
+      return false;
+    } finally {
+      discardSwitch();
+    }
+  }
+
+  // Stops the temporary server started by |prepareSwitch|, if any.
+  public synchronized void discardSwitch() {
+    if (candidateServer != null) {
+      candidateServer.stop();
+      candidateServer = null;
+    }
+    candidateConfig = null;
+  }
+
+  // Starts the in-process Shadowsocks server.
+  private boolean startLocalServer(JSONObject serverConfig) throws JSONException {
+    LOG.info("starting in-process Shadowsocks server");
+    try {
+      final AeadCipher cipher =
+          AeadCipher.create(serverConfig.getString("method"), serverConfig.getString("password"));
+      final InetSocketAddress remoteAddress =
+          new InetSocketAddress(serverConfig.getString("host"), serverConfig.getInt("port"));
+      localServer = new ShadowsocksLocalServer(remoteAddress, cipher, trafficStats,
+          new ShadowsocksLocalServer.Listener() {
+            @Override
+            public void onFailure(ShadowsocksLocalServer server) {
+              // Ignore servers that were already replaced or stopped.
+              if (server == localServer) {
+                listener.onFailure();
+              }
+            }
+          });
+      localServer.start(
+          new InetSocketAddress(LOCAL_SERVER_ADDRESS, Integer.parseInt(LOCAL_SERVER_PORT)));
+      return true;
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      LOG.log(Level.SEVERE, "Invalid Shadowsocks configuration", e);
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "Failed to start in-process Shadowsocks server", e);
+    }
+    localServer = null;
+    return false;
+  }
+
+  private void stopLocalServer() {
+    if (localServer != null) {
+      LOG.info("stopping in-process Shadowsocks server");
+      localServer.stop();
+      localServer = null;
+    }
+  }
+
+  // Launches ss-local as a separate process with the provided configuration. Unless
+  // |isPortReleased|, the local port may still be held by the previous process, so readiness is
+  // only taken from the new process' output.
+  private boolean startShadowsocksProcess(JSONObject serverConfig, boolean isPortReleased,
+      final CancellationToken cancellation) throws JSONException {
     LOG.info("starting ss-local");
     try {
-      this.stopShadowsocksProcess(); // Try to stop in case there is a previous instance running.
-      this.ssProcess = new ProcessBuilder(
+      this.ssProcess = ShadowsocksProcess.start(Arrays.asList(
         this.ssPath,
         "-s", serverConfig.getString("host"),
         "-p", serverConfig.getString("port"),
@@ -54,48 +228,77 @@ public class Shadowsocks {
         "-m", serverConfig.getString("method"),
         "-t", String.format(Locale.ROOT, "%d", SS_LOCAL_TIMEOUT_SECS),
         "-u"
-        ).start();
-      // Wait for the process to start and report whether it is running.
-      Thread.sleep(PROCESS_START_WAIT_MS);
-      return isRunning(ssProcess);
+        ), isPortReleased
+            ? new InetSocketAddress(LOCAL_SERVER_ADDRESS, Integer.parseInt(LOCAL_SERVER_PORT))
+            : null);
+      // Wait until the process is listening, or report its early exit.
+      if (ssProcess.awaitReady(PROCESS_START_TIMEOUT_MS, cancellation)) {
+        return true;
+      }
+      stopShadowsocksProcess();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      stopShadowsocksProcess();
     } catch (Exception e) {
       LOG.log(Level.SEVERE, "Failed to start ss-local", e);
     }
     return false;
   }
 
-  public synchronized void stop() {
-    stopShadowsocksProcess();
-  }
-
+  // Asks ss-local to terminate, without waiting for it to exit; |start| waits for it.
   private void stopShadowsocksProcess() {
     if (this.ssProcess != null) {
       LOG.info("stopping ss-local");
       this.ssProcess.destroy();
+      this.stoppingProcess = this.ssProcess;
       this.ssProcess = null;
     }
   }
 
-  // Returns the IP address and port on which ss-local is listening. Throws an exception if ss-local
-  // has not been started.
-  public synchronized String getLocalServerAddress() throws IllegalStateException {
-    if (this.ssProcess == null) {
-      throw new IllegalStateException("ss-local has not been started");
+  // Waits up to |PROCESS_EXIT_TIMEOUT_MS| for the last stopped ss-local to exit, so that it does
+  // not hold the local port or answer for the new server. Returns whether it exited.
+  private boolean awaitStoppingProcess() {
+    if (stoppingProcess == null) {
+      return true;
     }
-    return String.format(Locale.ROOT, "%s:%s", LOCAL_SERVER_ADDRESS, LOCAL_SERVER_PORT);
+    try {
+      if (!stoppingProcess.awaitExit(PROCESS_EXIT_TIMEOUT_MS)) {
+        LOG.warning(String.format(Locale.ROOT,
+            "Previous ss-local did not exit after %d ms", PROCESS_EXIT_TIMEOUT_MS));
+        return false;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    stoppingProcess = null;
+    return true;
   }
 
-  // Returns whether |process| is running.
-  private boolean isRunning(final Process process) {
-    if (process == null) {
-      return  false;
+  // Notifies the local server that the device switched networks, so that it discards connections
+  // to the remote server established over the previous network.
+  public synchronized void onNetworkChanged() {
+    if (localServer != null) {
+      localServer.resetUpstreamPool();
     }
-    try {
-      process.exitValue();
-    } catch (IllegalThreadStateException e) {
-      return true;  // Process is running
+  }
+
+  // Returns whether the local server is running. Unlike |start|, does not block.
+  public boolean isRunning() {
+    final ShadowsocksLocalServer server = localServer;
+    if (server != null) {
+      return server.isRunning();
     }
-    return false;
+    final ShadowsocksProcess process = ssProcess;
+    return process != null && process.isRunning();
   }
 
+  // Returns the IP address and port on which the local server is listening. Throws an exception if
+  // it has not been started. Does not block on a start in progress.
+  public String getLocalServerAddress() throws IllegalStateException {
+    if (this.ssProcess == null && this.localServer == null) {
+      throw new IllegalStateException("Shadowsocks has not been started");
+    }
+    return String.format(Locale.ROOT, "%s:%s", LOCAL_SERVER_ADDRESS, LOCAL_SERVER_PORT);
+  }
 }
@@ -28,21 +28,24 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Random;
 
 /**
- * Class that performs connectivity tests on remote Shadowsocks servers.
- *
+ * Class that performs connectivity tests on remote Shadowsocks servers. Tests that go through the
+ * local proxy expect it to be listening, which |Shadowsocks.start| guarantees on success. Tests
+ * that take a |CancellationToken| fail as soon as it is cancelled, closing their sockets.
  */
 public class ShadowsocksConnectivity {
   private static final Logger LOG = Logger.getLogger(ShadowsocksConnectivity.class.getName());
   private static final int SOCKS_RESPONSE_NUM_BYTES = 10;
   private static final byte SOCKS_CMD_CONNECT = 0x1;
   private static final byte SOCKS_ATYP_IPV4 = 1;
-  private static final byte SOCKS_ATYP_DOMAINNAME = 3;;
+  private static final byte SOCKS_ATYP_DOMAINNAME = 3;
+  private static final byte SOCKS_ATYP_IPV6 = 4;
   private static final byte SOCKS_VERSION = 0x5;
   private static final int SOCKS_HEADER_ATYP = 3;
   private static final int SOCKS_METHODS_HEADER_NUM_BYTES = 3;
@@ -55,17 +58,90 @@ public class ShadowsocksConnectivity {
                                                                   "wikipedia.org", "example.com"};
   private static final short CREDENTIALS_VALIDATION_PORT = 80;
   private static final int TCP_SOCKET_TIMEOUT_MS = 10000;
-  private static final int UDP_SOCKET_TIMEOUT_MS = 1000;
-  private static final int UDP_MAX_RETRY_ATTEMPTS = 5;
+  private static final int UDP_PROBE_QUERY_COUNT = 4;
+  // Bounds of the interval between queries, which is half the server round-trip time.
+  private static final int UDP_PROBE_MIN_INTERVAL_MS = 20;
+  private static final int UDP_PROBE_MAX_INTERVAL_MS = 250;
+  // Bounds of the time to wait for a reply after the last query, which is twice the server
+  // round-trip time plus the time the resolver may take to answer.
+  private static final int UDP_PROBE_MIN_TIMEOUT_MS = 500;
+  private static final int UDP_PROBE_MAX_TIMEOUT_MS = 3000;
+  private static final int UDP_PROBE_RESOLVER_ALLOWANCE_MS = 300;
+  // Assumed server round-trip time when it cannot be measured, or until it is.
+  private static final int UDP_PROBE_DEFAULT_RTT_MS = 500;
+  // How often a probe checks whether the server round-trip time became known.
+  private static final int UDP_PROBE_RTT_POLL_MS = 50;
   private static final int UDP_MAX_BUFFER_NUM_BYTES = 512;
+  private static final int DNS_ID_OFFSET = 0;
+  private static final int DNS_FLAGS_OFFSET = 2;
+  private static final int DNS_FLAG_RESPONSE = 0x80;
   private static final String DNS_RESOLVER_IP = "208.67.222.222";  // OpenDNS
   private static final short DNS_RESOLVER_PORT = 53;
-  private static final int SERVER_CONNECT_MAX_ATTEMPTS = 3;
-  private static final int SERVER_CONNECT_RETRY_SLEEP_MS = 500;
+
+  /* Round-trip time to a server, which may become known while a probe that depends on it runs. */
+  public static class RttEstimate {
+    private volatile long rttMs = -1;
+    private volatile boolean isKnown = false;
+
+    public RttEstimate() {}
+
+    RttEstimate(long rttMs) {
+      set(rttMs);
+    }
+
+    /* Sets the measured round-trip time, or -1 if it could not be measured. */
+    public void set(long rttMs) {
+      this.rttMs = rttMs;
+      this.isKnown = true;
+    }
+  }
+
+  /* Result of a UDP forwarding probe. */
+  public static class UdpProbeResult {
+    // Number of queries sent, and of those answered by the end of the probe.
+    public final int sentQueries;
+    public final int answeredQueries;
+    // Time from sending a query to receiving its reply, for the first reply; -1 if none arrived.
+    public final long rttMs;
+    // Fraction of the queries due to be answered by the end of the probe that were not.
+    public final double lossRate;
+
+    UdpProbeResult(int sentQueries, int answeredQueries, long rttMs, double lossRate) {
+      this.sentQueries = sentQueries;
+      this.answeredQueries = answeredQueries;
+      this.rttMs = rttMs;
+      this.lossRate = lossRate;
+    }
+
+    public boolean isUdpForwardingEnabled() {
+      return rttMs >= 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "UDP probe: %d/%d answered, rtt %d ms, loss %.2f",
+          answeredQueries, sentQueries, rttMs, lossRate);
+    }
+  }
 
   // Returns whether the server is reachable at the supplied IP address.
   public static boolean isServerReachable(final String ip, int port) {
-    return isAddressReachable(new InetSocketAddress(ip, port));
+    return measureServerRtt(ip, port) >= 0;
+  }
+
+  // Returns the time it takes to establish a TCP connection to the server, which approximates its
+  // round-trip time, or -1 if the server is not reachable.
+  public static long measureServerRtt(final String ip, int port) {
+    return measureServerRtt(ip, port, new CancellationToken());
+  }
+
+  public static long measureServerRtt(
+      final String ip, int port, final CancellationToken cancellation) {
+    final long startMs = System.currentTimeMillis();
+    if (!isAddressReachable(new InetSocketAddress(ip, port), cancellation)) {
+      return -1;
+    }
+    return System.currentTimeMillis() - startMs;
   }
 
   /**
@@ -73,16 +149,21 @@ public class ShadowsocksConnectivity {
    * test by issuing an HTTP HEAD request to a target domain.
    */
   public static boolean validateServerCredentials(final String localProxyIp, final int localProxyPort) {
+    return validateServerCredentials(localProxyIp, localProxyPort, new CancellationToken());
+  }
+
+  public static boolean validateServerCredentials(final String localProxyIp,
+      final int localProxyPort, final CancellationToken cancellation) {
     LOG.fine("Starting server creds. validation.");
     Socket socket = null;
     DataOutputStream outputStream = null;
     DataInputStream inputStream = null;
     try {
       InetSocketAddress localProxyAddress = new InetSocketAddress(localProxyIp, localProxyPort);
-      if (!waitForLocalShadowsocksServer(localProxyAddress)) {
+      socket = new Socket();
+      if (!cancellation.register(socket)) {
         return false;
       }
-      socket = new Socket();
       socket.setSoTimeout(TCP_SOCKET_TIMEOUT_MS);
       socket.connect(localProxyAddress);
       outputStream = new DataOutputStream(socket.getOutputStream());
@@ -106,8 +187,15 @@ public class ShadowsocksConnectivity {
       final String httpResponse = reader.readLine();
       return httpResponse != null && httpResponse.startsWith("HTTP/1.1");
     } catch (IOException e) {
-      LOG.log(Level.WARNING, "Got exception in server creds. validation", e);
+      if (cancellation.isCancelled()) {
+        LOG.fine("Server creds. validation cancelled");
+      } else {
+        LOG.log(Level.WARNING, "Got exception in server creds. validation", e);
+      }
     } finally {
+      if (socket != null) {
+        cancellation.unregister(socket);
+      }
       closeSocket(socket);
     }
     return false;
@@ -115,86 +203,262 @@ public class ShadowsocksConnectivity {
 
   /**
    * Verifies that the server has enabled UDP forwarding. Sends a DNS request through the remote on
-   * the specified local proxy address.
+   * the specified local proxy address. Assumes a default round-trip time to the remote server; see
+   * |probeUdpForwarding|.
    */
   public static boolean isUdpForwardingEnabled(final String localProxyIp, final int localProxyPort) {
+    return probeUdpForwarding(localProxyIp, localProxyPort, -1).isUdpForwardingEnabled();
+  }
+
+  /**
+   * Probes UDP forwarding through the local proxy, timing out based on the round-trip time to the
+   * remote server at |remoteServerIp| and |remoteServerPort|, measured with a TCP connection. The
+   * probe starts once the connection is established; to probe without the delay, pass an
+   * |RttEstimate| measured concurrently instead.
+   */
+  public static UdpProbeResult probeUdpForwarding(final String localProxyIp,
+      final int localProxyPort, final String remoteServerIp, final int remoteServerPort) {
+    return probeUdpForwarding(localProxyIp, localProxyPort, remoteServerIp, remoteServerPort,
+        new CancellationToken());
+  }
+
+  public static UdpProbeResult probeUdpForwarding(final String localProxyIp,
+      final int localProxyPort, final String remoteServerIp, final int remoteServerPort,
+      final CancellationToken cancellation) {
+    final long serverRttMs = measureServerRtt(remoteServerIp, remoteServerPort, cancellation);
+    return probeUdpForwarding(localProxyIp, localProxyPort, serverRttMs, cancellation);
+  }
+
+  /**
+   * Probes UDP forwarding through the local proxy. Sends a staggered burst of DNS queries with
+   * distinct IDs through the remote server, and completes with the first matching reply, so that
+   * a lost datagram does not cost a full timeout.
+   *
+   * @param serverRttMs round-trip time to the remote server, from which the interval between queries
+   *     and the reply timeout are derived, or -1 if unknown.
+   */
+  public static UdpProbeResult probeUdpForwarding(
+      final String localProxyIp, final int localProxyPort, long serverRttMs) {
+    return probeUdpForwarding(localProxyIp, localProxyPort, serverRttMs, new CancellationToken());
+  }
+
+  public static UdpProbeResult probeUdpForwarding(final String localProxyIp,
+      final int localProxyPort, long serverRttMs, final CancellationToken cancellation) {
+    return probeUdpForwarding(
+        localProxyIp, localProxyPort, new RttEstimate(serverRttMs), cancellation);
+  }
+
+  /**
+   * Probes UDP forwarding through the local proxy right away, assuming a default round-trip time to
+   * the remote server until |serverRtt| becomes known. The interval between queries and the reply
+   * timeout are then derived from the measured round-trip time.
+   */
+  public static UdpProbeResult probeUdpForwarding(final String localProxyIp,
+      final int localProxyPort, final RttEstimate serverRtt, final CancellationToken cancellation) {
     LOG.fine("Starting UDP forwarding validation");
+    boolean isRttKnown = false;
+    long intervalMs = getUdpProbeInterval(UDP_PROBE_DEFAULT_RTT_MS);
+    long timeoutMs = getUdpProbeTimeout(UDP_PROBE_DEFAULT_RTT_MS);
+    final int[] queryIds = new int[UDP_PROBE_QUERY_COUNT];
+    final long[] sentMs = new long[UDP_PROBE_QUERY_COUNT];
+    final boolean[] isAnswered = new boolean[UDP_PROBE_QUERY_COUNT];
     DatagramSocket socket = null;
+    int sentQueries = 0;
+    int answeredQueries = 0;
+    long firstRttMs = -1;
+    long endMs = 0;
     try {
-      InetSocketAddress localProxyAddress = new InetSocketAddress(localProxyIp, localProxyPort);
-      if (!waitForLocalShadowsocksServer(localProxyAddress)) {
-        return false;
-      }
-      byte[] buffer = getSocksUdpRequest();
-      DatagramPacket dnsRequest = new DatagramPacket(buffer, buffer.length, localProxyAddress);
-      DatagramPacket dnsResponse = new DatagramPacket(new byte[UDP_MAX_BUFFER_NUM_BYTES],
-                                                      UDP_MAX_BUFFER_NUM_BYTES);
+      final InetSocketAddress localProxyAddress =
+          new InetSocketAddress(localProxyIp, localProxyPort);
+      final byte[] request = getSocksUdpRequest();
+      final int dnsOffset = getSocksUdpHeaderSize(request);
+      final DatagramPacket dnsRequest =
+          new DatagramPacket(request, request.length, localProxyAddress);
+      final DatagramPacket dnsResponse = new DatagramPacket(
+          new byte[UDP_MAX_BUFFER_NUM_BYTES], UDP_MAX_BUFFER_NUM_BYTES);
       socket = new DatagramSocket();
-      socket.setSoTimeout(UDP_SOCKET_TIMEOUT_MS);
-
-      int attempt = 1;
-      boolean success = false;
-      while (attempt <= UDP_MAX_RETRY_ATTEMPTS) {
-        LOG.info(String.format(Locale.ROOT, "Checking remote UDP forwarding (%d/%d)", attempt,
-            UDP_MAX_RETRY_ATTEMPTS));
-        socket.send(dnsRequest);
+      cancellation.register(socket);
+      final Random random = new Random();
+      long deadlineMs = Long.MAX_VALUE;
+      // Stop early if the probe is cancelled.
+      while (!Thread.currentThread().isInterrupted() && !cancellation.isCancelled()) {
+        final long nowMs = System.currentTimeMillis();
+        if (!isRttKnown && serverRtt.isKnown) {
+          isRttKnown = true;
+          final long rttMs = serverRtt.rttMs;
+          if (rttMs >= 0) {
+            intervalMs = getUdpProbeInterval(rttMs);
+            timeoutMs = getUdpProbeTimeout(rttMs);
+            if (sentQueries == UDP_PROBE_QUERY_COUNT && firstRttMs < 0) {
+              deadlineMs = sentMs[UDP_PROBE_QUERY_COUNT - 1] + timeoutMs;
+            }
+          }
+        }
+        if (firstRttMs < 0 && sentQueries < UDP_PROBE_QUERY_COUNT
+            && (sentQueries == 0 || nowMs >= sentMs[sentQueries - 1] + intervalMs)) {
+          queryIds[sentQueries] = nextDistinctId(random, queryIds, sentQueries);
+          setShort(request, dnsOffset + DNS_ID_OFFSET, queryIds[sentQueries]);
+          socket.send(dnsRequest);
+          sentMs[sentQueries++] = nowMs;
+          if (sentQueries == UDP_PROBE_QUERY_COUNT) {
+            deadlineMs = nowMs + timeoutMs;
+          }
+          continue;
+        }
+        final long nextEventMs = sentQueries < UDP_PROBE_QUERY_COUNT && firstRttMs < 0
+            ? sentMs[sentQueries - 1] + intervalMs
+            : deadlineMs;
+        if (nowMs >= deadlineMs) {
+          break;
+        }
+        long waitMs = Math.min(nextEventMs, deadlineMs) - nowMs;
+        if (!isRttKnown) {
+          waitMs = Math.min(waitMs, UDP_PROBE_RTT_POLL_MS);
+        }
+        socket.setSoTimeout((int) Math.max(1, waitMs));
         try {
           socket.receive(dnsResponse);
-          success = true;
-          break;
         } catch (SocketTimeoutException e) {
-          LOG.warning("UDP forwarding validation timed out.");
-          ++attempt;
+          continue;
+        }
+        final int index = findAnsweredQuery(dnsResponse, queryIds, sentQueries);
+        if (index < 0 || isAnswered[index]) {
+          continue;
+        }
+        isAnswered[index] = true;
+        ++answeredQueries;
+        if (firstRttMs < 0) {
+          final long receivedMs = System.currentTimeMillis();
+          firstRttMs = receivedMs - sentMs[index];
+          // Collect the replies to the queries already in flight that arrive in time, to estimate
+          // the loss rate, without delaying the result by more than the measured round-trip time.
+          deadlineMs = receivedMs + Math.min(firstRttMs, intervalMs);
         }
       }
-      return success;
+      endMs = System.currentTimeMillis();
     } catch (IOException e) {
-      LOG.log(Level.SEVERE, "Unexpected exception in UDP forwarding validation", e);
-      return false;
+      if (cancellation.isCancelled()) {
+        LOG.fine("UDP forwarding validation cancelled");
+      } else {
+        LOG.log(Level.SEVERE, "Unexpected exception in UDP forwarding validation", e);
+      }
+      endMs = System.currentTimeMillis();
     } finally {
       if (socket != null) {
+        cancellation.unregister(socket);
         socket.close();
       }
     }
+    // Only the queries that should have been answered by the end of the probe count as lost.
+    int dueQueries = 0;
+    int answeredDueQueries = 0;
+    for (int i = 0; i < sentQueries; ++i) {
+      if (firstRttMs < 0 || sentMs[i] + firstRttMs <= endMs || isAnswered[i]) {
+        ++dueQueries;
+        answeredDueQueries += isAnswered[i] ? 1 : 0;
+      }
+    }
+    final double lossRate =
+        dueQueries == 0 ? 1 : 1 - (double) answeredDueQueries / dueQueries;
+    final UdpProbeResult result =
+        new UdpProbeResult(sentQueries, answeredQueries, firstRttMs, lossRate);
+    LOG.info(result.toString());
+    return result;
   }
 
-  // Returns whether |address| is reachable.
-  private static boolean isAddressReachable(InetSocketAddress address) {
-    Socket socket = null;
+  // Returns the index of the query in |queryIds| answered by |dnsResponse|, or -1 if none.
+  private static int findAnsweredQuery(DatagramPacket dnsResponse, int[] queryIds, int count) {
+    final byte[] data = dnsResponse.getData();
+    if (dnsResponse.getLength() <= SOCKS_HEADER_ATYP) {
+      return -1;
+    }
+    final int dnsOffset = getSocksUdpHeaderSize(data);
+    if (dnsOffset < 0 || dnsResponse.getLength() < dnsOffset + DNS_FLAGS_OFFSET + 1
+        || (data[dnsOffset + DNS_FLAGS_OFFSET] & DNS_FLAG_RESPONSE) == 0) {
+      return -1;
+    }
+    final int id = ((data[dnsOffset] & 0xFF) << 8) | (data[dnsOffset + 1] & 0xFF);
+    for (int i = 0; i < count; ++i) {
+      if (queryIds[i] == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // Returns a random DNS query ID different from the first |count| IDs in |ids|.
+  private static int nextDistinctId(Random random, int[] ids, int count) {
+    while (true) {
+      final int id = random.nextInt(0x10000);
+      boolean isDistinct = true;
+      for (int i = 0; i < count; ++i) {
+        isDistinct &= ids[i] != id;
+      }
+      if (isDistinct) {
+        return id;
+      }
+    }
+  }
+
+  // Returns the size of the SOCKS UDP header at the start of |datagram|, or -1 if unsupported.
+  private static int getSocksUdpHeaderSize(byte[] datagram) {
+    switch (datagram[SOCKS_HEADER_ATYP]) {
+      case SOCKS_ATYP_IPV4:
+        return SOCKS_HEADER_ATYP + 1 + 4 + 2;
+      case SOCKS_ATYP_IPV6:
+        return SOCKS_HEADER_ATYP + 1 + 16 + 2;
+      case SOCKS_ATYP_DOMAINNAME:
+        return SOCKS_HEADER_ATYP + 2 + (datagram[SOCKS_HEADER_ATYP + 1] & 0xFF) + 2;
+      default:
+        return -1;
+    }
+  }
+
+  private static void setShort(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >> 8);
+    buffer[offset + 1] = (byte) value;
+  }
+
+  // Returns the interval between the queries of a UDP probe, half the server round-trip time.
+  private static long getUdpProbeInterval(long serverRttMs) {
+    return clamp(serverRttMs / 2, UDP_PROBE_MIN_INTERVAL_MS, UDP_PROBE_MAX_INTERVAL_MS);
+  }
+
+  // Returns the time to wait for a reply after the last query of a UDP probe.
+  private static long getUdpProbeTimeout(long serverRttMs) {
+    return clamp(2 * serverRttMs + UDP_PROBE_RESOLVER_ALLOWANCE_MS, UDP_PROBE_MIN_TIMEOUT_MS,
+        UDP_PROBE_MAX_TIMEOUT_MS);
+  }
+
+  private static long clamp(long value, long min, long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  // Returns whether |address| is reachable, or false if |cancellation| is cancelled first.
+  private static boolean isAddressReachable(
+      InetSocketAddress address, final CancellationToken cancellation) {
+    final Socket socket = new Socket();
+    if (!cancellation.register(socket)) {
+      return false;
+    }
     try {
-      socket = new Socket();
       socket.connect(address, TCP_SOCKET_TIMEOUT_MS);
       return true;
     } catch (Exception e) {
-      LOG.log(Level.WARNING, "Connection failure while determining address reachability", e);
+      if (cancellation.isCancelled()) {
+        LOG.fine("Address reachability check cancelled");
+      } else {
+        LOG.log(Level.WARNING, "Connection failure while determining address reachability", e);
+      }
     } finally {
+      cancellation.unregister(socket);
       closeSocket(socket);
     }
     return false;
   }
 
-  // Returns whether |serverAddress| is reachable. Attempts to connect up to three times,
-  // sleeping in between.
-  private static boolean waitForLocalShadowsocksServer(InetSocketAddress serverAddress) {
-    for (int attempt = 0; attempt < SERVER_CONNECT_MAX_ATTEMPTS; ++attempt) {
-      if (isAddressReachable(serverAddress)) {
-        return true;
-      }
-      try {
-        Thread.sleep(SERVER_CONNECT_RETRY_SLEEP_MS);
-      } catch (InterruptedException e) {
-        // We shouldn't get here, but if we do return true to avoid a false negative.
-        LOG.warning("Connectivity test interrupted");
-        return true;
-      }
-    }
-    LOG.severe(String.format(Locale.ROOT, "Failed to reach server after %d attempts, giving up",
-        SERVER_CONNECT_MAX_ATTEMPTS));
-    return false;
-  }
-
   // Synthesizes a SOCKS UDP request with a DNS query as payload.
-  private static byte[] getSocksUdpRequest() throws IOException {
+  static byte[] getSocksUdpRequest() throws IOException {
     InetAddress dnsResolverAddress = null;
     try {
       dnsResolverAddress = InetAddress.getByName(DNS_RESOLVER_IP);
@@ -207,7 +471,7 @@ public class ShadowsocksConnectivity {
     buffer.put(SOCKS_ATYP_IPV4).put(dnsResolverAddress.getAddress()).putShort(DNS_RESOLVER_PORT)
     // Copy DNS Request
         .put(getDnsRequest());
-    return buffer.array();
+    return Arrays.copyOf(buffer.array(), buffer.position());
   }
 
   // Synthesizes a DNS request for google.com
@@ -228,7 +492,7 @@ public class ShadowsocksConnectivity {
   }
 
   // Synthesizes a SOCKS TCP CONNECT header to |domain| on port 80.
-  private static byte[] getSocksTcpRequest(final String domain) {
+  static byte[] getSocksTcpRequest(final String domain) {
     ByteBuffer buffer = ByteBuffer.allocate(SOCKS_TCP_HEADER_NUM_BYTES +
                                             domain.length() + 1 /* domain length byte */);
     buffer.put(SOCKS_VERSION).put(SOCKS_CMD_CONNECT);
@@ -0,0 +1,1075 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.outline.stats.TrafficStats;
+
+/**
+ * In-process Shadowsocks client. Serves SOCKS5 (CONNECT and UDP ASSOCIATE) on a local address and
+ * relays traffic to a remote Shadowsocks server using an AEAD cipher. All channels are serviced by
+ * a single selector thread. TCP relays take pre-established connections to the remote server from
+ * a pool, to save the TCP handshake on new connections. The remote server can be switched while
+ * serving: new relays connect to the new server, while existing relays drain on the previous one.
+ */
+class ShadowsocksLocalServer implements Runnable {
+  private static final Logger LOG = Logger.getLogger(ShadowsocksLocalServer.class.getName());
+  // Large enough to hold the salt and a maximum-size encrypted chunk.
+  private static final int BUFFER_SIZE = 32 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 64;
+  private static final int MAX_PAYLOAD_SIZE = 0x3FFF;
+  private static final int LENGTH_SIZE = 2;
+  private static final int UDP_BUFFER_SIZE = 64 * 1024;
+  private static final int UDP_ASSOCIATION_TIMEOUT_MS = 60 * 1000;
+  private static final int SELECT_TIMEOUT_MS = 1000;
+  private static final int UDP_EXPIRY_INTERVAL_MS = 10 * 1000;
+  private static final byte SOCKS_VERSION = 0x5;
+  private static final byte SOCKS_METHOD_NOAUTH = 0;
+  private static final byte SOCKS_CMD_CONNECT = 0x1;
+  private static final byte SOCKS_CMD_UDP_ASSOCIATE = 0x3;
+  private static final byte SOCKS_ATYP_IPV4 = 1;
+  private static final byte SOCKS_ATYP_DOMAINNAME = 3;
+  private static final byte SOCKS_ATYP_IPV6 = 4;
+  private static final byte SOCKS_REPLY_SUCCEEDED = 0;
+  private static final byte SOCKS_REPLY_CMD_NOT_SUPPORTED = 7;
+  private static final int SOCKS_UDP_HEADER_SIZE = 3;  // RSV (2) + FRAG (1)
+
+  /* Receives the failure of a running server. */
+  interface Listener {
+    /* Called once, from the selector thread, when |server| stops serving without being stopped.
+     * Must not block. */
+    void onFailure(ShadowsocksLocalServer server);
+  }
+
+  // Remote server for new relays. Written by |switchUpstream|, read by the selector thread.
+  private volatile Upstream currentUpstream;
+  // Upstreams replaced by |switchUpstream| with relays that may still be draining.
+  private final ConcurrentLinkedQueue<Upstream> retiredUpstreams = new ConcurrentLinkedQueue<>();
+  private final TrafficStats stats;
+  private final Listener listener;
+  private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+  private final SecureRandom random = new SecureRandom();
+  private final Map<SocketAddress, UdpAssociation> udpAssociations = new HashMap<>();
+  private final ByteBuffer udpInBuffer = ByteBuffer.allocateDirect(UDP_BUFFER_SIZE);
+  private final ByteBuffer udpOutBuffer = ByteBuffer.allocateDirect(UDP_BUFFER_SIZE);
+  private final UpstreamPool upstreamPool = new UpstreamPool();
+  private Selector selector;
+  private ServerSocketChannel tcpServer;
+  private DatagramChannel udpServer;
+  private InetSocketAddress localAddress;
+  private Thread selectorThread;
+  private volatile boolean isRunning = false;
+  private volatile boolean isUpstreamPoolResetRequested = false;
+
+  /**
+   * @param remoteAddress resolved address of the remote Shadowsocks server.
+   * @param cipher AEAD cipher keyed with the server's credentials.
+   */
+  ShadowsocksLocalServer(final InetSocketAddress remoteAddress, final AeadCipher cipher) {
+    this(remoteAddress, cipher, new TrafficStats(), null);
+  }
+
+  /**
+   * @param remoteAddress resolved address of the remote Shadowsocks server.
+   * @param cipher AEAD cipher keyed with the server's credentials.
+   * @param stats counters updated with the traffic relayed by the server.
+   * @param listener notified if the server fails while running, or null.
+   */
+  ShadowsocksLocalServer(final InetSocketAddress remoteAddress, final AeadCipher cipher,
+      final TrafficStats stats, final Listener listener) {
+    if (remoteAddress == null || remoteAddress.isUnresolved()) {
+      throw new IllegalArgumentException("Must provide a resolved remote server address");
+    }
+    this.currentUpstream = new Upstream(remoteAddress, cipher);
+    this.stats = stats;
+    this.listener = listener;
+  }
+
+  /**
+   * Binds the SOCKS TCP and UDP endpoints to |bindAddress| and starts serving. The server accepts
+   * connections as soon as this method returns.
+   *
+   * @return the bound local address.
+   * @throws IOException if the endpoints cannot be bound.
+   */
+  synchronized InetSocketAddress start(final InetSocketAddress bindAddress) throws IOException {
+    if (isRunning) {
+      throw new IllegalStateException("Server already started");
+    }
+    try {
+      selector = Selector.open();
+      tcpServer = ServerSocketChannel.open();
+      tcpServer.socket().setReuseAddress(true);
+      tcpServer.socket().bind(bindAddress);
+      tcpServer.configureBlocking(false);
+      tcpServer.register(selector, SelectionKey.OP_ACCEPT);
+      localAddress = (InetSocketAddress) tcpServer.socket().getLocalSocketAddress();
+
+      // Serve UDP on the same port as TCP, like ss-local.
+      udpServer = DatagramChannel.open();
+      udpServer.socket().setReuseAddress(true);
+      udpServer.socket().bind(localAddress);
+      udpServer.configureBlocking(false);
+      udpServer.register(selector, SelectionKey.OP_READ);
+    } catch (IOException e) {
+      closeQuietly(udpServer);
+      closeQuietly(tcpServer);
+      closeQuietly(selector);
+      throw e;
+    }
+    isRunning = true;
+    selectorThread = new Thread(this, "ShadowsocksLocalServer");
+    selectorThread.start();
+    LOG.info(String.format(Locale.ROOT, "Shadowsocks server listening on port %d",
+        localAddress.getPort()));
+    return localAddress;
+  }
+
+  /* Stops serving and closes all connections. Blocks until the selector thread exits. */
+  synchronized void stop() {
+    if (!isRunning) {
+      return;
+    }
+    isRunning = false;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    selectorThread = null;
+  }
+
+  boolean isRunning() {
+    return isRunning;
+  }
+
+  /**
+   * Discards the pooled connections to the remote server, which may be bound to a network that is
+   * no longer in use, and rebuilds the pool. Safe to call from any thread.
+   */
+  void resetUpstreamPool() {
+    if (!isRunning) {
+      return;
+    }
+    isUpstreamPoolResetRequested = true;
+    selector.wakeup();
+  }
+
+  /**
+   * Switches to the remote server at |remoteAddress|. New relays connect to it as soon as this
+   * method returns; relays connected to the previous server are left to finish, and closed after
+   * |drainTimeoutMs|. Safe to call from any thread.
+   *
+   * @param remoteAddress resolved address of the new remote Shadowsocks server.
+   * @param cipher AEAD cipher keyed with the new server's credentials.
+   * @param drainTimeoutMs maximum time relays to the previous server are kept open.
+   */
+  synchronized void switchUpstream(
+      final InetSocketAddress remoteAddress, final AeadCipher cipher, long drainTimeoutMs) {
+    if (remoteAddress == null || remoteAddress.isUnresolved()) {
+      throw new IllegalArgumentException("Must provide a resolved remote server address");
+    }
+    final Upstream previous = currentUpstream;
+    currentUpstream = new Upstream(remoteAddress, cipher);
+    if (!isRunning) {
+      return;
+    }
+    previous.drainDeadlineMs = System.currentTimeMillis() + drainTimeoutMs;
+    retiredUpstreams.add(previous);
+    // Pooled connections are bound to the previous server.
+    resetUpstreamPool();
+    LOG.info(String.format(Locale.ROOT, "Switched upstream, draining relays for up to %d ms",
+        drainTimeoutMs));
+  }
+
+  InetSocketAddress getLocalAddress() {
+    return localAddress;
+  }
+
+  @Override
+  public void run() {
+    long lastExpiryCheckMs = System.currentTimeMillis();
+    long lastPoolUpdateMs = lastExpiryCheckMs;
+    try {
+      upstreamPool.refill();
+      while (isRunning) {
+        selector.select(SELECT_TIMEOUT_MS);
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          handleSelectedKey(key);
+        }
+        final long nowMs = System.currentTimeMillis();
+        if (isUpstreamPoolResetRequested) {
+          isUpstreamPoolResetRequested = false;
+          upstreamPool.clear();
+          upstreamPool.refill();
+        }
+        if (nowMs - lastPoolUpdateMs >= SELECT_TIMEOUT_MS) {
+          upstreamPool.update(nowMs, nowMs - lastPoolUpdateMs);
+          lastPoolUpdateMs = nowMs;
+          if (!retiredUpstreams.isEmpty()) {
+            closeDrainedRelays(nowMs);
+          }
+        }
+        if (nowMs - lastExpiryCheckMs >= UDP_EXPIRY_INTERVAL_MS) {
+          expireUdpAssociations(nowMs);
+          lastExpiryCheckMs = nowMs;
+        }
+      }
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "Shadowsocks server selector failed", e);
+      if (isRunning && listener != null) {
+        listener.onFailure(this);
+      }
+    } finally {
+      isRunning = false;
+      closeAll();
+    }
+  }
+
+  private void handleSelectedKey(final SelectionKey key) {
+    if (!key.isValid()) {
+      return;
+    }
+    final Object attachment = key.attachment();
+    try {
+      if (key.channel() == tcpServer) {
+        acceptConnections();
+      } else if (key.channel() == udpServer) {
+        relayUdpToRemote();
+      } else if (attachment instanceof TcpRelay) {
+        ((TcpRelay) attachment).onSelected(key);
+      } else if (attachment instanceof UdpAssociation) {
+        ((UdpAssociation) attachment).relayToClient();
+      } else if (attachment instanceof PooledConnection) {
+        upstreamPool.onSelected((PooledConnection) attachment);
+      }
+    } catch (IOException | GeneralSecurityException e) {
+      LOG.log(Level.FINE, "Closing relay", e);
+      closeAttachment(attachment);
+    } catch (RuntimeException e) {
+      // E.g. an unresolved server address. Only the relay involved fails; the server keeps serving.
+      LOG.log(Level.WARNING, "Unexpected error in relay", e);
+      closeAttachment(attachment);
+    }
+  }
+
+  // Closes the relay, association or pooled connection attached to a key that failed.
+  private void closeAttachment(final Object attachment) {
+    if (attachment instanceof TcpRelay && ((TcpRelay) attachment).isConnecting()) {
+        stats.connectFailures.increment();
+      }
+      if (attachment instanceof UdpAssociation) {
+        udpAssociations.remove(((UdpAssociation) attachment).clientAddress);
+      } else if (attachment instanceof PooledConnection) {
+        upstreamPool.remove((PooledConnection) attachment);
+      }
+    if (attachment instanceof Closeable) {
+      closeQuietly((Closeable) attachment);
+    }
+  }
+
+  private void acceptConnections() throws IOException {
+    SocketChannel client;
+    while ((client = tcpServer.accept()) != null) {
+      client.configureBlocking(false);
+      new TcpRelay(client);
+    }
+  }
+
+  // Closes the relays to retired upstreams whose drain deadline has passed, and forgets upstreams
+  // with no relays left.
+  private void closeDrainedRelays(long nowMs) {
+    final List<Upstream> activeUpstreams = new ArrayList<>();
+    int closedRelays = 0;
+    for (SelectionKey key : selector.keys()) {
+      final Object attachment = key.attachment();
+      final Upstream upstream;
+      if (attachment instanceof TcpRelay) {
+        upstream = ((TcpRelay) attachment).upstream;
+      } else if (attachment instanceof UdpAssociation) {
+        upstream = ((UdpAssociation) attachment).upstream;
+      } else {
+        continue;
+      }
+      if (upstream == null || upstream == currentUpstream || !key.isValid()) {
+        continue;
+      }
+      if (nowMs < upstream.drainDeadlineMs) {
+        activeUpstreams.add(upstream);
+        continue;
+      }
+      if (attachment instanceof UdpAssociation) {
+        udpAssociations.remove(((UdpAssociation) attachment).clientAddress);
+      }
+      closeQuietly((Closeable) attachment);
+      ++closedRelays;
+    }
+    final Iterator<Upstream> upstreams = retiredUpstreams.iterator();
+    while (upstreams.hasNext()) {
+      if (!activeUpstreams.contains(upstreams.next())) {
+        upstreams.remove();
+      }
+    }
+    if (closedRelays > 0) {
+      LOG.info(String.format(Locale.ROOT, "Closed %d relays past their drain deadline",
+          closedRelays));
+    }
+  }
+
+  private void closeAll() {
+    for (SelectionKey key : selector.keys()) {
+      final Object attachment = key.attachment();
+      if (attachment instanceof Closeable) {
+        closeQuietly((Closeable) attachment);
+      }
+    }
+    udpAssociations.clear();
+    closeQuietly(udpServer);
+    closeQuietly(tcpServer);
+    closeQuietly(selector);
+  }
+
+  /* A remote server and the cipher keyed with its credentials. */
+  private static class Upstream {
+    final InetSocketAddress address;
+    final AeadCipher cipher;
+    // Time after which relays to this upstream are closed, once it has been replaced.
+    volatile long drainDeadlineMs = Long.MAX_VALUE;
+
+    Upstream(InetSocketAddress address, AeadCipher cipher) {
+      this.address = address;
+      this.cipher = cipher;
+    }
+  }
+
+  // TCP
+
+  /**
+   * Relays a SOCKS connection to the remote server. Buffers named |*In| are kept in write mode,
+   * accumulating reads; buffers named |*Out| are kept in read mode, holding bytes pending a write.
+   */
+  private class TcpRelay implements Closeable {
+    private static final int STATE_GREETING = 0;
+    private static final int STATE_REQUEST = 1;
+    private static final int STATE_CONNECTING = 2;
+    private static final int STATE_RELAY = 3;
+    private static final int STATE_UDP_ASSOCIATE = 4;
+
+    private final SocketChannel client;
+    private final SelectionKey clientKey;
+    // Remote server of the relay, chosen when the client's request is received.
+    private Upstream upstream;
+    private SocketChannel remote;
+    private SelectionKey remoteKey;
+    private int state = STATE_GREETING;
+    // Plaintext read from the client, sealed into |upOut|.
+    private ByteBuffer clientIn;
+    // Ciphertext pending to be written to the remote server.
+    private ByteBuffer upOut;
+    // Ciphertext read from the remote server, opened into |downOut|.
+    private ByteBuffer downIn;
+    // Plaintext and SOCKS replies pending to be written to the client.
+    private ByteBuffer downOut;
+    private AeadCipher.Session encryptor;
+    private AeadCipher.Session decryptor;
+    // Holds a chunk length; sized to fit the tag since some providers require it on decryption.
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(LENGTH_SIZE + AeadCipher.TAG_SIZE);
+    private int pendingPayloadSize = -1;
+    // Size of the target address at the front of |clientIn|, sealed with the first chunk. Not
+    // counted as traffic.
+    private int targetAddressSize = 0;
+    private boolean isClientEof = false;
+    private boolean isRemoteEof = false;
+    private boolean isRemoteShutdown = false;
+    private boolean isClientShutdown = false;
+    private boolean isClosed = false;
+    private boolean isCountedSession = false;
+
+    TcpRelay(SocketChannel client) throws IOException {
+      this.client = client;
+      clientIn = bufferPool.acquire();
+      clientIn.limit(MAX_PAYLOAD_SIZE);
+      upOut = emptyReadBuffer(bufferPool.acquire());
+      downIn = bufferPool.acquire();
+      downOut = emptyReadBuffer(bufferPool.acquire());
+      try {
+        clientKey = client.register(selector, SelectionKey.OP_READ, this);
+      } catch (IOException | RuntimeException e) {
+        closeQuietly(client);
+        releaseBuffers();
+        throw e;
+      }
+    }
+
+    void onSelected(SelectionKey key) throws IOException, GeneralSecurityException {
+      if (key == clientKey) {
+        if (key.isReadable()) {
+          readClient();
+        }
+        if (key.isValid() && key.isWritable()) {
+          flushClient();
+        }
+      } else if (key == remoteKey) {
+        if (key.isConnectable()) {
+          onRemoteConnected();
+        }
+        if (key.isValid() && key.isReadable()) {
+          readRemote();
+        }
+        if (key.isValid() && key.isWritable()) {
+          flushRemote();
+        }
+      }
+      if (!isClosed) {
+        updateInterestOps();
+      }
+    }
+
+    private void readClient() throws IOException, GeneralSecurityException {
+      if (client.read(clientIn) < 0) {
+        isClientEof = true;
+      }
+      switch (state) {
+        case STATE_GREETING:
+          readGreeting();
+          break;
+        case STATE_REQUEST:
+          readRequest();
+          break;
+        case STATE_RELAY:
+          sealClientData();
+          break;
+        case STATE_UDP_ASSOCIATE:
+          // The association lives as long as this connection; discard any data.
+          clientIn.clear().limit(MAX_PAYLOAD_SIZE);
+          break;
+        default:
+          break;  // Connecting; keep buffering.
+      }
+      if (isClientEof && (state == STATE_GREETING || state == STATE_REQUEST
+          || state == STATE_UDP_ASSOCIATE)) {
+        close();
+      }
+    }
+
+    // Reads the SOCKS method selection message: VER | NMETHODS | METHODS.
+    private void readGreeting() throws IOException, GeneralSecurityException {
+      if (clientIn.position() < 2) {
+        return;
+      }
+      if (clientIn.get(0) != SOCKS_VERSION) {
+        throw new IOException("Unsupported SOCKS version");
+      }
+      final int greetingSize = 2 + (clientIn.get(1) & 0xFF);
+      if (clientIn.position() < greetingSize) {
+        return;
+      }
+      consumeClientBytes(greetingSize);
+      queueClientReply(new byte[] {SOCKS_VERSION, SOCKS_METHOD_NOAUTH});
+      state = STATE_REQUEST;
+      readRequest();
+    }
+
+    // Reads the SOCKS request: VER | CMD | RSV | ATYP | DST.ADDR | DST.PORT.
+    private void readRequest() throws IOException, GeneralSecurityException {
+      if (clientIn.position() < 5) {
+        return;
+      }
+      final int addressSize = getSocksAddressSize(clientIn, 3);
+      if (addressSize < 0) {
+        throw new IOException("Unsupported SOCKS address type");
+      }
+      final int requestSize = 3 + addressSize;
+      if (clientIn.position() < requestSize) {
+        return;
+      }
+      final byte command = clientIn.get(1);
+      if (command == SOCKS_CMD_CONNECT) {
+        // The Shadowsocks target address has the same format as the SOCKS address. Keep it at the
+        // front of the buffer so it is sealed together with the first bytes of payload.
+        consumeClientBytes(3);
+        targetAddressSize = addressSize;
+        queueClientReply(new byte[] {SOCKS_VERSION, SOCKS_REPLY_SUCCEEDED, 0, SOCKS_ATYP_IPV4,
+            0, 0, 0, 0, 0, 0});
+        connectRemote();
+      } else if (command == SOCKS_CMD_UDP_ASSOCIATE) {
+        consumeClientBytes(requestSize);
+        final byte[] bindAddress = localAddress.getAddress().getAddress();
+        final ByteBuffer reply = ByteBuffer.allocate(6 + bindAddress.length);
+        reply.put(SOCKS_VERSION).put(SOCKS_REPLY_SUCCEEDED).put((byte) 0)
+            .put(bindAddress.length == 4 ? SOCKS_ATYP_IPV4 : SOCKS_ATYP_IPV6).put(bindAddress)
+            .putShort((short) localAddress.getPort());
+        queueClientReply(reply.array());
+        state = STATE_UDP_ASSOCIATE;
+      } else {
+        queueClientReply(new byte[] {SOCKS_VERSION, SOCKS_REPLY_CMD_NOT_SUPPORTED, 0,
+            SOCKS_ATYP_IPV4, 0, 0, 0, 0, 0, 0});
+        flushClient();
+        close();
+      }
+    }
+
+    private void connectRemote() throws IOException, GeneralSecurityException {
+      state = STATE_CONNECTING;
+      upstream = currentUpstream;
+      final PooledConnection pooled = upstreamPool.take(upstream);
+      if (pooled != null) {
+        remote = pooled.channel;
+        remoteKey = pooled.key;
+        remoteKey.attach(this);
+        onRemoteConnected();
+        return;
+      }
+      remote = SocketChannel.open();
+      remote.configureBlocking(false);
+      remote.socket().setTcpNoDelay(true);
+      if (remote.connect(upstream.address)) {
+        remoteKey = remote.register(selector, SelectionKey.OP_READ, this);
+        onRemoteConnected();
+      } else {
+        remoteKey = remote.register(selector, SelectionKey.OP_CONNECT, this);
+      }
+    }
+
+    private void onRemoteConnected() throws IOException, GeneralSecurityException {
+      if (remote.isConnectionPending() && !remote.finishConnect()) {
+        return;
+      }
+      state = STATE_RELAY;
+      isCountedSession = true;
+      stats.tcpSessions.increment();
+      sealClientData();
+    }
+
+    boolean isConnecting() {
+      return state == STATE_CONNECTING;
+    }
+
+    // Seals the buffered client data into a chunk, if there is no ciphertext pending to be written.
+    private void sealClientData() throws IOException, GeneralSecurityException {
+      if (upOut.hasRemaining() || clientIn.position() == 0) {
+        maybeShutdownRemote();
+        return;
+      }
+      upOut.clear();
+      if (encryptor == null) {
+        final byte[] salt = new byte[upstream.cipher.saltSize()];
+        random.nextBytes(salt);
+        encryptor = upstream.cipher.newSession(salt);
+        upOut.put(salt);
+      }
+      clientIn.flip();
+      stats.bytesUp.add(clientIn.remaining() - targetAddressSize);
+      targetAddressSize = 0;
+      lengthBuffer.clear();
+      lengthBuffer.putShort((short) clientIn.remaining()).flip();
+      encryptor.seal(lengthBuffer, upOut);
+      encryptor.seal(clientIn, upOut);
+      upOut.flip();
+      clientIn.clear().limit(MAX_PAYLOAD_SIZE);
+      flushRemote();
+    }
+
+    private void flushRemote() throws IOException, GeneralSecurityException {
+      if (upOut.hasRemaining()) {
+        remote.write(upOut);
+      }
+      if (!upOut.hasRemaining()) {
+        sealClientData();
+      }
+    }
+
+    // Propagates the client's half-close once all of its data has been written to the remote.
+    private void maybeShutdownRemote() throws IOException {
+      if (isClientEof && !isRemoteShutdown && clientIn.position() == 0 && !upOut.hasRemaining()) {
+        isRemoteShutdown = true;
+        remote.socket().shutdownOutput();
+        closeIfDone();
+      }
+    }
+
+    private void readRemote() throws IOException, GeneralSecurityException {
+      if (remote.read(downIn) < 0) {
+        isRemoteEof = true;
+      }
+      openRemoteData();
+      flushClient();
+    }
+
+    // Opens as many complete chunks as fit in |downOut|.
+    private void openRemoteData() throws GeneralSecurityException {
+      downIn.flip();
+      try {
+        if (decryptor == null) {
+          if (downIn.remaining() < upstream.cipher.saltSize()) {
+            return;
+          }
+          final byte[] salt = new byte[upstream.cipher.saltSize()];
+          downIn.get(salt);
+          decryptor = upstream.cipher.newSession(salt);
+        }
+        downOut.compact();
+        try {
+          while (true) {
+            if (pendingPayloadSize < 0) {
+              if (downIn.remaining() < LENGTH_SIZE + AeadCipher.TAG_SIZE) {
+                break;
+              }
+              lengthBuffer.clear();
+              decryptor.open(downIn, LENGTH_SIZE + AeadCipher.TAG_SIZE, lengthBuffer);
+              pendingPayloadSize = lengthBuffer.getShort(0) & MAX_PAYLOAD_SIZE;
+            }
+            if (downIn.remaining() < pendingPayloadSize + AeadCipher.TAG_SIZE
+                || downOut.remaining() < pendingPayloadSize + AeadCipher.TAG_SIZE) {
+              break;
+            }
+            decryptor.open(downIn, pendingPayloadSize + AeadCipher.TAG_SIZE, downOut);
+            stats.bytesDown.add(pendingPayloadSize);
+            pendingPayloadSize = -1;
+          }
+        } finally {
+          downOut.flip();
+        }
+      } finally {
+        downIn.compact();
+      }
+    }
+
+    private void flushClient() throws IOException, GeneralSecurityException {
+      if (downOut.hasRemaining()) {
+        client.write(downOut);
+      }
+      if (!downOut.hasRemaining() && state == STATE_RELAY) {
+        openRemoteData();
+        if (downOut.hasRemaining()) {
+          client.write(downOut);
+        }
+      }
+      maybeShutdownClient();
+    }
+
+    // Propagates the remote's half-close once all of its data has been written to the client.
+    private void maybeShutdownClient() throws IOException {
+      if (isRemoteEof && !isClientShutdown && !downOut.hasRemaining()) {
+        isClientShutdown = true;
+        client.socket().shutdownOutput();
+        closeIfDone();
+      }
+    }
+
+    private void closeIfDone() {
+      if (isRemoteShutdown && isClientShutdown) {
+        close();
+      }
+    }
+
+    private void updateInterestOps() {
+      int clientOps = 0;
+      if (!isClientEof && clientIn.hasRemaining() && !upOut.hasRemaining()) {
+        clientOps |= SelectionKey.OP_READ;
+      }
+      if (downOut.hasRemaining()) {
+        clientOps |= SelectionKey.OP_WRITE;
+      }
+      clientKey.interestOps(clientOps);
+      if (remoteKey == null) {
+        return;
+      }
+      int remoteOps = 0;
+      if (state == STATE_CONNECTING) {
+        remoteOps = SelectionKey.OP_CONNECT;
+      } else {
+        if (!isRemoteEof && !downOut.hasRemaining() && downIn.hasRemaining()) {
+          remoteOps |= SelectionKey.OP_READ;
+        }
+        if (upOut.hasRemaining()) {
+          remoteOps |= SelectionKey.OP_WRITE;
+        }
+      }
+      remoteKey.interestOps(remoteOps);
+    }
+
+    // Removes the first |count| bytes from |clientIn|.
+    private void consumeClientBytes(int count) {
+      clientIn.flip();
+      clientIn.position(count);
+      clientIn.compact();
+      clientIn.limit(MAX_PAYLOAD_SIZE);
+    }
+
+    private void queueClientReply(byte[] reply) {
+      downOut.compact();
+      downOut.put(reply);
+      downOut.flip();
+    }
+
+    @Override
+    public void close() {
+      if (isClosed) {
+        return;
+      }
+      isClosed = true;
+      if (isCountedSession) {
+        stats.tcpSessions.decrement();
+      }
+      closeQuietly(client);
+      closeQuietly(remote);
+      releaseBuffers();
+    }
+
+    private void releaseBuffers() {
+      bufferPool.release(clientIn);
+      bufferPool.release(upOut);
+      bufferPool.release(downIn);
+      bufferPool.release(downOut);
+    }
+  }
+
+  // Upstream pool
+
+  /* A connection to the remote server, established ahead of the relay that will use it. */
+  private class PooledConnection implements Closeable {
+    final Upstream upstream = currentUpstream;
+    final SocketChannel channel;
+    final SelectionKey key;
+    final long createdMs;
+    long connectedMs = 0;
+
+    PooledConnection() throws IOException {
+      channel = SocketChannel.open();
+      try {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        createdMs = System.currentTimeMillis();
+        channel.connect(upstream.address);
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+      } catch (IOException | RuntimeException e) {
+        closeQuietly(channel);
+        throw e;
+      }
+    }
+
+    boolean isConnected() {
+      return connectedMs > 0;
+    }
+
+    @Override
+    public void close() {
+      closeQuietly(channel);
+    }
+  }
+
+  /**
+   * Keeps a number of connections to the remote server ready for new relays. The target size
+   * follows the recent rate of new relays times the time it takes to connect, so that the pool is
+   * replenished before it runs dry; when no relays are created, it shrinks to none. Connections
+   * expire after being idle for a while, since servers and middleboxes drop them. Only accessed by
+   * the selector thread.
+   */
+  private class UpstreamPool {
+    private static final int MAX_SIZE = 8;
+    private static final int IDLE_TIMEOUT_MS = 20 * 1000;
+    // Weight of the latest sample in the moving averages.
+    private static final double SMOOTHING_FACTOR = 0.25;
+    private static final double INITIAL_RELAY_RATE = 1;  // Relays per second.
+    private static final double MIN_RELAY_RATE = 0.05;
+    private static final double INITIAL_CONNECT_MS = 300;
+
+    // Most recently connected last.
+    private final ArrayDeque<PooledConnection> connections = new ArrayDeque<>();
+    private double relayRate = INITIAL_RELAY_RATE;
+    private double connectMs = INITIAL_CONNECT_MS;
+    private int relaysSinceUpdate = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+    // Returns a connected connection to |upstream|, or null if there is none.
+    PooledConnection take(Upstream upstream) {
+      ++relaysSinceUpdate;
+      final Iterator<PooledConnection> iterator = connections.descendingIterator();
+      while (iterator.hasNext()) {
+        final PooledConnection connection = iterator.next();
+        if (connection.isConnected() && connection.upstream == upstream) {
+          iterator.remove();
+          ++hits;
+          refill();
+          return connection;
+        }
+      }
+      ++misses;
+      refill();
+      return null;
+    }
+
+    void onSelected(PooledConnection connection) throws IOException {
+      if (connection.key.isConnectable()) {
+        if (!connection.channel.finishConnect()) {
+          return;
+        }
+        connection.connectedMs = System.currentTimeMillis();
+        connectMs += SMOOTHING_FACTOR * (connection.connectedMs - connection.createdMs - connectMs);
+        // Move to the back, so the most recently connected connections are taken first.
+        connections.remove(connection);
+        connections.addLast(connection);
+        // Watch for the server closing the connection.
+        connection.key.interestOps(SelectionKey.OP_READ);
+      } else if (connection.key.isReadable()) {
+        // The server does not send data before receiving a request; the connection is dead.
+        remove(connection);
+        connection.close();
+      }
+    }
+
+    void remove(PooledConnection connection) {
+      connections.remove(connection);
+    }
+
+    // Updates the relay rate with the relays created in the last |intervalMs|, expires idle
+    // connections and resizes the pool.
+    void update(long nowMs, long intervalMs) {
+      relayRate += SMOOTHING_FACTOR * (relaysSinceUpdate * 1000.0 / intervalMs - relayRate);
+      relaysSinceUpdate = 0;
+      final Iterator<PooledConnection> iterator = connections.iterator();
+      while (iterator.hasNext()) {
+        final PooledConnection connection = iterator.next();
+        if (connection.isConnected() && nowMs - connection.connectedMs > IDLE_TIMEOUT_MS) {
+          iterator.remove();
+          connection.close();
+        }
+      }
+      final int targetSize = getTargetSize();
+      while (connections.size() > targetSize) {
+        connections.pollFirst().close();
+      }
+      refill();
+    }
+
+    // Opens connections until the pool reaches its target size.
+    void refill() {
+      final int targetSize = getTargetSize();
+      while (connections.size() < targetSize) {
+        try {
+          connections.addFirst(new PooledConnection());
+        } catch (IOException | RuntimeException e) {
+          LOG.log(Level.FINE, "Failed to open pooled connection", e);
+          return;
+        }
+      }
+    }
+
+    void clear() {
+      LOG.info(String.format(Locale.ROOT,
+          "Clearing upstream pool: %d connections, %d hits, %d misses", connections.size(), hits,
+          misses));
+      for (PooledConnection connection : connections) {
+        connection.close();
+      }
+      connections.clear();
+    }
+
+    private int getTargetSize() {
+      if (relayRate < MIN_RELAY_RATE) {
+        return 0;
+      }
+      // Relays expected while a connection is being replenished, plus one to absorb bursts.
+      final int size = (int) Math.ceil(relayRate * connectMs / 1000) + 1;
+      return Math.min(size, MAX_SIZE);
+    }
+  }
+
+  // UDP
+
+  /* Associates a SOCKS UDP client with a datagram channel connected to the remote server. */
+  private class UdpAssociation implements Closeable {
+    private final SocketAddress clientAddress;
+    private final DatagramChannel channel;
+    private final Upstream upstream = currentUpstream;
+    private long lastActiveMs;
+    private boolean isClosed = false;
+
+    UdpAssociation(SocketAddress clientAddress) throws IOException {
+      this.clientAddress = clientAddress;
+      this.channel = DatagramChannel.open();
+      try {
+        channel.configureBlocking(false);
+        channel.connect(upstream.address);
+        channel.register(selector, SelectionKey.OP_READ, this);
+      } catch (IOException e) {
+        closeQuietly(channel);
+        throw e;
+      }
+      lastActiveMs = System.currentTimeMillis();
+      stats.udpSessions.increment();
+    }
+
+    // Sends the SOCKS UDP payload in |udpInBuffer| to the remote server.
+    void relayToRemote() throws IOException, GeneralSecurityException {
+      final byte[] salt = new byte[upstream.cipher.saltSize()];
+      random.nextBytes(salt);
+      udpOutBuffer.clear();
+      udpOutBuffer.put(salt);
+      stats.bytesUp.add(udpInBuffer.remaining());
+      upstream.cipher.newSession(salt).seal(udpInBuffer, udpOutBuffer);
+      udpOutBuffer.flip();
+      channel.write(udpOutBuffer);
+      lastActiveMs = System.currentTimeMillis();
+    }
+
+    // Relays datagrams received from the remote server to the SOCKS client.
+    void relayToClient() throws IOException, GeneralSecurityException {
+      while (true) {
+        udpInBuffer.clear();
+        if (channel.read(udpInBuffer) <= 0) {
+          return;
+        }
+        udpInBuffer.flip();
+        final int saltSize = upstream.cipher.saltSize();
+        if (udpInBuffer.remaining() < saltSize + AeadCipher.TAG_SIZE) {
+          continue;
+        }
+        final byte[] salt = new byte[saltSize];
+        udpInBuffer.get(salt);
+        udpOutBuffer.clear();
+        udpOutBuffer.put(new byte[SOCKS_UDP_HEADER_SIZE]);
+        try {
+          upstream.cipher.newSession(salt).open(udpInBuffer, udpInBuffer.remaining(), udpOutBuffer);
+        } catch (GeneralSecurityException e) {
+          LOG.fine("Dropping undecryptable UDP datagram");
+          continue;
+        }
+        udpOutBuffer.flip();
+        stats.bytesDown.add(udpOutBuffer.remaining() - SOCKS_UDP_HEADER_SIZE);
+        udpServer.send(udpOutBuffer, clientAddress);
+        lastActiveMs = System.currentTimeMillis();
+      }
+    }
+
+    @Override
+    public void close() {
+      if (isClosed) {
+        return;
+      }
+      isClosed = true;
+      stats.udpSessions.decrement();
+      closeQuietly(channel);
+    }
+  }
+
+  // Reads SOCKS UDP requests from clients and forwards them to the remote server.
+  private void relayUdpToRemote() throws IOException {
+    while (true) {
+      udpInBuffer.clear();
+      final SocketAddress clientAddress = udpServer.receive(udpInBuffer);
+      if (clientAddress == null) {
+        return;
+      }
+      udpInBuffer.flip();
+      // RSV | FRAG | ATYP | DST.ADDR | DST.PORT | DATA. Fragmentation is not supported.
+      if (udpInBuffer.remaining() <= SOCKS_UDP_HEADER_SIZE + 1 || udpInBuffer.get(2) != 0) {
+        continue;
+      }
+      final int addressSize = getSocksAddressSize(udpInBuffer, SOCKS_UDP_HEADER_SIZE);
+      if (addressSize < 0 || udpInBuffer.remaining() < SOCKS_UDP_HEADER_SIZE + addressSize) {
+        continue;
+      }
+      udpInBuffer.position(SOCKS_UDP_HEADER_SIZE);
+      UdpAssociation association = udpAssociations.get(clientAddress);
+      try {
+        if (association == null) {
+          association = new UdpAssociation(clientAddress);
+          udpAssociations.put(clientAddress, association);
+        }
+        association.relayToRemote();
+      } catch (IOException | GeneralSecurityException e) {
+        LOG.log(Level.FINE, "Failed to relay UDP datagram", e);
+        if (association != null) {
+          association.close();
+          udpAssociations.remove(clientAddress);
+        }
+      }
+    }
+  }
+
+  private void expireUdpAssociations(long nowMs) {
+    final Iterator<UdpAssociation> associations = udpAssociations.values().iterator();
+    while (associations.hasNext()) {
+      final UdpAssociation association = associations.next();
+      if (nowMs - association.lastActiveMs > UDP_ASSOCIATION_TIMEOUT_MS) {
+        association.close();
+        associations.remove();
+      }
+    }
+  }
+
+  // Helpers
+
+  /* Returns the size of the SOCKS address (ATYP | ADDR | PORT) at |offset| in |buffer|'s content,
+   * or -1 if the address type is unsupported. Uses absolute reads up to the buffer's position
+   * in write mode, or limit in read mode. */
+  private static int getSocksAddressSize(final ByteBuffer buffer, int offset) {
+    switch (buffer.get(offset)) {
+      case SOCKS_ATYP_IPV4:
+        return 1 + 4 + 2;
+      case SOCKS_ATYP_IPV6:
+        return 1 + 16 + 2;
+      case SOCKS_ATYP_DOMAINNAME:
+        return 1 + 1 + (buffer.get(offset + 1) & 0xFF) + 2;
+      default:
+        return -1;
+    }
+  }
+
+  // Flips an empty buffer to read mode, so that it has no remaining bytes.
+  private static ByteBuffer emptyReadBuffer(ByteBuffer buffer) {
+    buffer.clear();
+    buffer.limit(0);
+    return buffer;
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      if (closeable != null) {
+        closeable.close();
+      }
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Supervises an ss-local process. Reports readiness as soon as the process announces that it is
+ * listening or, while it is alive, accepts a connection on its local address, and surfaces the exit
+ * code as soon as the process terminates.
+ */
+class ShadowsocksProcess {
+  private static final Logger LOG = Logger.getLogger(ShadowsocksProcess.class.getName());
+  // ss-local logs this message once its listening socket is bound.
+  private static final String READY_MESSAGE = "listening at";
+  private static final int PROBE_CONNECT_TIMEOUT_MS = 50;
+  private static final int PROBE_INITIAL_BACKOFF_MS = 5;
+  private static final int PROBE_MAX_BACKOFF_MS = 50;
+
+  private final Process process;
+  private final InetSocketAddress listenAddress;
+  private final CountDownLatch readyOrExited = new CountDownLatch(1);
+  private final CountDownLatch exited = new CountDownLatch(1);
+  private volatile boolean isReady = false;
+  private volatile boolean isDestroyed = false;
+  private volatile Integer exitCode = null;
+
+  private ShadowsocksProcess(Process process, InetSocketAddress listenAddress) {
+    this.process = process;
+    this.listenAddress = listenAddress;
+  }
+
+  /**
+   * Launches ss-local with |command| and starts supervising it.
+   *
+   * @param command ss-local path and arguments.
+   * @param listenAddress local address on which ss-local serves SOCKS, probed for readiness, or
+   *     null to rely on the process output only, when another process may still listen on it.
+   * @throws IOException if the process cannot be started.
+   */
+  static ShadowsocksProcess start(List<String> command, InetSocketAddress listenAddress)
+      throws IOException {
+    final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+    final ShadowsocksProcess ssProcess = new ShadowsocksProcess(process, listenAddress);
+    ssProcess.startOutputReader();
+    ssProcess.startExitWatcher();
+    return ssProcess;
+  }
+
+  /**
+   * Blocks until ss-local is listening, it exits, |timeoutMs| elapse, or |cancellation| is
+   * cancelled, whichever happens first.
+   *
+   * @return whether ss-local is ready to accept connections.
+   */
+  boolean awaitReady(long timeoutMs, final CancellationToken cancellation)
+      throws InterruptedException {
+    // Wake up as soon as the start is cancelled.
+    final Closeable wakeup = new Closeable() {
+      @Override
+      public void close() {
+        readyOrExited.countDown();
+      }
+    };
+    cancellation.register(wakeup);
+    try {
+      final long deadlineMs = System.currentTimeMillis() + timeoutMs;
+      long backoffMs = PROBE_INITIAL_BACKOFF_MS;
+      while (!isReady && exitCode == null) {
+        if (cancellation.isCancelled()) {
+          LOG.info("Cancelled waiting for ss-local.");
+          return false;
+        }
+        // Only trust the probe while the process is alive: a connection may otherwise have been
+        // accepted by another process.
+        if (listenAddress != null && isListening() && exitCode == null) {
+          onReady("port probe");
+          break;
+        }
+        final long remainingMs = deadlineMs - System.currentTimeMillis();
+        if (remainingMs <= 0) {
+          LOG.severe(String.format(Locale.ROOT, "ss-local not ready after %d ms", timeoutMs));
+          return false;
+        }
+        // Wake up early if the process exits or reports readiness.
+        readyOrExited.await(Math.min(backoffMs, remainingMs), TimeUnit.MILLISECONDS);
+        backoffMs = Math.min(backoffMs * 2, PROBE_MAX_BACKOFF_MS);
+      }
+      return exitCode == null;  // The exit watcher logs the exit code.
+    } finally {
+      cancellation.unregister(wakeup);
+    }
+  }
+
+  boolean isRunning() {
+    return exitCode == null;
+  }
+
+  // Returns the process exit code, or null if it is still running.
+  Integer getExitCode() {
+    return exitCode;
+  }
+
+  /* Asks the process to terminate. Does not wait for it to exit; see |awaitExit|. */
+  void destroy() {
+    isDestroyed = true;
+    process.destroy();
+  }
+
+  /**
+   * Blocks until the process exits or |timeoutMs| elapse.
+   *
+   * @return whether the process exited.
+   */
+  boolean awaitExit(long timeoutMs) throws InterruptedException {
+    return exited.await(timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void onReady(final String signal) {
+    if (!isReady) {
+      isReady = true;
+      LOG.info(String.format(Locale.ROOT, "ss-local ready (%s)", signal));
+      readyOrExited.countDown();
+    }
+  }
+
+  // Returns whether ss-local accepts connections on its listen address.
+  private boolean isListening() {
+    Socket socket = new Socket();
+    try {
+      socket.connect(listenAddress, PROBE_CONNECT_TIMEOUT_MS);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  // Drains the process output, which would otherwise block ss-local once the pipe fills up, and
+  // watches for the readiness message.
+  private void startOutputReader() {
+    final Thread reader = new Thread("ss-local-output") {
+      @Override
+      public void run() {
+        try {
+          final BufferedReader output =
+              new BufferedReader(new InputStreamReader(process.getInputStream()));
+          String line;
+          while ((line = output.readLine()) != null) {
+            LOG.fine(line);
+            if (line.contains(READY_MESSAGE)) {
+              onReady("output");
+            }
+          }
+        } catch (IOException e) {
+          // The stream is closed when the process is destroyed.
+        }
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void startExitWatcher() {
+    final Thread watcher = new Thread("ss-local-watcher") {
+      @Override
+      public void run() {
+        try {
+          exitCode = process.waitFor();
+          final Level level = isDestroyed ? Level.INFO : isReady ? Level.WARNING : Level.SEVERE;
+          LOG.log(level,
+              String.format(Locale.ROOT, "ss-local exited with code %d", exitCode));
+          exited.countDown();
+          readyOrExited.countDown();
+        } catch (InterruptedException e) {
+          // Unreachable; the watcher is never interrupted.
+        }
+      }
+    };
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+}
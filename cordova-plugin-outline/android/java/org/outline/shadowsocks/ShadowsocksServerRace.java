@@ -0,0 +1,208 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.shadowsocks;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONObject;
+
+/**
+ * Checks several Shadowsocks servers concurrently and ranks them by round-trip time. Servers with
+ * AEAD ciphers are validated end-to-end through a temporary in-process server on an ephemeral
+ * port, so the measured time covers the full path to the target site. Servers with other ciphers
+ * can only be checked for reachability; they rank after validated servers, since their round-trip
+ * times are not comparable.
+ */
+public class ShadowsocksServerRace {
+  private static final Logger LOG = Logger.getLogger(ShadowsocksServerRace.class.getName());
+
+  /* Outcome of the checks on a server. */
+  public static class Result {
+    public final int index;
+    // Whether the checks completed before the race ended.
+    public boolean isComplete = false;
+    public boolean isConfigValid = true;
+    public boolean isReachable = false;
+    // Null if the credentials could not be validated; see |ShadowsocksServerRace|.
+    public Boolean areCredentialsValid = null;
+    // Time to validate the credentials, or to reach the server if they could not be validated;
+    // -1 if unknown.
+    public long rttMs = -1;
+
+    Result(int index) {
+      this.index = index;
+    }
+
+    // Returns whether the server is expected to relay traffic.
+    public boolean isHealthy() {
+      return isComplete && isReachable && !Boolean.FALSE.equals(areCredentialsValid);
+    }
+
+    boolean isValidated() {
+      return isHealthy() && Boolean.TRUE.equals(areCredentialsValid);
+    }
+  }
+
+  private ShadowsocksServerRace() {}
+
+  /**
+   * Checks the servers in |configs| concurrently.
+   *
+   * @param waitForAll whether to wait for all checks to complete, in order to find the server with
+   *     the lowest round-trip time; otherwise the race ends with the first server whose
+   *     credentials are validated.
+   * @param timeoutMs maximum duration of the race.
+   * @param executor runs the checks of each server.
+   * @param cancellation ends the race when cancelled, failing the checks that have not completed.
+   * @return the results for all servers, healthy servers first by ascending round-trip time. The
+   *     results of checks that did not complete are marked as such.
+   */
+  public static List<Result> run(final List<JSONObject> configs, boolean waitForAll,
+      long timeoutMs, final Executor executor, final CancellationToken cancellation) {
+    final long deadlineMs = System.currentTimeMillis() + timeoutMs;
+    // Cancelled when the race ends, or with |cancellation|, closing the sockets of the checks.
+    final CancellationToken checksCancellation = new CancellationToken();
+    final Closeable checksCanceller = new Closeable() {
+      @Override
+      public void close() {
+        checksCancellation.cancel();
+      }
+    };
+    cancellation.register(checksCanceller);
+    final CompletionService<Result> completionService =
+        new ExecutorCompletionService<>(executor);
+    final List<Future<Result>> futures = new ArrayList<>(configs.size());
+    final Result[] results = new Result[configs.size()];
+    for (int i = 0; i < configs.size(); ++i) {
+      results[i] = new Result(i);
+      final int index = i;
+      futures.add(completionService.submit(new Callable<Result>() {
+        @Override
+        public Result call() {
+          return check(index, configs.get(index), checksCancellation);
+        }
+      }));
+    }
+    try {
+      for (int completed = 0; completed < configs.size(); ++completed) {
+        final long remainingMs = deadlineMs - System.currentTimeMillis();
+        final Future<Result> future =
+            completionService.poll(Math.max(0, remainingMs), TimeUnit.MILLISECONDS);
+        if (future == null) {
+          LOG.info("Server race timed out");
+          break;
+        }
+        if (cancellation.isCancelled()) {
+          LOG.info("Server race cancelled");
+          break;
+        }
+        final Result result = future.get();
+        results[result.index] = result;
+        if (!waitForAll && result.isValidated()) {
+          break;
+        }
+      }
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Server race interrupted", e);
+    } finally {
+      // Cancel the checks that have not completed: queued checks never run, and running checks have
+      // their sockets closed, so they fail right away and stop their servers.
+      cancellation.unregister(checksCanceller);
+      checksCancellation.cancel();
+      for (Future<Result> future : futures) {
+        future.cancel(true);
+      }
+    }
+    final List<Result> ranking = new ArrayList<>(results.length);
+    Collections.addAll(ranking, results);
+    Collections.sort(ranking, new Comparator<Result>() {
+      @Override
+      public int compare(Result a, Result b) {
+        if (a.isValidated() != b.isValidated()) {
+          return a.isValidated() ? -1 : 1;
+        }
+        if (a.isHealthy() != b.isHealthy()) {
+          return a.isHealthy() ? -1 : 1;
+        }
+        if (a.isComplete != b.isComplete) {
+          return a.isComplete ? -1 : 1;
+        }
+        if (a.rttMs != b.rttMs) {
+          return a.rttMs < 0 ? 1 : b.rttMs < 0 ? -1 : Long.compare(a.rttMs, b.rttMs);
+        }
+        return a.index - b.index;
+      }
+    });
+    return ranking;
+  }
+
+  // Checks the server at |index|. Validates the credentials when the cipher is supported
+  // in-process, and the reachability of the server otherwise or if validation fails. The checks
+  // fail as soon as |cancellation| is cancelled.
+  private static Result check(int index, JSONObject config, CancellationToken cancellation) {
+    final Result result = new Result(index);
+    ShadowsocksLocalServer server = null;
+    try {
+      final String host = config.getString("host");
+      final int port = config.getInt("port");
+      final String method = config.getString("method");
+      if (AeadCipher.isSupported(method)) {
+        server = new ShadowsocksLocalServer(new InetSocketAddress(host, port),
+            AeadCipher.create(method, config.getString("password")));
+        final InetSocketAddress localAddress =
+            server.start(new InetSocketAddress(Shadowsocks.LOCAL_SERVER_ADDRESS, 0));
+        final long startMs = System.currentTimeMillis();
+        result.areCredentialsValid = ShadowsocksConnectivity.validateServerCredentials(
+            Shadowsocks.LOCAL_SERVER_ADDRESS, localAddress.getPort(), cancellation);
+        if (result.areCredentialsValid) {
+          result.rttMs = System.currentTimeMillis() - startMs;
+          result.isReachable = true;
+        }
+      }
+      if (!result.isReachable) {
+        final long startMs = System.currentTimeMillis();
+        result.isReachable =
+            ShadowsocksConnectivity.measureServerRtt(host, port, cancellation) >= 0;
+        if (result.isReachable && result.areCredentialsValid == null) {
+          result.rttMs = System.currentTimeMillis() - startMs;
+        }
+      }
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Invalid server configuration", e);
+      result.isConfigValid = false;
+    } finally {
+      if (server != null) {
+        server.stop();
+      }
+    }
+    result.isComplete = true;
+    LOG.info(String.format(Locale.ROOT, "Server %d: reachable %b, credentials %s, rtt %d ms",
+        index, result.isReachable, result.areCredentialsValid, result.rttMs));
+    return result;
+  }
+}
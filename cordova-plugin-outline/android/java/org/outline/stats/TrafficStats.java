@@ -0,0 +1,165 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.stats;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Traffic counters of the active connection, updated on the data path. Bytes and sessions are
+ * counted by the local Shadowsocks server; packets are counted on the TUN device by the userspace
+ * tun2socks engine, and remain zero with the native engine. Keeps a rolling window of periodic
+ * samples, from which clients can compute rates.
+ */
+public class TrafficStats {
+  // Number of samples in the rolling window.
+  public static final int WINDOW_SIZE = 60;
+
+  /**
+   * Counter striped across cells indexed by thread, so that threads updating it concurrently do
+   * not contend. Cells are padded to fill a cache line. Reads sum the cells and are not atomic with
+   * respect to concurrent updates.
+   */
+  public static class Counter {
+    private static final int CELL_STRIDE = 8;  // 64 bytes.
+    private static final int STRIPES = getStripeCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * CELL_STRIDE);
+
+    public void add(long delta) {
+      final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+      cells.getAndAdd(stripe * CELL_STRIDE, delta);
+    }
+
+    public void increment() {
+      add(1);
+    }
+
+    public void decrement() {
+      add(-1);
+    }
+
+    public long get() {
+      long sum = 0;
+      for (int i = 0; i < STRIPES; ++i) {
+        sum += cells.get(i * CELL_STRIDE);
+      }
+      return sum;
+    }
+
+    void reset() {
+      for (int i = 0; i < STRIPES; ++i) {
+        cells.set(i * CELL_STRIDE, 0);
+      }
+    }
+
+    // Returns the power of two closest to twice the number of processors, up to 16.
+    private static int getStripeCount() {
+      final int target = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+      int stripes = 1;
+      while (stripes < target) {
+        stripes <<= 1;
+      }
+      return stripes;
+    }
+  }
+
+  /* Values of the counters at a point in time. */
+  public static class Snapshot {
+    public final long timestampMs;
+    public final long bytesUp;
+    public final long bytesDown;
+    public final long packetsUp;
+    public final long packetsDown;
+    public final long tcpSessions;
+    public final long udpSessions;
+    public final long connectFailures;
+
+    Snapshot(TrafficStats stats) {
+      timestampMs = System.currentTimeMillis();
+      bytesUp = stats.bytesUp.get();
+      bytesDown = stats.bytesDown.get();
+      packetsUp = stats.packetsUp.get();
+      packetsDown = stats.packetsDown.get();
+      tcpSessions = stats.tcpSessions.get();
+      udpSessions = stats.udpSessions.get();
+      connectFailures = stats.connectFailures.get();
+    }
+
+    public JSONObject toJson() throws JSONException {
+      return new JSONObject()
+          .put("timestampMs", timestampMs)
+          .put("bytesUp", bytesUp)
+          .put("bytesDown", bytesDown)
+          .put("packetsUp", packetsUp)
+          .put("packetsDown", packetsDown)
+          .put("tcpSessions", tcpSessions)
+          .put("udpSessions", udpSessions)
+          .put("connectFailures", connectFailures);
+    }
+  }
+
+  // Payload bytes sent to and received from remote servers.
+  public final Counter bytesUp = new Counter();
+  public final Counter bytesDown = new Counter();
+  // IP packets read from and written to the TUN device.
+  public final Counter packetsUp = new Counter();
+  public final Counter packetsDown = new Counter();
+  // Sessions currently open.
+  public final Counter tcpSessions = new Counter();
+  public final Counter udpSessions = new Counter();
+  // Failed attempts to connect to the remote server.
+  public final Counter connectFailures = new Counter();
+
+  // Oldest sample first. Guarded by |this|.
+  private final ArrayDeque<Snapshot> window = new ArrayDeque<>(WINDOW_SIZE);
+
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /* Adds a sample to the rolling window, evicting the oldest one if full. */
+  public synchronized void sample() {
+    if (window.size() == WINDOW_SIZE) {
+      window.pollFirst();
+    }
+    window.addLast(snapshot());
+  }
+
+  /**
+   * Resets the cumulative counters and the window for a new connection. Session counts are kept,
+   * since the sessions they track are closed independently.
+   */
+  public synchronized void reset() {
+    bytesUp.reset();
+    bytesDown.reset();
+    packetsUp.reset();
+    packetsDown.reset();
+    connectFailures.reset();
+    window.clear();
+  }
+
+  /* Returns the current values of the counters, and the window of samples as |window|. */
+  public synchronized JSONObject toJson() throws JSONException {
+    final JSONArray samples = new JSONArray();
+    for (Snapshot sample : window) {
+      samples.put(sample.toJson());
+    }
+    return snapshot().toJson().put("window", samples);
+  }
+}
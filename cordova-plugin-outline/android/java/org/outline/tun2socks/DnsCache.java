@@ -0,0 +1,354 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of DNS responses, keyed by question. Cached responses expire with the
+ * smallest TTL of their answers; negative responses (NXDOMAIN or no data) expire with the SOA
+ * minimum of their authority section. Identical queries are coalesced while the first one is in
+ * flight. Thread-safe.
+ */
+class DnsCache {
+  private static final Charset KEY_CHARSET = Charset.forName("ISO-8859-1");
+  private static final int MAX_ENTRIES = 1024;
+  private static final int MAX_TTL_SECONDS = 60 * 60;
+  private static final int MAX_NEGATIVE_TTL_SECONDS = 5 * 60;
+  private static final int DEFAULT_NEGATIVE_TTL_SECONDS = 60;
+  // Queries in flight for longer are presumed lost; the next identical query is sent upstream.
+  private static final int IN_FLIGHT_TIMEOUT_MS = 1000;
+  private static final int MAX_IN_FLIGHT_QUERIES = 256;
+  private static final int HEADER_SIZE = 12;
+  private static final int FLAG_RESPONSE = 0x8000;
+  private static final int FLAG_TRUNCATED = 0x0200;
+  private static final int OPCODE_MASK = 0x7800;
+  private static final int RCODE_MASK = 0x000F;
+  private static final int RCODE_NOERROR = 0;
+  private static final int RCODE_NXDOMAIN = 3;
+  private static final int TYPE_SOA = 6;
+  private static final int TYPE_OPT = 41;
+
+  /* Receives the response to a coalesced query. Called on the thread that received it. */
+  interface Listener {
+    void onResponse(byte[] response);
+  }
+
+  private static class Entry {
+    final byte[] response;
+    final long storedMs;
+    final long expiresMs;
+
+    Entry(byte[] response, long storedMs, long expiresMs) {
+      this.response = response;
+      this.storedMs = storedMs;
+      this.expiresMs = expiresMs;
+    }
+  }
+
+  private static class InFlightQuery {
+    final long startedMs;
+    // ID of the query sent upstream.
+    final int id;
+    final List<Listener> listeners = new ArrayList<>();
+    final List<Integer> ids = new ArrayList<>();
+
+    InFlightQuery(long startedMs, int id) {
+      this.startedMs = startedMs;
+      this.id = id;
+    }
+
+    // Returns whether a query with |id| is already part of this one, in which case a query with the
+    // same ID is a retransmission by its client.
+    boolean hasId(int id) {
+      return this.id == id || ids.contains(id);
+    }
+  }
+
+  private final Map<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true /* access order */) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+          return size() > MAX_ENTRIES;
+        }
+      };
+  private final Map<String, InFlightQuery> inFlightQueries = new HashMap<>();
+
+  /**
+   * Returns the cached response to |query|, with the query's ID and the TTLs reduced by the time
+   * spent in the cache, or null if there is no fresh response.
+   */
+  byte[] get(byte[] query) {
+    final String key = getQuestionKey(query, false);
+    if (key == null) {
+      return null;
+    }
+    final Entry entry;
+    final long nowMs = System.currentTimeMillis();
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (nowMs >= entry.expiresMs) {
+        entries.remove(key);
+        return null;
+      }
+    }
+    final byte[] response = entry.response.clone();
+    setId(response, getId(query));
+    adjustTtls(response, (int) ((nowMs - entry.storedMs) / 1000));
+    return response;
+  }
+
+  /**
+   * Coalesces |query| with an identical query in flight, in which case |listener| receives its
+   * response. Otherwise records |query| as in flight. Retransmissions of a query already in flight,
+   * which have the same ID, are not coalesced, so that a lost upstream query or response is retried
+   * as soon as the client retries.
+   *
+   * @return whether the query was coalesced; if false, the caller must send it upstream and
+   *     report the response through |onResponse|, or the failure through |onFailure|.
+   */
+  synchronized boolean join(byte[] query, Listener listener) {
+    final String key = getQuestionKey(query, false);
+    if (key == null) {
+      return false;
+    }
+    final long nowMs = System.currentTimeMillis();
+    final int id = getId(query);
+    final InFlightQuery inFlight = inFlightQueries.get(key);
+    if (inFlight != null && nowMs - inFlight.startedMs <= IN_FLIGHT_TIMEOUT_MS) {
+      if (inFlight.hasId(id)) {
+        return false;
+      }
+      inFlight.listeners.add(listener);
+      inFlight.ids.add(id);
+      return true;
+    }
+    if (inFlight == null && inFlightQueries.size() >= MAX_IN_FLIGHT_QUERIES) {
+      removeStaleQueries(nowMs);
+      if (inFlightQueries.size() >= MAX_IN_FLIGHT_QUERIES) {
+        return false;  // Send it upstream without coalescing.
+      }
+    }
+    inFlightQueries.put(key, new InFlightQuery(nowMs, id));
+    return false;
+  }
+
+  /**
+   * Forgets |query|, which was sent upstream after |join| returned false, because it failed. The
+   * queries coalesced with it are left for their clients to retry.
+   */
+  synchronized void onFailure(byte[] query) {
+    final String key = getQuestionKey(query, false);
+    if (key == null) {
+      return;
+    }
+    final InFlightQuery inFlight = inFlightQueries.get(key);
+    if (inFlight != null && inFlight.id == getId(query)) {
+      inFlightQueries.remove(key);
+    }
+  }
+
+  /* Caches |response| if cacheable, and delivers it to the listeners of coalesced queries. */
+  void onResponse(byte[] response) {
+    final String key = getQuestionKey(response, true);
+    if (key == null) {
+      return;
+    }
+    final long nowMs = System.currentTimeMillis();
+    final int ttlSeconds = getCacheTtl(response);
+    final InFlightQuery inFlight;
+    synchronized (this) {
+      if (ttlSeconds > 0) {
+        entries.put(key, new Entry(response.clone(), nowMs, nowMs + ttlSeconds * 1000L));
+      }
+      inFlight = inFlightQueries.remove(key);
+    }
+    if (inFlight == null) {
+      return;
+    }
+    for (int i = 0; i < inFlight.listeners.size(); ++i) {
+      final byte[] copy = response.clone();
+      setId(copy, inFlight.ids.get(i));
+      inFlight.listeners.get(i).onResponse(copy);
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    inFlightQueries.clear();
+  }
+
+  // Removes the queries that have been in flight for longer than |IN_FLIGHT_TIMEOUT_MS|.
+  private void removeStaleQueries(long nowMs) {
+    final Iterator<InFlightQuery> iterator = inFlightQueries.values().iterator();
+    while (iterator.hasNext()) {
+      if (nowMs - iterator.next().startedMs > IN_FLIGHT_TIMEOUT_MS) {
+        iterator.remove();
+      }
+    }
+  }
+
+  // Returns a key for the single question of |message|, with the name lowercased, or null if the
+  // message is not a standard query, or a response, as given by |isResponse|.
+  private static String getQuestionKey(byte[] message, boolean isResponse) {
+    if (message.length < HEADER_SIZE || readShort(message, 4) != 1) {
+      return null;
+    }
+    final int flags = readShort(message, 2);
+    if (((flags & FLAG_RESPONSE) != 0) != isResponse || (flags & OPCODE_MASK) != 0) {
+      return null;
+    }
+    int end = HEADER_SIZE;
+    // Names in the question are never compressed.
+    while (end < message.length && message[end] != 0) {
+      final int labelSize = message[end] & 0xFF;
+      if ((labelSize & 0xC0) != 0) {
+        return null;
+      }
+      end += 1 + labelSize;
+    }
+    end += 1 + 4;  // Root label, type and class.
+    if (end > message.length) {
+      return null;
+    }
+    final byte[] question = new byte[end - HEADER_SIZE];
+    System.arraycopy(message, HEADER_SIZE, question, 0, question.length);
+    for (int i = 0; i < question.length - 4; ++i) {
+      if (question[i] >= 'A' && question[i] <= 'Z') {
+        question[i] += 'a' - 'A';
+      }
+    }
+    return new String(question, KEY_CHARSET);
+  }
+
+  // Returns for how long |response| may be cached, in seconds, or 0 if it must not be cached.
+  private static int getCacheTtl(byte[] response) {
+    final int flags = readShort(response, 2);
+    if ((flags & FLAG_TRUNCATED) != 0) {
+      return 0;
+    }
+    final int rcode = flags & RCODE_MASK;
+    if (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN) {
+      return 0;
+    }
+    final int answerCount = readShort(response, 6);
+    final int authorityCount = readShort(response, 8);
+    int offset = skipQuestion(response);
+    long minAnswerTtl = Long.MAX_VALUE;
+    long negativeTtl = DEFAULT_NEGATIVE_TTL_SECONDS;
+    for (int i = 0; i < answerCount + authorityCount && offset > 0; ++i) {
+      final int typeOffset = skipName(response, offset);
+      if (typeOffset < 0 || typeOffset + 10 > response.length) {
+        return 0;
+      }
+      final int type = readShort(response, typeOffset);
+      final long ttl = readInt(response, typeOffset + 4) & 0xFFFFFFFFL;
+      final int rdataSize = readShort(response, typeOffset + 8);
+      offset = typeOffset + 10 + rdataSize;
+      if (offset > response.length) {
+        return 0;
+      }
+      if (i < answerCount) {
+        minAnswerTtl = Math.min(minAnswerTtl, ttl);
+      } else if (type == TYPE_SOA && rdataSize >= 4) {
+        // The SOA MINIMUM field is the last of its record data.
+        final long minimum = readInt(response, offset - 4) & 0xFFFFFFFFL;
+        negativeTtl = Math.min(ttl, minimum);
+      }
+    }
+    if (rcode == RCODE_NOERROR && answerCount > 0) {
+      return (int) Math.min(minAnswerTtl, MAX_TTL_SECONDS);
+    }
+    return (int) Math.min(negativeTtl, MAX_NEGATIVE_TTL_SECONDS);
+  }
+
+  // Reduces the TTL of all resource records in |response| by |elapsedSeconds|.
+  private static void adjustTtls(byte[] response, int elapsedSeconds) {
+    if (elapsedSeconds <= 0) {
+      return;
+    }
+    final int recordCount =
+        readShort(response, 6) + readShort(response, 8) + readShort(response, 10);
+    int offset = skipQuestion(response);
+    for (int i = 0; i < recordCount && offset > 0; ++i) {
+      final int typeOffset = skipName(response, offset);
+      if (typeOffset < 0 || typeOffset + 10 > response.length) {
+        return;
+      }
+      // The TTL field of OPT pseudo-records holds flags.
+      if (readShort(response, typeOffset) != TYPE_OPT) {
+        final long ttl = readInt(response, typeOffset + 4) & 0xFFFFFFFFL;
+        writeInt(response, typeOffset + 4, (int) Math.max(0, ttl - elapsedSeconds));
+      }
+      offset = typeOffset + 10 + readShort(response, typeOffset + 8);
+    }
+  }
+
+  private static int skipQuestion(byte[] message) {
+    final int offset = skipName(message, HEADER_SIZE);
+    return offset < 0 ? -1 : offset + 4;
+  }
+
+  // Returns the offset that follows the possibly compressed name at |offset|, or -1 if malformed.
+  private static int skipName(byte[] message, int offset) {
+    while (offset < message.length) {
+      final int labelSize = message[offset] & 0xFF;
+      if (labelSize == 0) {
+        return offset + 1;
+      }
+      if ((labelSize & 0xC0) == 0xC0) {
+        return offset + 2 <= message.length ? offset + 2 : -1;
+      }
+      if ((labelSize & 0xC0) != 0) {
+        return -1;
+      }
+      offset += 1 + labelSize;
+    }
+    return -1;
+  }
+
+  private static int getId(byte[] message) {
+    return readShort(message, 0);
+  }
+
+  private static void setId(byte[] message, int id) {
+    message[0] = (byte) (id >> 8);
+    message[1] = (byte) id;
+  }
+
+  private static int readShort(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+  }
+
+  private static int readInt(byte[] buffer, int offset) {
+    return (readShort(buffer, offset) << 16) | readShort(buffer, offset + 2);
+  }
+
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >> 24);
+    buffer[offset + 1] = (byte) (value >> 16);
+    buffer[offset + 2] = (byte) (value >> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+}
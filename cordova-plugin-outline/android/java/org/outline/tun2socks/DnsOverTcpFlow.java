@@ -0,0 +1,230 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Resolves the DNS queries of a UDP flow over a SOCKS TCP connection to the tunnel's DNS resolver,
+ * for servers that do not support UDP forwarding. Answers are sent back to the client as UDP
+ * datagrams from the flow's original destination.
+ */
+class DnsOverTcpFlow extends Flow {
+  private static final int STATE_CONNECTING = 0;
+  private static final int STATE_GREETING = 1;
+  private static final int STATE_REQUEST = 2;
+  private static final int STATE_CONNECTED = 3;
+  private static final int IDLE_TIMEOUT_MS = 10 * 1000;
+  private static final int LENGTH_SIZE = 2;
+
+  private final SocketChannel socks;
+  private final SelectionKey selectionKey;
+  private final InetSocketAddress resolverAddress;
+  // Length-prefixed queries pending to be written. Kept in write mode.
+  private final ByteBuffer queries;
+  // Length-prefixed answers read from the resolver. Kept in write mode.
+  private final ByteBuffer answers;
+  // Queries sent upstream, or pending to be, that have not been answered yet.
+  private final List<byte[]> unansweredQueries = new ArrayList<>();
+  private int state = STATE_CONNECTING;
+  private long lastActivityMs;
+
+  DnsOverTcpFlow(FlowKey key, EventLoop loop) throws IOException {
+    super(key, loop);
+    resolverAddress = loop.engine.getDnsResolverAddress();
+    lastActivityMs = System.currentTimeMillis();
+    queries = loop.flowBuffers.acquire();
+    answers = loop.flowBuffers.acquire();
+    socks = SocketChannel.open();
+    try {
+      socks.configureBlocking(false);
+      socks.connect(loop.engine.getSocksServerAddress());
+      selectionKey = socks.register(loop.selector, SelectionKey.OP_CONNECT, this);
+    } catch (IOException e) {
+      onClose();
+      throw e;
+    }
+  }
+
+  @Override
+  void onPacket(IpPacket packet) throws IOException {
+    if (packet.payloadSize == 0) {
+      return;
+    }
+    lastActivityMs = System.currentTimeMillis();
+    final ByteBuffer payload = packet.buffer;
+    payload.limit(packet.payloadOffset + packet.payloadSize).position(packet.payloadOffset);
+    final byte[] query = new byte[packet.payloadSize];
+    payload.get(query);
+    if (resolveFromDnsCache(query)) {
+      return;
+    }
+    if (queries.remaining() < LENGTH_SIZE + query.length) {
+      loop.engine.getDnsCache().onFailure(query);
+      return;  // Dropped; the client will retry.
+    }
+    queries.putShort((short) query.length).put(query);
+    unansweredQueries.add(query);
+    if (state == STATE_CONNECTED) {
+      flushQueries();
+    }
+  }
+
+  @Override
+  void onSelected(SelectionKey selectionKey) throws IOException {
+    if (selectionKey.isConnectable()) {
+      if (!socks.finishConnect()) {
+        return;
+      }
+      writeHandshake(Socks5.GREETING);
+      state = STATE_GREETING;
+      selectionKey.interestOps(SelectionKey.OP_READ);
+    }
+    if (selectionKey.isValid() && selectionKey.isReadable()) {
+      if (socks.read(answers) < 0) {
+        close();
+        return;
+      }
+      if (state == STATE_GREETING) {
+        onGreetingReply();
+      } else if (state == STATE_REQUEST) {
+        onConnectReply();
+      }
+      if (state == STATE_CONNECTED) {
+        deliverAnswers();
+      }
+    }
+    if (state == STATE_CONNECTED && selectionKey.isValid()) {
+      flushQueries();
+    }
+  }
+
+  private void onGreetingReply() throws IOException {
+    if (answers.position() < Socks5.METHOD_REPLY_SIZE) {
+      return;
+    }
+    if (answers.get(1) != Socks5.METHOD_NOAUTH) {
+      throw new IOException("SOCKS authentication method rejected");
+    }
+    answers.clear();
+    writeHandshake(Socks5.connectRequest(
+        resolverAddress.getAddress().getAddress(), resolverAddress.getPort()));
+    state = STATE_REQUEST;
+  }
+
+  private void onConnectReply() throws IOException {
+    final int replySize = Socks5.replySize(answers);
+    if (replySize < 0) {
+      return;
+    }
+    if (answers.get(1) != Socks5.REPLY_SUCCEEDED) {
+      throw new IOException("SOCKS connect failed");
+    }
+    answers.flip();
+    answers.position(replySize);
+    answers.compact();
+    state = STATE_CONNECTED;
+  }
+
+  private void writeHandshake(byte[] message) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(message);
+    socks.write(buffer);
+    if (buffer.hasRemaining()) {
+      throw new IOException("Failed to write SOCKS handshake");
+    }
+  }
+
+  private void flushQueries() throws IOException {
+    if (queries.position() > 0) {
+      queries.flip();
+      socks.write(queries);
+      queries.compact();
+    }
+    int ops = SelectionKey.OP_READ;
+    if (queries.position() > 0) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    selectionKey.interestOps(ops);
+  }
+
+  // Sends each complete answer to the client as a UDP datagram. Fails if an answer can never fit
+  // in |answers|, since reading into a full buffer would make no progress.
+  private void deliverAnswers() throws IOException {
+    answers.flip();
+    while (answers.remaining() >= LENGTH_SIZE) {
+      final int size = answers.getShort(answers.position()) & 0xFFFF;
+      if (LENGTH_SIZE + size > answers.capacity()) {
+        throw new IOException("DNS answer too large: " + size);
+      }
+      if (answers.remaining() < LENGTH_SIZE + size) {
+        break;
+      }
+      answers.position(answers.position() + LENGTH_SIZE);
+      final byte[] response = new byte[size];
+      answers.get(response);
+      loop.engine.getDnsCache().onResponse(response);
+      removeUnansweredQuery(response);
+      sendDatagram(ByteBuffer.wrap(response));
+      lastActivityMs = System.currentTimeMillis();
+    }
+    answers.compact();
+  }
+
+  // Removes the query answered by |response|, which has the same ID.
+  private void removeUnansweredQuery(byte[] response) {
+    if (response.length < 2) {
+      return;
+    }
+    final Iterator<byte[]> iterator = unansweredQueries.iterator();
+    while (iterator.hasNext()) {
+      final byte[] query = iterator.next();
+      if (query.length >= 2 && query[0] == response[0] && query[1] == response[1]) {
+        iterator.remove();
+        return;
+      }
+    }
+  }
+
+  @Override
+  void onTimer(long nowMs) {
+    if (nowMs - lastActivityMs > IDLE_TIMEOUT_MS) {
+      close();
+    }
+  }
+
+  @Override
+  void onClose() {
+    try {
+      socks.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+    // Let the next identical queries go upstream instead of waiting for these.
+    final DnsCache dnsCache = loop.engine.getDnsCache();
+    for (byte[] query : unansweredQueries) {
+      dnsCache.onFailure(query);
+    }
+    unansweredQueries.clear();
+    loop.flowBuffers.release(queries);
+    loop.flowBuffers.release(answers);
+  }
+}
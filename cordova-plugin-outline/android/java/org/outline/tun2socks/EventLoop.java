@@ -0,0 +1,250 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.outline.shadowsocks.BufferPool;
+
+/**
+ * Single-threaded loop that owns a subset of the flows. Processes packets dispatched by the TUN
+ * reader and the readiness of the flows' SOCKS channels.
+ */
+class EventLoop implements Runnable {
+  private static final Logger LOG = Logger.getLogger(EventLoop.class.getName());
+  private static final int TIMER_INTERVAL_MS = 200;
+  private static final int FLOW_BUFFER_SIZE = 0xFFFF;
+  private static final int MAX_POOLED_FLOW_BUFFERS = 64;
+  private static final int OUT_BUFFER_SIZE = 0xFFFF + IpPacket.IPV6_HEADER_SIZE;
+
+  final UserspaceTun2Socks engine;
+  final Selector selector;
+  // Buffers for flows to stage stream data. Capacity fits the maximum unscaled TCP window.
+  final BufferPool flowBuffers = new BufferPool(FLOW_BUFFER_SIZE, MAX_POOLED_FLOW_BUFFERS);
+  // Scratch buffers to build outgoing packets and SOCKS datagrams.
+  final ByteBuffer outBuffer = ByteBuffer.allocateDirect(OUT_BUFFER_SIZE);
+  final ByteBuffer scratchBuffer = ByteBuffer.allocateDirect(OUT_BUFFER_SIZE);
+  private final ConcurrentLinkedQueue<ByteBuffer> inbox = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final Map<FlowKey, Flow> flows = new HashMap<>();
+  private final IpPacket packet = new IpPacket();
+  private final String name;
+  private Thread thread;
+  private volatile boolean isRunning = false;
+
+  EventLoop(UserspaceTun2Socks engine, String name) throws IOException {
+    this.engine = engine;
+    this.name = name;
+    this.selector = Selector.open();
+  }
+
+  void start() {
+    isRunning = true;
+    thread = new Thread(this, name);
+    thread.start();
+  }
+
+  void stop() {
+    isRunning = false;
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* Queues a packet read from the TUN device. Call |wakeup| after posting a batch. */
+  void post(ByteBuffer packet) {
+    inbox.offer(packet);
+  }
+
+  void wakeup() {
+    selector.wakeup();
+  }
+
+  /* Runs |task| on the loop's thread. */
+  void execute(Runnable task) {
+    tasks.offer(task);
+    selector.wakeup();
+  }
+
+  void removeFlow(Flow flow) {
+    if (flows.get(flow.key) == flow) {
+      flows.remove(flow.key);
+    }
+  }
+
+  /* Writes the packet in |outBuffer| to the TUN device. */
+  void writeOutBuffer() {
+    engine.writeToTun(outBuffer);
+  }
+
+  @Override
+  public void run() {
+    long lastTimerMs = System.currentTimeMillis();
+    try {
+      while (isRunning) {
+        selector.select(TIMER_INTERVAL_MS);
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          handleSelectedKey(key);
+        }
+        ByteBuffer buffer;
+        while ((buffer = inbox.poll()) != null) {
+          handlePacket(buffer);
+          engine.releasePacketBuffer(buffer);
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to run a loop task", e);
+          }
+        }
+        final long nowMs = System.currentTimeMillis();
+        if (nowMs - lastTimerMs >= TIMER_INTERVAL_MS) {
+          lastTimerMs = nowMs;
+          for (Flow flow : new ArrayList<>(flows.values())) {
+            try {
+              flow.onTimer(nowMs);
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Unexpected error in flow timer", e);
+              abort(flow);
+            }
+          }
+        }
+      }
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "Event loop failed", e);
+      if (isRunning) {
+        engine.onFailure();
+      }
+    } finally {
+      for (Flow flow : new ArrayList<>(flows.values())) {
+        flow.close();
+      }
+      ByteBuffer buffer;
+      while ((buffer = inbox.poll()) != null) {
+        engine.releasePacketBuffer(buffer);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  private void handleSelectedKey(SelectionKey key) {
+    final Flow flow = (Flow) key.attachment();
+    if (!key.isValid() || flow.isClosed()) {
+      return;
+    }
+    try {
+      flow.onSelected(key);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Closing flow", e);
+      abort(flow);
+    } catch (RuntimeException e) {
+      // A bug or an unexpected channel state in one flow must not take down the loop's others.
+      LOG.log(Level.WARNING, "Unexpected error in flow", e);
+      abort(flow);
+    }
+  }
+
+  private void handlePacket(ByteBuffer buffer) {
+    if (!packet.parse(buffer)) {
+      return;
+    }
+    final FlowKey key = packet.flowKey();
+    Flow flow = flows.get(key);
+    try {
+      if (flow == null) {
+        flow = createFlow(key);
+        if (flow == null) {
+          return;
+        }
+        flows.put(key, flow);
+      }
+      flow.onPacket(packet);
+    } catch (IOException e) {
+      LOG.log(Level.FINE, "Failed to handle packet", e);
+      if (flow != null) {
+        flow.close();
+      }
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unexpected error handling packet", e);
+      if (flow != null) {
+        abort(flow);
+      }
+    }
+  }
+
+  // Closes |flow| after a failure, resetting the client's connection if it is TCP. The flow is
+  // removed from the loop even if resetting or closing it fails.
+  private void abort(Flow flow) {
+    try {
+      if (flow instanceof TcpFlow) {
+        ((TcpFlow) flow).reset();
+      } else {
+        flow.close();
+      }
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Failed to reset flow", e);
+      try {
+        flow.close();
+      } catch (RuntimeException closeError) {
+        LOG.log(Level.WARNING, "Failed to close flow", closeError);
+      }
+      removeFlow(flow);
+    }
+  }
+
+  // Returns a new flow for the parsed packet, or null if the packet does not start a flow.
+  private Flow createFlow(FlowKey key) throws IOException {
+    if (packet.protocol == IpPacket.PROTOCOL_TCP) {
+      if ((packet.tcpFlags & IpPacket.TCP_FLAG_RST) != 0) {
+        return null;
+      }
+      if ((packet.tcpFlags & (IpPacket.TCP_FLAG_SYN | IpPacket.TCP_FLAG_ACK))
+          != IpPacket.TCP_FLAG_SYN) {
+        TcpFlow.sendReset(this, key, packet);
+        return null;
+      }
+      return new TcpFlow(key, this, packet);
+    }
+    if (packet.destinationPort == UserspaceTun2Socks.DNS_PORT
+        && engine.getDnsResolverAddress() != null && !engine.isUdpEnabled()) {
+      return new DnsOverTcpFlow(key, this);
+    }
+    if (engine.isUdpEnabled()) {
+      return new UdpFlow(key, this);
+    }
+    return null;
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+/* A TCP or UDP flow terminated by the userspace stack. Flows are only accessed by their loop. */
+abstract class Flow implements Closeable {
+  final FlowKey key;
+  final EventLoop loop;
+  private boolean isClosed = false;
+
+  Flow(FlowKey key, EventLoop loop) {
+    this.key = key;
+    this.loop = loop;
+  }
+
+  /* Handles a packet from the TUN device. |packet| is only valid for the duration of the call. */
+  abstract void onPacket(IpPacket packet) throws IOException;
+
+  /* Handles readiness of the flow's SOCKS channel. */
+  abstract void onSelected(SelectionKey selectionKey) throws IOException;
+
+  /* Called periodically to drive timeouts and retransmissions. */
+  abstract void onTimer(long nowMs);
+
+  /* Releases the flow's resources. */
+  abstract void onClose();
+
+  /* Sends the remaining bytes of |payload| to the client as a UDP datagram from the destination. */
+  void sendDatagram(ByteBuffer payload) {
+    final ByteBuffer out = loop.outBuffer;
+    out.clear();
+    IpPacket.buildUdp(out, key, payload);
+    loop.writeOutBuffer();
+  }
+
+  /**
+   * Answers the DNS |query| from the engine's cache, or coalesces it with an identical query in
+   * flight.
+   *
+   * @return whether the query was handled; if false, the flow must send it upstream and report the
+   *     response to the cache.
+   */
+  boolean resolveFromDnsCache(byte[] query) {
+    final DnsCache dnsCache = loop.engine.getDnsCache();
+    final byte[] response = dnsCache.get(query);
+    if (response != null) {
+      sendDatagram(ByteBuffer.wrap(response));
+      return true;
+    }
+    return dnsCache.join(query, new DnsCache.Listener() {
+      @Override
+      public void onResponse(final byte[] response) {
+        loop.execute(new Runnable() {
+          @Override
+          public void run() {
+            if (!isClosed()) {
+              sendDatagram(ByteBuffer.wrap(response));
+            }
+          }
+        });
+      }
+    });
+  }
+
+  boolean isClosed() {
+    return isClosed;
+  }
+
+  @Override
+  public final void close() {
+    if (isClosed) {
+      return;
+    }
+    isClosed = true;
+    onClose();
+    loop.removeFlow(this);
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/* Identifies a TCP or UDP flow by its protocol and endpoints, as seen from the TUN client. */
+class FlowKey {
+  final int protocol;
+  final byte[] sourceAddress;
+  final int sourcePort;
+  final byte[] destinationAddress;
+  final int destinationPort;
+  private final int hashCode;
+
+  FlowKey(int protocol, byte[] sourceAddress, int sourcePort, byte[] destinationAddress,
+      int destinationPort) {
+    this.protocol = protocol;
+    this.sourceAddress = sourceAddress;
+    this.sourcePort = sourcePort;
+    this.destinationAddress = destinationAddress;
+    this.destinationPort = destinationPort;
+    int hash = protocol;
+    hash = 31 * hash + Arrays.hashCode(sourceAddress);
+    hash = 31 * hash + sourcePort;
+    hash = 31 * hash + Arrays.hashCode(destinationAddress);
+    hash = 31 * hash + destinationPort;
+    this.hashCode = hash;
+  }
+
+  boolean isIpv6() {
+    return sourceAddress.length == 16;
+  }
+
+  // Returns the destination as a socket address.
+  InetSocketAddress destination() {
+    try {
+      return new InetSocketAddress(InetAddress.getByAddress(destinationAddress), destinationPort);
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);  // Unreachable; the address has a valid length.
+    }
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof FlowKey)) {
+      return false;
+    }
+    final FlowKey key = (FlowKey) other;
+    return protocol == key.protocol && sourcePort == key.sourcePort
+        && destinationPort == key.destinationPort
+        && Arrays.equals(sourceAddress, key.sourceAddress)
+        && Arrays.equals(destinationAddress, key.destinationAddress);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
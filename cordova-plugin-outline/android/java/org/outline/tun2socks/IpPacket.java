@@ -0,0 +1,349 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Parses and builds IPv4 and IPv6 packets carrying TCP or UDP. A parser instance is reused across
+ * packets to avoid allocations on the packet path; it is not thread-safe.
+ */
+class IpPacket {
+  static final int PROTOCOL_TCP = 6;
+  static final int PROTOCOL_UDP = 17;
+  static final int IPV4_HEADER_SIZE = 20;
+  static final int IPV6_HEADER_SIZE = 40;
+  static final int TCP_HEADER_SIZE = 20;
+  static final int UDP_HEADER_SIZE = 8;
+  static final int TCP_FLAG_FIN = 0x01;
+  static final int TCP_FLAG_SYN = 0x02;
+  static final int TCP_FLAG_RST = 0x04;
+  static final int TCP_FLAG_PSH = 0x08;
+  static final int TCP_FLAG_ACK = 0x10;
+  private static final int TCP_OPTION_END = 0;
+  private static final int TCP_OPTION_NOP = 1;
+  private static final int TCP_OPTION_MSS = 2;
+  private static final int DEFAULT_TTL = 64;
+  private static final int IPV4_FLAG_DONT_FRAGMENT = 0x4000;
+  private static final int IPV4_FRAGMENT_MASK = 0x3FFF;
+  // Returned by |flowHash| for packets that do not belong to a flow.
+  static final int NO_FLOW_HASH = -1;
+
+  // Parsed fields of the current packet. Offsets are absolute positions in the buffer.
+  ByteBuffer buffer;
+  boolean isIpv6;
+  int protocol;
+  final byte[] sourceAddress = new byte[16];
+  final byte[] destinationAddress = new byte[16];
+  int addressSize;
+  int sourcePort;
+  int destinationPort;
+  int transportOffset;
+  int payloadOffset;
+  int payloadSize;
+  // TCP fields.
+  int sequenceNumber;
+  int acknowledgementNumber;
+  int tcpFlags;
+  int window;
+  int mss;
+
+  /**
+   * Parses the packet between |buffer|'s position and limit.
+   *
+   * @return whether the packet is a well-formed, unfragmented TCP or UDP packet.
+   */
+  boolean parse(ByteBuffer buffer) {
+    this.buffer = buffer;
+    final int start = buffer.position();
+    final int length = buffer.remaining();
+    if (length < IPV4_HEADER_SIZE) {
+      return false;
+    }
+    final int version = (buffer.get(start) & 0xFF) >> 4;
+    int packetEnd;
+    if (version == 4) {
+      isIpv6 = false;
+      final int headerSize = (buffer.get(start) & 0x0F) * 4;
+      final int totalLength = buffer.getShort(start + 2) & 0xFFFF;
+      if (headerSize < IPV4_HEADER_SIZE || totalLength < headerSize || totalLength > length
+          || (buffer.getShort(start + 6) & IPV4_FRAGMENT_MASK) != 0) {
+        return false;
+      }
+      protocol = buffer.get(start + 9) & 0xFF;
+      addressSize = 4;
+      copyAddress(start + 12, sourceAddress);
+      copyAddress(start + 16, destinationAddress);
+      transportOffset = start + headerSize;
+      packetEnd = start + totalLength;
+    } else if (version == 6) {
+      isIpv6 = true;
+      if (length < IPV6_HEADER_SIZE) {
+        return false;
+      }
+      // Extension headers are not supported.
+      protocol = buffer.get(start + 6) & 0xFF;
+      addressSize = 16;
+      copyAddress(start + 8, sourceAddress);
+      copyAddress(start + 24, destinationAddress);
+      transportOffset = start + IPV6_HEADER_SIZE;
+      packetEnd = transportOffset + (buffer.getShort(start + 4) & 0xFFFF);
+      if (packetEnd > start + length) {
+        return false;
+      }
+    } else {
+      return false;
+    }
+    if (protocol == PROTOCOL_TCP) {
+      return parseTcp(packetEnd);
+    } else if (protocol == PROTOCOL_UDP) {
+      return parseUdp(packetEnd);
+    }
+    return false;
+  }
+
+  private boolean parseTcp(int packetEnd) {
+    if (packetEnd - transportOffset < TCP_HEADER_SIZE) {
+      return false;
+    }
+    sourcePort = buffer.getShort(transportOffset) & 0xFFFF;
+    destinationPort = buffer.getShort(transportOffset + 2) & 0xFFFF;
+    sequenceNumber = buffer.getInt(transportOffset + 4);
+    acknowledgementNumber = buffer.getInt(transportOffset + 8);
+    final int headerSize = ((buffer.get(transportOffset + 12) & 0xFF) >> 4) * 4;
+    tcpFlags = buffer.get(transportOffset + 13) & 0x3F;
+    window = buffer.getShort(transportOffset + 14) & 0xFFFF;
+    if (headerSize < TCP_HEADER_SIZE || transportOffset + headerSize > packetEnd) {
+      return false;
+    }
+    mss = 0;
+    if ((tcpFlags & TCP_FLAG_SYN) != 0) {
+      parseTcpOptions(transportOffset + TCP_HEADER_SIZE, transportOffset + headerSize);
+    }
+    payloadOffset = transportOffset + headerSize;
+    payloadSize = packetEnd - payloadOffset;
+    return true;
+  }
+
+  private void parseTcpOptions(int offset, int end) {
+    while (offset < end) {
+      final int kind = buffer.get(offset) & 0xFF;
+      if (kind == TCP_OPTION_END) {
+        return;
+      } else if (kind == TCP_OPTION_NOP) {
+        ++offset;
+        continue;
+      }
+      if (offset + 1 >= end) {
+        return;
+      }
+      final int optionSize = buffer.get(offset + 1) & 0xFF;
+      if (optionSize < 2) {
+        return;
+      }
+      if (kind == TCP_OPTION_MSS && optionSize == 4 && offset + 4 <= end) {
+        mss = buffer.getShort(offset + 2) & 0xFFFF;
+      }
+      offset += optionSize;
+    }
+  }
+
+  private boolean parseUdp(int packetEnd) {
+    if (packetEnd - transportOffset < UDP_HEADER_SIZE) {
+      return false;
+    }
+    sourcePort = buffer.getShort(transportOffset) & 0xFFFF;
+    destinationPort = buffer.getShort(transportOffset + 2) & 0xFFFF;
+    final int udpLength = buffer.getShort(transportOffset + 4) & 0xFFFF;
+    if (udpLength < UDP_HEADER_SIZE || transportOffset + udpLength > packetEnd) {
+      return false;
+    }
+    payloadOffset = transportOffset + UDP_HEADER_SIZE;
+    payloadSize = udpLength - UDP_HEADER_SIZE;
+    return true;
+  }
+
+  private void copyAddress(int offset, byte[] address) {
+    for (int i = 0; i < addressSize; ++i) {
+      address[i] = buffer.get(offset + i);
+    }
+  }
+
+  /**
+   * Returns a hash of the transport endpoints of the packet between |buffer|'s position and limit,
+   * without fully parsing it. Packets of the same flow have the same hash. Returns |NO_FLOW_HASH|
+   * if the packet is too short to carry the transport ports, in which case it cannot be parsed.
+   */
+  static int flowHash(ByteBuffer buffer) {
+    final int start = buffer.position();
+    final int length = buffer.remaining();
+    if (length < 1) {
+      return NO_FLOW_HASH;
+    }
+    final int version = (buffer.get(start) & 0xFF) >> 4;
+    int hash;
+    int headerSize;
+    if (version == 4) {
+      headerSize = (buffer.get(start) & 0x0F) * 4;
+      if (headerSize < IPV4_HEADER_SIZE || length < headerSize + 4) {
+        return NO_FLOW_HASH;
+      }
+      hash = buffer.getInt(start + 12) ^ buffer.getInt(start + 16);
+    } else if (version == 6) {
+      headerSize = IPV6_HEADER_SIZE;
+      if (length < headerSize + 4) {
+        return NO_FLOW_HASH;
+      }
+      hash = buffer.getInt(start + 20) ^ buffer.getInt(start + 36);
+    } else {
+      return NO_FLOW_HASH;
+    }
+    hash = 31 * hash + buffer.getInt(start + headerSize);
+    return hash & Integer.MAX_VALUE;
+  }
+
+  // Returns the flow key of the parsed packet, from the client's point of view.
+  FlowKey flowKey() {
+    return new FlowKey(protocol, Arrays.copyOf(sourceAddress, addressSize), sourcePort,
+        Arrays.copyOf(destinationAddress, addressSize), destinationPort);
+  }
+
+  // Building
+
+  /**
+   * Writes a TCP segment from |key|'s destination to its source into |out|, starting at its
+   * position, followed by |payloadSize| bytes from |payload|'s position. On return |out| is flipped
+   * and ready to be written to the TUN device.
+   *
+   * @param mss maximum segment size to advertise, or 0 to omit the option.
+   */
+  static void buildTcp(ByteBuffer out, FlowKey key, int sequenceNumber, int acknowledgementNumber,
+      int flags, int window, int mss, ByteBuffer payload, int payloadSize) {
+    final int start = out.position();
+    final int optionsSize = mss > 0 ? 4 : 0;
+    final int segmentSize = TCP_HEADER_SIZE + optionsSize + payloadSize;
+    final int transportOffset = putIpHeader(out, key, PROTOCOL_TCP, segmentSize);
+    out.putShort((short) key.destinationPort)
+        .putShort((short) key.sourcePort)
+        .putInt(sequenceNumber)
+        .putInt(acknowledgementNumber)
+        .put((byte) (((TCP_HEADER_SIZE + optionsSize) / 4) << 4))
+        .put((byte) flags)
+        .putShort((short) Math.min(window, 0xFFFF))
+        .putShort((short) 0)  // Checksum
+        .putShort((short) 0);  // Urgent pointer
+    if (mss > 0) {
+      out.put((byte) TCP_OPTION_MSS).put((byte) 4).putShort((short) mss);
+    }
+    if (payloadSize > 0) {
+      final int position = payload.position();
+      final int limit = payload.limit();
+      payload.limit(position + payloadSize);
+      out.put(payload);
+      payload.limit(limit);
+      payload.position(position);
+    }
+    out.putShort(transportOffset + 16,
+        transportChecksum(out, key, PROTOCOL_TCP, transportOffset, segmentSize));
+    out.limit(out.position());
+    out.position(start);
+  }
+
+  /**
+   * Writes a UDP datagram from |key|'s destination to its source into |out|, with the remaining
+   * bytes of |payload|. On return |out| is flipped and ready to be written to the TUN device.
+   */
+  static void buildUdp(ByteBuffer out, FlowKey key, ByteBuffer payload) {
+    final int start = out.position();
+    final int datagramSize = UDP_HEADER_SIZE + payload.remaining();
+    final int transportOffset = putIpHeader(out, key, PROTOCOL_UDP, datagramSize);
+    out.putShort((short) key.destinationPort)
+        .putShort((short) key.sourcePort)
+        .putShort((short) datagramSize)
+        .putShort((short) 0)  // Checksum
+        .put(payload);
+    short checksum = transportChecksum(out, key, PROTOCOL_UDP, transportOffset, datagramSize);
+    out.putShort(transportOffset + 6, checksum == 0 ? (short) 0xFFFF : checksum);
+    out.limit(out.position());
+    out.position(start);
+  }
+
+  // Writes an IP header with |key|'s destination as the source address, and vice versa. Returns
+  // the offset of the transport header.
+  private static int putIpHeader(ByteBuffer out, FlowKey key, int protocol, int transportSize) {
+    final int start = out.position();
+    if (key.isIpv6()) {
+      out.putInt(6 << 28)
+          .putShort((short) transportSize)
+          .put((byte) protocol)
+          .put((byte) DEFAULT_TTL)
+          .put(key.destinationAddress)
+          .put(key.sourceAddress);
+    } else {
+      out.put((byte) 0x45)
+          .put((byte) 0)
+          .putShort((short) (IPV4_HEADER_SIZE + transportSize))
+          .putShort((short) 0)  // Identification; unused since fragmentation is disabled.
+          .putShort((short) IPV4_FLAG_DONT_FRAGMENT)
+          .put((byte) DEFAULT_TTL)
+          .put((byte) protocol)
+          .putShort((short) 0)  // Checksum
+          .put(key.destinationAddress)
+          .put(key.sourceAddress);
+      out.putShort(start + 10, finishChecksum(sum(out, start, IPV4_HEADER_SIZE, 0)));
+    }
+    return out.position();
+  }
+
+  // Computes the TCP or UDP checksum, including the IP pseudo-header.
+  private static short transportChecksum(
+      ByteBuffer buffer, FlowKey key, int protocol, int offset, int length) {
+    int sum = sumAddress(key.sourceAddress, 0);
+    sum = sumAddress(key.destinationAddress, sum);
+    sum += protocol + length;
+    return finishChecksum(sum(buffer, offset, length, sum));
+  }
+
+  private static int sumAddress(byte[] address, int sum) {
+    for (int i = 0; i < address.length; i += 2) {
+      sum += ((address[i] & 0xFF) << 8) | (address[i + 1] & 0xFF);
+    }
+    return sum;
+  }
+
+  // Adds the 16-bit words of |length| bytes at |offset| to |sum|.
+  private static int sum(ByteBuffer buffer, int offset, int length, int sum) {
+    final int end = offset + length;
+    int i = offset;
+    for (; i + 1 < end; i += 2) {
+      sum += buffer.getShort(i) & 0xFFFF;
+      if (sum > 0x3FFFFFFF) {
+        sum = (sum & 0xFFFF) + (sum >>> 16);  // Fold early to avoid overflow.
+      }
+    }
+    if (i < end) {
+      sum += (buffer.get(i) & 0xFF) << 8;
+    }
+    return sum;
+  }
+
+  private static short finishChecksum(int sum) {
+    while ((sum >>> 16) != 0) {
+      sum = (sum & 0xFFFF) + (sum >>> 16);
+    }
+    return (short) ~sum;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* SOCKS5 (RFC 1928) messages exchanged with the local Shadowsocks server. */
+class Socks5 {
+  static final byte VERSION = 0x5;
+  static final byte METHOD_NOAUTH = 0;
+  static final byte CMD_CONNECT = 0x1;
+  static final byte ATYP_IPV4 = 1;
+  static final byte ATYP_DOMAINNAME = 3;
+  static final byte ATYP_IPV6 = 4;
+  static final byte REPLY_SUCCEEDED = 0;
+  static final int METHOD_REPLY_SIZE = 2;
+  static final int UDP_HEADER_PREFIX_SIZE = 3;  // RSV (2) + FRAG (1)
+  static final byte[] GREETING = {VERSION, 1, METHOD_NOAUTH};
+
+  private Socks5() {}
+
+  /* Returns a CONNECT request to |address|:|port|. */
+  static byte[] connectRequest(byte[] address, int port) {
+    final ByteBuffer request = ByteBuffer.allocate(3 + addressSize(address));
+    request.put(VERSION).put(CMD_CONNECT).put((byte) 0);
+    putAddress(request, address, port);
+    return request.array();
+  }
+
+  /* Returns the UDP request header for datagrams to |address|:|port|. */
+  static byte[] udpHeader(byte[] address, int port) {
+    final ByteBuffer header = ByteBuffer.allocate(UDP_HEADER_PREFIX_SIZE + addressSize(address));
+    header.put(new byte[UDP_HEADER_PREFIX_SIZE]);
+    putAddress(header, address, port);
+    return header.array();
+  }
+
+  /**
+   * Returns the size of the reply at the start of |buffer|, which is in write mode, or -1 if the
+   * reply is incomplete.
+   *
+   * @throws IOException if the reply has an unsupported address type.
+   */
+  static int replySize(ByteBuffer buffer) throws IOException {
+    if (buffer.position() < 5) {
+      return -1;
+    }
+    final int addressSize = addressSize(buffer, 3);
+    if (addressSize < 0) {
+      throw new IOException("Malformed SOCKS reply");
+    }
+    final int size = 3 + addressSize;
+    return buffer.position() >= size ? size : -1;
+  }
+
+  /* Returns the size of the SOCKS address at |offset| in |buffer|: ATYP | ADDR | PORT, or -1 if the
+   * address type is unsupported. */
+  static int addressSize(ByteBuffer buffer, int offset) {
+    switch (buffer.get(offset)) {
+      case ATYP_IPV4:
+        return 1 + 4 + 2;
+      case ATYP_IPV6:
+        return 1 + 16 + 2;
+      case ATYP_DOMAINNAME:
+        return 1 + 1 + (buffer.get(offset + 1) & 0xFF) + 2;
+      default:
+        return -1;
+    }
+  }
+
+  private static int addressSize(byte[] address) {
+    return 1 + address.length + 2;
+  }
+
+  private static void putAddress(ByteBuffer buffer, byte[] address, int port) {
+    buffer.put(address.length == 4 ? ATYP_IPV4 : ATYP_IPV6).put(address).putShort((short) port);
+  }
+}
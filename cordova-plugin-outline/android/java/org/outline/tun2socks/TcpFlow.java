@@ -0,0 +1,414 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * Terminates a TCP connection from the TUN device and relays it through a SOCKS CONNECT to the
+ * local Shadowsocks server. Implements the subset of TCP needed towards a local peer: in-order
+ * delivery with a receive window bounded by the SOCKS write buffer, MSS negotiation, and
+ * go-back-N retransmission on timeout. Window scaling and SACK are not negotiated.
+ */
+class TcpFlow extends Flow {
+  private static final int STATE_SOCKS_CONNECTING = 0;
+  private static final int STATE_SOCKS_GREETING = 1;
+  private static final int STATE_SOCKS_REQUEST = 2;
+  private static final int STATE_SYN_RECEIVED = 3;
+  private static final int STATE_ESTABLISHED = 4;
+  private static final int SOCKS_TIMEOUT_MS = 30 * 1000;
+  private static final int RETRANSMISSION_TIMEOUT_MS = 1000;
+  private static final int MAX_RETRANSMISSIONS = 8;
+  private static final int DEFAULT_MSS = 536;
+  private static final Random random = new Random();
+
+  private final SocketChannel socks;
+  private final SelectionKey selectionKey;
+  private final ByteBuffer handshakeBuffer = ByteBuffer.allocate(32);
+  // Data received from the client, pending to be written to SOCKS. Kept in write mode; its free
+  // space is the advertised receive window.
+  private ByteBuffer toSocks;
+  // Data read from SOCKS, starting at the first unacknowledged byte. Kept in write mode.
+  private ByteBuffer fromSocks;
+  private final long createdMs;
+  private final int mss;
+  private int state = STATE_SOCKS_CONNECTING;
+  private int receiveNext;  // Next sequence number expected from the client.
+  private int sendUnacknowledged;  // Oldest sequence number not acknowledged by the client.
+  private int sendNext;  // Next sequence number to send.
+  private int clientWindow = 0;
+  private int advertisedWindow = 0;
+  private long lastTransmissionMs = 0;
+  private int retransmissions = 0;
+  private boolean isClientFinReceived = false;
+  private boolean isSocksEof = false;
+  private boolean isFinSent = false;
+  private boolean isFinAcknowledged = false;
+  private boolean isSocksShutdown = false;
+
+  TcpFlow(FlowKey key, EventLoop loop, IpPacket syn) throws IOException {
+    super(key, loop);
+    createdMs = System.currentTimeMillis();
+    receiveNext = syn.sequenceNumber + 1;
+    sendUnacknowledged = random.nextInt();
+    sendNext = sendUnacknowledged;
+    final int headersSize = (key.isIpv6() ? IpPacket.IPV6_HEADER_SIZE : IpPacket.IPV4_HEADER_SIZE)
+        + IpPacket.TCP_HEADER_SIZE;
+    final int localMss = loop.engine.getMtu() - headersSize;
+    mss = Math.min(localMss, syn.mss > 0 ? syn.mss : DEFAULT_MSS);
+    toSocks = loop.flowBuffers.acquire();
+    fromSocks = loop.flowBuffers.acquire();
+    socks = SocketChannel.open();
+    try {
+      socks.configureBlocking(false);
+      socks.socket().setTcpNoDelay(true);
+      socks.connect(loop.engine.getSocksServerAddress());
+      selectionKey = socks.register(loop.selector, SelectionKey.OP_CONNECT, this);
+    } catch (IOException e) {
+      onClose();
+      throw e;
+    }
+  }
+
+  @Override
+  void onPacket(IpPacket packet) throws IOException {
+    final int flags = packet.tcpFlags;
+    if ((flags & IpPacket.TCP_FLAG_RST) != 0) {
+      close();
+      return;
+    }
+    if ((flags & IpPacket.TCP_FLAG_SYN) != 0) {
+      // Retransmitted SYN; answer again if the SYN-ACK may have been lost.
+      if (state == STATE_SYN_RECEIVED && packet.sequenceNumber + 1 == receiveNext) {
+        sendSynAck();
+      }
+      return;
+    }
+    if (state < STATE_SYN_RECEIVED) {
+      return;  // The client cannot send anything else before receiving our SYN-ACK.
+    }
+    if ((flags & IpPacket.TCP_FLAG_ACK) != 0) {
+      onAcknowledgement(packet.acknowledgementNumber, packet.window);
+    }
+    boolean shouldAcknowledge = false;
+    if (packet.payloadSize > 0) {
+      shouldAcknowledge = true;
+      if (packet.sequenceNumber == receiveNext && !isClientFinReceived) {
+        final int size = Math.min(packet.payloadSize, toSocks.remaining());
+        final ByteBuffer payload = packet.buffer;
+        final int limit = payload.limit();
+        payload.limit(packet.payloadOffset + size).position(packet.payloadOffset);
+        toSocks.put(payload);
+        payload.limit(limit);
+        receiveNext += size;
+      }
+    }
+    if ((flags & IpPacket.TCP_FLAG_FIN) != 0) {
+      shouldAcknowledge = true;
+      if (!isClientFinReceived && packet.sequenceNumber + packet.payloadSize == receiveNext) {
+        isClientFinReceived = true;
+        receiveNext += 1;
+      }
+    }
+    if (state == STATE_ESTABLISHED) {
+      flushToSocks();
+      if (sendPendingData()) {
+        shouldAcknowledge = false;  // The data segments carry the acknowledgement.
+      }
+    }
+    if (shouldAcknowledge) {
+      sendSegment(IpPacket.TCP_FLAG_ACK, sendNext, null, 0);
+    }
+    updateInterestOps();
+    closeIfDone();
+  }
+
+  private void onAcknowledgement(int acknowledgementNumber, int window) {
+    clientWindow = window;
+    if (state == STATE_SYN_RECEIVED && acknowledgementNumber == sendNext) {
+      state = STATE_ESTABLISHED;
+      sendUnacknowledged = sendNext;
+      retransmissions = 0;
+      return;
+    }
+    if (acknowledgementNumber - sendUnacknowledged <= 0
+        || acknowledgementNumber - sendNext > 0) {
+      return;  // Duplicate or invalid acknowledgement.
+    }
+    int acknowledgedData = acknowledgementNumber - sendUnacknowledged;
+    if (isFinSent && acknowledgementNumber == sendNext) {
+      isFinAcknowledged = true;
+      acknowledgedData -= 1;
+    }
+    if (acknowledgedData > 0) {
+      fromSocks.flip();
+      fromSocks.position(acknowledgedData);
+      fromSocks.compact();
+    }
+    sendUnacknowledged = acknowledgementNumber;
+    lastTransmissionMs = System.currentTimeMillis();
+    retransmissions = 0;
+  }
+
+  @Override
+  void onSelected(SelectionKey key) throws IOException {
+    if (key.isConnectable()) {
+      if (!socks.finishConnect()) {
+        return;
+      }
+      writeHandshake(Socks5.GREETING);
+      state = STATE_SOCKS_GREETING;
+    }
+    if (key.isValid() && key.isReadable()) {
+      if (state < STATE_SYN_RECEIVED) {
+        readHandshake();
+      } else {
+        readSocks();
+      }
+    }
+    if (!isClosed() && key.isValid() && key.isWritable()) {
+      flushToSocks();
+      // Let the client know that the window opened up.
+      if (advertisedWindow < mss && toSocks.remaining() >= mss) {
+        sendSegment(IpPacket.TCP_FLAG_ACK, sendNext, null, 0);
+      }
+    }
+    if (!isClosed()) {
+      updateInterestOps();
+      closeIfDone();
+    }
+  }
+
+  private void readHandshake() throws IOException {
+    if (socks.read(handshakeBuffer) < 0) {
+      throw new IOException("SOCKS server closed the connection");
+    }
+    if (state == STATE_SOCKS_GREETING) {
+      if (handshakeBuffer.position() < Socks5.METHOD_REPLY_SIZE) {
+        return;
+      }
+      if (handshakeBuffer.get(1) != Socks5.METHOD_NOAUTH) {
+        throw new IOException("SOCKS authentication method rejected");
+      }
+      consumeHandshake(Socks5.METHOD_REPLY_SIZE);
+      writeHandshake(Socks5.connectRequest(key.destinationAddress, key.destinationPort));
+      state = STATE_SOCKS_REQUEST;
+    } else if (state == STATE_SOCKS_REQUEST) {
+      final int replySize = Socks5.replySize(handshakeBuffer);
+      if (replySize < 0) {
+        return;
+      }
+      if (handshakeBuffer.get(1) != Socks5.REPLY_SUCCEEDED) {
+        throw new IOException("SOCKS connect failed");
+      }
+      // Data the server sent right after the reply belongs to the connection.
+      consumeHandshake(replySize);
+      handshakeBuffer.flip();
+      fromSocks.put(handshakeBuffer);
+      handshakeBuffer.clear();
+      state = STATE_SYN_RECEIVED;
+      sendSynAck();
+    }
+  }
+
+  // Discards the first |size| bytes of |handshakeBuffer|, keeping any bytes read past them.
+  private void consumeHandshake(int size) {
+    handshakeBuffer.flip();
+    handshakeBuffer.position(size);
+    handshakeBuffer.compact();
+  }
+
+  // Writes a short handshake message. The socket buffer is empty, so the write always completes.
+  private void writeHandshake(byte[] message) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(message);
+    socks.write(buffer);
+    if (buffer.hasRemaining()) {
+      throw new IOException("Failed to write SOCKS handshake");
+    }
+  }
+
+  private void readSocks() throws IOException {
+    if (socks.read(fromSocks) < 0) {
+      isSocksEof = true;
+    }
+    if (state == STATE_ESTABLISHED) {
+      sendPendingData();
+    }
+  }
+
+  private void flushToSocks() throws IOException {
+    if (toSocks.position() > 0) {
+      toSocks.flip();
+      socks.write(toSocks);
+      toSocks.compact();
+    }
+    if (isClientFinReceived && toSocks.position() == 0 && !isSocksShutdown) {
+      isSocksShutdown = true;
+      socks.socket().shutdownOutput();
+    }
+  }
+
+  // Sends the data read from SOCKS that fits in the client's window, followed by a FIN once SOCKS
+  // reaches EOF. Returns whether any segment was sent.
+  private boolean sendPendingData() {
+    if (isFinSent) {
+      return false;
+    }
+    boolean didSend = false;
+    final int buffered = fromSocks.position();
+    int unsentOffset = sendNext - sendUnacknowledged;
+    while (unsentOffset < buffered) {
+      final int window = clientWindow - unsentOffset;
+      if (window <= 0) {
+        break;
+      }
+      final int size = Math.min(Math.min(mss, buffered - unsentOffset), window);
+      fromSocks.position(unsentOffset);
+      sendSegment(IpPacket.TCP_FLAG_ACK | IpPacket.TCP_FLAG_PSH, sendNext, fromSocks, size);
+      sendNext += size;
+      unsentOffset += size;
+      didSend = true;
+    }
+    fromSocks.position(buffered);
+    if (isSocksEof && unsentOffset == buffered) {
+      sendSegment(IpPacket.TCP_FLAG_ACK | IpPacket.TCP_FLAG_FIN, sendNext, null, 0);
+      sendNext += 1;
+      isFinSent = true;
+      didSend = true;
+    }
+    if (didSend) {
+      lastTransmissionMs = System.currentTimeMillis();
+    }
+    return didSend;
+  }
+
+  private void sendSynAck() {
+    sendSegment(IpPacket.TCP_FLAG_SYN | IpPacket.TCP_FLAG_ACK, sendUnacknowledged, null, 0);
+    sendNext = sendUnacknowledged + 1;
+    lastTransmissionMs = System.currentTimeMillis();
+  }
+
+  private void sendSegment(int flags, int sequenceNumber, ByteBuffer payload, int payloadSize) {
+    advertisedWindow = toSocks.remaining();
+    final ByteBuffer out = loop.outBuffer;
+    out.clear();
+    IpPacket.buildTcp(out, key, sequenceNumber, receiveNext, flags, advertisedWindow,
+        (flags & IpPacket.TCP_FLAG_SYN) != 0 ? mss : 0, payload, payloadSize);
+    loop.writeOutBuffer();
+  }
+
+  @Override
+  void onTimer(long nowMs) {
+    if (state < STATE_SYN_RECEIVED) {
+      if (nowMs - createdMs > SOCKS_TIMEOUT_MS) {
+        reset();
+      }
+      return;
+    }
+    final boolean hasUnacknowledged = state == STATE_SYN_RECEIVED || sendNext != sendUnacknowledged;
+    if (!hasUnacknowledged || nowMs - lastTransmissionMs < RETRANSMISSION_TIMEOUT_MS) {
+      return;
+    }
+    if (++retransmissions > MAX_RETRANSMISSIONS) {
+      reset();
+      return;
+    }
+    if (state == STATE_SYN_RECEIVED) {
+      sendSynAck();
+      return;
+    }
+    // Go back to the first unacknowledged byte.
+    sendNext = sendUnacknowledged;
+    if (isFinSent && !isFinAcknowledged) {
+      isFinSent = false;
+    }
+    sendPendingData();
+    lastTransmissionMs = nowMs;
+    updateInterestOps();
+  }
+
+  private void updateInterestOps() {
+    if (isClosed() || !selectionKey.isValid()) {
+      return;
+    }
+    int ops = 0;
+    if (state == STATE_SOCKS_CONNECTING) {
+      ops = SelectionKey.OP_CONNECT;
+    } else if (state < STATE_SYN_RECEIVED) {
+      ops = SelectionKey.OP_READ;
+    } else {
+      if (!isSocksEof && fromSocks.hasRemaining()) {
+        ops |= SelectionKey.OP_READ;
+      }
+      if (toSocks.position() > 0) {
+        ops |= SelectionKey.OP_WRITE;
+      }
+    }
+    selectionKey.interestOps(ops);
+  }
+
+  private void closeIfDone() {
+    if (isClientFinReceived && isSocksShutdown && isFinAcknowledged) {
+      close();
+    }
+  }
+
+  /* Aborts the connection, notifying the client with a reset. */
+  void reset() {
+    if (isClosed()) {
+      return;
+    }
+    final ByteBuffer out = loop.outBuffer;
+    out.clear();
+    IpPacket.buildTcp(out, key, sendNext, receiveNext,
+        IpPacket.TCP_FLAG_RST | IpPacket.TCP_FLAG_ACK, 0, 0, null, 0);
+    loop.writeOutBuffer();
+    close();
+  }
+
+  @Override
+  void onClose() {
+    try {
+      socks.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+    loop.flowBuffers.release(toSocks);
+    loop.flowBuffers.release(fromSocks);
+  }
+
+  /* Replies with a reset to a segment that does not belong to any connection. */
+  static void sendReset(EventLoop loop, FlowKey key, IpPacket packet) {
+    final int flags = packet.tcpFlags;
+    final ByteBuffer out = loop.outBuffer;
+    out.clear();
+    if ((flags & IpPacket.TCP_FLAG_ACK) != 0) {
+      IpPacket.buildTcp(out, key, packet.acknowledgementNumber, 0, IpPacket.TCP_FLAG_RST, 0, 0,
+          null, 0);
+    } else {
+      int segmentLength = packet.payloadSize;
+      if ((flags & (IpPacket.TCP_FLAG_SYN | IpPacket.TCP_FLAG_FIN)) != 0) {
+        segmentLength += 1;
+      }
+      IpPacket.buildTcp(out, key, 0, packet.sequenceNumber + segmentLength,
+          IpPacket.TCP_FLAG_RST | IpPacket.TCP_FLAG_ACK, 0, 0, null, 0);
+    }
+    loop.writeOutBuffer();
+  }
+}
@@ -15,7 +15,6 @@
 package org.outline.tun2socks;
 
 import java.util.logging.Level;
-import java.util.Locale;
 import java.util.logging.Logger;
 
 public class Tun2SocksJni {
@@ -64,7 +63,11 @@ public class Tun2SocksJni {
 
   /** Called from tun2socks when an event is to be logged. */
   public static void log(int level, String channel, String msg) {
-    LOG.log(bLogToJavaLogLevel(level), String.format(Locale.ROOT, "(%s): %s", channel, msg));
+    // Called on the tun2socks thread; leave the formatting to the log handler.
+    final Level javaLevel = bLogToJavaLogLevel(level);
+    if (LOG.isLoggable(javaLevel)) {
+      LOG.log(javaLevel, "({0}): {1}", new Object[] {channel, msg});
+    }
   }
 
   static {
@@ -0,0 +1,134 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Relays the datagrams of a UDP flow through the SOCKS server's UDP relay. The local Shadowsocks
+ * server accepts SOCKS UDP datagrams on its TCP port without a prior UDP ASSOCIATE request. DNS
+ * queries are redirected to the tunnel's DNS resolver.
+ */
+class UdpFlow extends Flow {
+  private static final int IDLE_TIMEOUT_MS = 60 * 1000;
+  private static final int DNS_IDLE_TIMEOUT_MS = 10 * 1000;
+
+  private final DatagramChannel channel;
+  private final SelectionKey selectionKey;
+  private final byte[] header;
+  private final boolean isDns;
+  private final int idleTimeoutMs;
+  private long lastActivityMs;
+
+  UdpFlow(FlowKey key, EventLoop loop) throws IOException {
+    super(key, loop);
+    InetSocketAddress target = key.destination();
+    final InetSocketAddress dnsResolverAddress = loop.engine.getDnsResolverAddress();
+    isDns = key.destinationPort == UserspaceTun2Socks.DNS_PORT && dnsResolverAddress != null;
+    if (isDns) {
+      target = dnsResolverAddress;
+    }
+    header = Socks5.udpHeader(target.getAddress().getAddress(), target.getPort());
+    idleTimeoutMs = isDns ? DNS_IDLE_TIMEOUT_MS : IDLE_TIMEOUT_MS;
+    lastActivityMs = System.currentTimeMillis();
+    channel = DatagramChannel.open();
+    try {
+      channel.configureBlocking(false);
+      channel.connect(loop.engine.getSocksServerAddress());
+      selectionKey = channel.register(loop.selector, SelectionKey.OP_READ, this);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  void onPacket(IpPacket packet) throws IOException {
+    final ByteBuffer payload = packet.buffer;
+    payload.limit(packet.payloadOffset + packet.payloadSize).position(packet.payloadOffset);
+    lastActivityMs = System.currentTimeMillis();
+    byte[] query = null;
+    if (isDns) {
+      query = new byte[packet.payloadSize];
+      payload.duplicate().get(query);
+      if (resolveFromDnsCache(query)) {
+        return;
+      }
+    }
+    final ByteBuffer datagram = loop.scratchBuffer;
+    datagram.clear();
+    datagram.put(header);
+    datagram.put(payload);
+    datagram.flip();
+    try {
+      channel.write(datagram);
+    } catch (IOException e) {
+      if (query != null) {
+        loop.engine.getDnsCache().onFailure(query);
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  void onSelected(SelectionKey selectionKey) throws IOException {
+    final ByteBuffer datagram = loop.scratchBuffer;
+    while (true) {
+      datagram.clear();
+      if (channel.read(datagram) <= 0) {
+        break;
+      }
+      datagram.flip();
+      // Strip the SOCKS header; replies always come from the flow's destination.
+      if (datagram.remaining() <= Socks5.UDP_HEADER_PREFIX_SIZE + 1) {
+        continue;
+      }
+      final int addressSize = Socks5.addressSize(datagram, Socks5.UDP_HEADER_PREFIX_SIZE);
+      final int headerSize = Socks5.UDP_HEADER_PREFIX_SIZE + addressSize;
+      if (addressSize < 0 || datagram.remaining() < headerSize) {
+        continue;
+      }
+      datagram.position(headerSize);
+      if (isDns) {
+        final byte[] response = new byte[datagram.remaining()];
+        datagram.duplicate().get(response);
+        loop.engine.getDnsCache().onResponse(response);
+      }
+      sendDatagram(datagram);
+      lastActivityMs = System.currentTimeMillis();
+    }
+  }
+
+  @Override
+  void onTimer(long nowMs) {
+    if (nowMs - lastActivityMs > idleTimeoutMs) {
+      close();
+    }
+  }
+
+  @Override
+  void onClose() {
+    selectionKey.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Ignore
+    }
+  }
+}
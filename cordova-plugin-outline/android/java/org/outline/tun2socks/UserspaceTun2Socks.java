@@ -0,0 +1,320 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.tun2socks;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.outline.stats.TrafficStats;
+
+/**
+ * Userspace alternative to |Tun2SocksJni|. Reads IP packets from the TUN device in batches,
+ * terminates their TCP and UDP flows, and relays them through a SOCKS server. Flows are sharded
+ * by their endpoints across a small pool of event loops, so each flow is handled by one thread.
+ */
+public class UserspaceTun2Socks {
+  private static final Logger LOG = Logger.getLogger(UserspaceTun2Socks.class.getName());
+  static final int DNS_PORT = 53;
+  private static final int MAX_EVENT_LOOPS = 4;
+  private static final int READ_BATCH_SIZE = 32;
+  private static final int MAX_PACKET_BUFFERS = 512;
+
+  /* Receives the failure of a running engine. */
+  public interface Listener {
+    /**
+     * Called once, from one of the engine's threads, when the engine stops processing traffic
+     * without being stopped. The engine must still be stopped to release its resources. Must not
+     * block.
+     */
+    void onFailure();
+  }
+
+  private final ParcelFileDescriptor tunFd;
+  private final FileChannel tunInput;
+  private final FileChannel tunOutput;
+  private final int mtu;
+  private final InetSocketAddress socksServerAddress;
+  private final InetSocketAddress dnsResolverAddress;
+  private volatile boolean isUdpEnabled;
+  private final TrafficStats stats;
+  private final Listener listener;
+  private final DnsCache dnsCache = new DnsCache();
+  // Packet buffers shared between the reader and the event loops.
+  private final ArrayBlockingQueue<ByteBuffer> packetBuffers =
+      new ArrayBlockingQueue<>(MAX_PACKET_BUFFERS);
+  private final AtomicInteger allocatedPacketBuffers = new AtomicInteger();
+  private final EventLoop[] loops;
+  private FileDescriptor[] wakeupPipe;
+  private Thread readerThread;
+  private volatile boolean isRunning = false;
+  private final AtomicBoolean hasFailed = new AtomicBoolean();
+
+  /**
+   * Constructor.
+   *
+   * @param vpnInterface TUN device of the VPN. The engine uses a duplicate of the file descriptor,
+   *     so the caller retains ownership of |vpnInterface|.
+   * @param mtu maximum transmission unit of the VPN, in bytes.
+   * @param socksServerAddress SOCKS server to relay TCP and UDP traffic.
+   * @param dnsResolverAddress DNS resolver to which DNS queries are redirected, or null to relay
+   *     them to their original destination.
+   * @param isUdpEnabled whether the SOCKS server relays UDP. When disabled, DNS queries are
+   *     resolved over TCP and other UDP traffic is dropped.
+   * @param stats counters updated with the packets read from and written to the TUN device.
+   * @param listener notified if the engine fails while running.
+   * @throws IOException if the file descriptor cannot be duplicated.
+   */
+  public UserspaceTun2Socks(ParcelFileDescriptor vpnInterface, int mtu,
+      InetSocketAddress socksServerAddress, InetSocketAddress dnsResolverAddress,
+      boolean isUdpEnabled, TrafficStats stats, Listener listener) throws IOException {
+    this.tunFd = vpnInterface.dup();
+    this.tunInput = new FileInputStream(tunFd.getFileDescriptor()).getChannel();
+    this.tunOutput = new FileOutputStream(tunFd.getFileDescriptor()).getChannel();
+    this.mtu = mtu;
+    this.socksServerAddress = socksServerAddress;
+    this.dnsResolverAddress = dnsResolverAddress;
+    this.isUdpEnabled = isUdpEnabled;
+    this.stats = stats;
+    this.listener = listener;
+    final int numLoops = Math.min(MAX_EVENT_LOOPS, Runtime.getRuntime().availableProcessors());
+    this.loops = new EventLoop[Math.max(1, numLoops)];
+  }
+
+  /* Starts processing the TUN device's traffic. Returns immediately. */
+  public synchronized void start() throws IOException {
+    if (isRunning) {
+      throw new IllegalStateException("Already started");
+    }
+    try {
+      wakeupPipe = Os.pipe();
+    } catch (ErrnoException e) {
+      throw new IOException(e);
+    }
+    for (int i = 0; i < loops.length; ++i) {
+      loops[i] = new EventLoop(this, String.format(Locale.ROOT, "tun2socks-loop-%d", i));
+    }
+    isRunning = true;
+    for (EventLoop loop : loops) {
+      loop.start();
+    }
+    readerThread = new Thread("tun2socks-reader") {
+      @Override
+      public void run() {
+        readTun();
+      }
+    };
+    readerThread.start();
+    LOG.info(String.format(Locale.ROOT, "Userspace tun2socks started with %d loops", loops.length));
+  }
+
+  /* Stops processing traffic and releases the engine's resources. Blocks until all threads exit. */
+  public synchronized void stop() {
+    if (!isRunning) {
+      return;
+    }
+    isRunning = false;
+    try {
+      Os.write(wakeupPipe[1], new byte[1], 0, 1);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Failed to wake up the TUN reader", e);
+    }
+    try {
+      readerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (EventLoop loop : loops) {
+      loop.stop();
+    }
+    try {
+      Os.close(wakeupPipe[0]);
+      Os.close(wakeupPipe[1]);
+    } catch (ErrnoException e) {
+      // Ignore
+    }
+    try {
+      tunFd.close();
+    } catch (IOException e) {
+      LOG.warning("Failed to close the TUN file descriptor");
+    }
+    LOG.info("Userspace tun2socks stopped");
+  }
+
+  /* Returns whether the engine failed while running; see |Listener|. */
+  public boolean hasFailed() {
+    return hasFailed.get();
+  }
+
+  int getMtu() {
+    return mtu;
+  }
+
+  InetSocketAddress getSocksServerAddress() {
+    return socksServerAddress;
+  }
+
+  InetSocketAddress getDnsResolverAddress() {
+    return dnsResolverAddress;
+  }
+
+  boolean isUdpEnabled() {
+    return isUdpEnabled;
+  }
+
+  /**
+   * Sets whether the SOCKS server relays UDP. Applies to new flows; existing flows are left to
+   * finish, so the change does not interrupt traffic.
+   */
+  public void setUdpEnabled(boolean isUdpEnabled) {
+    this.isUdpEnabled = isUdpEnabled;
+  }
+
+  DnsCache getDnsCache() {
+    return dnsCache;
+  }
+
+  /**
+   * Stops reading the TUN device and notifies the listener, after the reader or an event loop
+   * failed. Packets are no longer dispatched to the loops, so none are queued in a dead loop.
+   */
+  void onFailure() {
+    if (!isRunning || !hasFailed.compareAndSet(false, true)) {
+      return;
+    }
+    LOG.severe("Userspace tun2socks failed");
+    try {
+      Os.write(wakeupPipe[1], new byte[1], 0, 1);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Failed to wake up the TUN reader", e);
+    }
+    listener.onFailure();
+  }
+
+  /* Writes the packet between |packet|'s position and limit to the TUN device. */
+  synchronized void writeToTun(ByteBuffer packet) {
+    try {
+      tunOutput.write(packet);
+      stats.packetsDown.increment();
+    } catch (IOException e) {
+      // The packet is dropped; TCP retransmits and UDP is unreliable.
+      LOG.log(Level.FINE, "Failed to write to the TUN device", e);
+    }
+  }
+
+  void releasePacketBuffer(ByteBuffer buffer) {
+    if (!packetBuffers.offer(buffer)) {
+      allocatedPacketBuffers.decrementAndGet();
+    }
+  }
+
+  // Returns a cleared packet buffer, or null if all buffers are queued in the loops.
+  private ByteBuffer acquirePacketBuffer() {
+    final ByteBuffer buffer = packetBuffers.poll();
+    if (buffer != null) {
+      buffer.clear();
+      return buffer;
+    }
+    if (allocatedPacketBuffers.incrementAndGet() > MAX_PACKET_BUFFERS) {
+      allocatedPacketBuffers.decrementAndGet();
+      return null;
+    }
+    return ByteBuffer.allocateDirect(mtu);
+  }
+
+  // Waits for the TUN device to become readable, then reads a batch of packets and dispatches them
+  // to the loops that own their flows. Loops are woken up once per batch.
+  private void readTun() {
+    final StructPollfd tunPollFd = new StructPollfd();
+    tunPollFd.fd = tunFd.getFileDescriptor();
+    tunPollFd.events = (short) OsConstants.POLLIN;
+    final StructPollfd wakeupPollFd = new StructPollfd();
+    wakeupPollFd.fd = wakeupPipe[0];
+    wakeupPollFd.events = (short) OsConstants.POLLIN;
+    final StructPollfd[] pollFds = {tunPollFd, wakeupPollFd};
+    final boolean[] isLoopPosted = new boolean[loops.length];
+    // Receives packets dropped for lack of buffers, to drain the device.
+    final ByteBuffer discardBuffer = ByteBuffer.allocateDirect(mtu);
+    try {
+      while (isRunning && !hasFailed.get()) {
+        tunPollFd.revents = 0;
+        wakeupPollFd.revents = 0;
+        try {
+          Os.poll(pollFds, -1);
+        } catch (ErrnoException e) {
+          if (e.errno == OsConstants.EINTR) {
+            continue;
+          }
+          throw new IOException(e);
+        }
+        if (!isRunning || hasFailed.get()) {
+          break;
+        }
+        if ((tunPollFd.revents & (OsConstants.POLLERR | OsConstants.POLLHUP)) != 0) {
+          throw new IOException("TUN device closed");
+        }
+        for (int i = 0; i < READ_BATCH_SIZE; ++i) {
+          ByteBuffer buffer = acquirePacketBuffer();
+          if (buffer == null) {
+            discardBuffer.clear();
+            if (tunInput.read(discardBuffer) <= 0) {
+              break;
+            }
+            continue;
+          }
+          if (tunInput.read(buffer) <= 0) {
+            releasePacketBuffer(buffer);
+            break;  // Drained.
+          }
+          buffer.flip();
+          stats.packetsUp.increment();
+          final int hash = IpPacket.flowHash(buffer);
+          if (hash == IpPacket.NO_FLOW_HASH) {
+            releasePacketBuffer(buffer);  // Too short to parse; no loop would accept it.
+            continue;
+          }
+          final int loopIndex = hash % loops.length;
+          loops[loopIndex].post(buffer);
+          isLoopPosted[loopIndex] = true;
+        }
+        for (int i = 0; i < loops.length; ++i) {
+          if (isLoopPosted[i]) {
+            isLoopPosted[i] = false;
+            loops[i].wakeup();
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (isRunning) {
+        LOG.log(Level.SEVERE, "Failed to read from the TUN device", e);
+        onFailure();
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Identifies a connection in the events of |VpnTunnelService|. Handles are interned: there is one
+ * handle per connection ID, so they compare and hash by identity, and looking one up does not
+ * allocate. There is one connection ID per server the user has added, so handles are kept for the
+ * lifetime of the process. Immutable.
+ */
+public final class ConnectionHandle {
+  private static final ConcurrentHashMap<String, ConnectionHandle> handles =
+      new ConcurrentHashMap<>();
+
+  public final String id;
+
+  private ConnectionHandle(final String id) {
+    this.id = id;
+  }
+
+  /* Returns the handle of |connectionId|, which must not be null. Thread-safe. */
+  public static ConnectionHandle of(final String connectionId) {
+    final ConnectionHandle handle = handles.get(connectionId);
+    if (handle != null) {
+      return handle;
+    }
+    final ConnectionHandle newHandle = new ConnectionHandle(connectionId);
+    final ConnectionHandle previousHandle = handles.putIfAbsent(connectionId, newHandle);
+    return previousHandle != null ? previousHandle : newHandle;
+  }
+
+  @Override
+  public String toString() {
+    return id;
+  }
+}
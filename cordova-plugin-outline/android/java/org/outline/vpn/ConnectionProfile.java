@@ -0,0 +1,71 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Server of a connection that started successfully, with what is known about it: when it last
+ * started, its last measured round-trip time, and whether it forwards UDP. Immutable.
+ */
+class ConnectionProfile {
+  // Round-trip time of a server that has not been measured.
+  static final long UNKNOWN_RTT = -1;
+
+  public final String id;
+  public final JSONObject config;
+  public final long lastSuccessMs;
+  public final long rttMs;
+  public final boolean isUdpSupported;
+
+  ConnectionProfile(final String id, final JSONObject config, long lastSuccessMs, long rttMs,
+      boolean isUdpSupported) {
+    this.id = id;
+    this.config = config;
+    this.lastSuccessMs = lastSuccessMs;
+    this.rttMs = rttMs;
+    this.isUdpSupported = isUdpSupported;
+  }
+
+  // Returns whether the profile's server listens on |host|:|port|.
+  boolean isServer(final String host, int port) {
+    return host.equals(config.optString("host")) && port == config.optInt("port");
+  }
+
+  ConnectionProfile withRtt(long rttMs) {
+    return new ConnectionProfile(id, config, lastSuccessMs, rttMs, isUdpSupported);
+  }
+
+  /**
+   * Parses a profile serialized by |toJson|.
+   *
+   * @throws JSONException if a field is missing or malformed.
+   */
+  static ConnectionProfile fromJson(final JSONObject json) throws JSONException {
+    return new ConnectionProfile(json.getString("id"), json.getJSONObject("config"),
+        json.getLong("lastSuccessMs"), json.optLong("rttMs", UNKNOWN_RTT),
+        json.optBoolean("isUdpSupported", false));
+  }
+
+  JSONObject toJson() throws JSONException {
+    return new JSONObject()
+        .put("id", id)
+        .put("config", config)
+        .put("lastSuccessMs", lastSuccessMs)
+        .put("rttMs", rttMs)
+        .put("isUdpSupported", isUdpSupported);
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import android.net.Network;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Pair;
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discovers the path MTU to a Shadowsocks server over an underlying network, and derives the MTU of
+ * the VPN's TUN interface from it. Results are cached per network and server. Thread-safe.
+ *
+ * <p>Probes with UDP datagrams that must not be fragmented. The kernel rejects sends larger than
+ * the path MTU it knows with EMSGSIZE, so the largest datagram it accepts gives the path MTU.
+ * Probes that leave the device let routers report a smaller MTU with ICMP, which the kernel learns
+ * before the next round. The server drops the probes, since they do not decrypt.
+ */
+class PathMtuDiscovery {
+  private static final Logger LOG = Logger.getLogger(PathMtuDiscovery.class.getName());
+  private static final int MAX_CACHE_ENTRIES = 16;
+  // Path MTU assumed when it cannot be discovered, e.g. without connectivity.
+  private static final int DEFAULT_PATH_MTU = 1500;
+  // Bounds of the TUN MTU. IPv6 requires at least 1280 bytes.
+  private static final int MIN_TUN_MTU = 1280;
+  private static final int MAX_TUN_MTU = 1500;
+  // Bounds of the path MTU search.
+  private static final int MIN_PATH_MTU = 576;
+  private static final int MAX_PATH_MTU = 1500;
+  private static final int MAX_PROBE_ROUNDS = 3;
+  // Time for routers along the path to report a smaller MTU after a probe.
+  private static final int PROBE_WAIT_MS = 200;
+  private static final int IPV4_HEADER_SIZE = 20;
+  private static final int IPV6_HEADER_SIZE = 40;
+  private static final int UDP_HEADER_SIZE = 8;
+  // Largest salt and tag of the Shadowsocks AEAD ciphers, which prefix and suffix UDP payloads.
+  private static final int SHADOWSOCKS_AEAD_OVERHEAD = 32 + 16;
+  // Largest SOCKS address of a relayed datagram: type, IPv6 address and port.
+  private static final int SOCKS_ADDRESS_MAX_SIZE = 1 + 16 + 2;
+  // Linux socket options, not exposed by |OsConstants|.
+  private static final int IP_MTU_DISCOVER = 10;
+  private static final int IPV6_MTU_DISCOVER = 23;
+  private static final int PMTUDISC_DO = 2;
+
+  // Guarded by |cache|.
+  private final Map<Pair<Network, String>, Integer> cache =
+      new LinkedHashMap<Pair<Network, String>, Integer>(MAX_CACHE_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Pair<Network, String>, Integer> eldest) {
+          return size() > MAX_CACHE_ENTRIES;
+        }
+      };
+
+  /**
+   * Returns the cached TUN MTU for the path to the server at |host|:|port| over |network|, or the
+   * default TUN MTU if the path has not been probed. Does not block.
+   *
+   * @param network underlying network, or null for the default one, for which nothing is cached.
+   */
+  int getCachedTunMtu(final Network network, final String host, int port) {
+    if (network != null) {
+      synchronized (cache) {
+        final Integer tunMtu = cache.get(getCacheKey(network, host, port));
+        if (tunMtu != null) {
+          return tunMtu;
+        }
+      }
+    }
+    return getDefaultTunMtu();
+  }
+
+  /**
+   * Returns the TUN MTU for the path to the server at |host|:|port| over |network|. Probes the
+   * path, which can take several hundred milliseconds, unless the result is cached.
+   *
+   * @param network underlying network, or null for the default one. Results are only cached for
+   *     known networks.
+   */
+  int discoverTunMtu(final Network network, final String host, int port) {
+    final Pair<Network, String> key = getCacheKey(network, host, port);
+    if (network != null) {
+      synchronized (cache) {
+        final Integer tunMtu = cache.get(key);
+        if (tunMtu != null) {
+          return tunMtu;
+        }
+      }
+    }
+    final InetAddress address;
+    final int pathMtu;
+    try {
+      address = resolve(network, host);
+      pathMtu = probePathMtu(network, address, port);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Failed to discover the path MTU", e);
+      return getDefaultTunMtu();
+    }
+    final int tunMtu = computeTunMtu(pathMtu, address instanceof Inet4Address);
+    LOG.info(String.format(Locale.ROOT, "Path MTU %d, TUN MTU %d", pathMtu, tunMtu));
+    if (network != null) {
+      synchronized (cache) {
+        cache.put(key, tunMtu);
+      }
+    }
+    return tunMtu;
+  }
+
+  private static Pair<Network, String> getCacheKey(
+      final Network network, final String host, int port) {
+    return new Pair<>(network, String.format(Locale.ROOT, "%s:%d", host, port));
+  }
+
+  // Discards the cached results of |network|, e.g. when it is lost.
+  void invalidate(final Network network) {
+    synchronized (cache) {
+      final Iterator<Pair<Network, String>> keys = cache.keySet().iterator();
+      while (keys.hasNext()) {
+        if (network.equals(keys.next().first)) {
+          keys.remove();
+        }
+      }
+    }
+  }
+
+  // Returns the TUN MTU to use when the path MTU is unknown.
+  static int getDefaultTunMtu() {
+    return computeTunMtu(DEFAULT_PATH_MTU, true);
+  }
+
+  // Returns the largest TUN MTU whose UDP packets, once relayed by Shadowsocks, fit in |pathMtu|.
+  // TCP payloads are relayed over a separate connection, so its segments are not affected.
+  static int computeTunMtu(int pathMtu, boolean isIpv4Path) {
+    final int relayOverhead = (isIpv4Path ? IPV4_HEADER_SIZE : IPV6_HEADER_SIZE) + UDP_HEADER_SIZE
+        + SHADOWSOCKS_AEAD_OVERHEAD + SOCKS_ADDRESS_MAX_SIZE;
+    // The engine strips the IP and UDP headers of tunneled packets before relaying them.
+    final int tunnelHeaders = IPV4_HEADER_SIZE + UDP_HEADER_SIZE;
+    return Math.max(MIN_TUN_MTU, Math.min(MAX_TUN_MTU, pathMtu - relayOverhead + tunnelHeaders));
+  }
+
+  private static InetAddress resolve(final Network network, final String host) throws Exception {
+    if (network != null) {
+      return network.getAllByName(host)[0];
+    }
+    return InetAddress.getAllByName(host)[0];
+  }
+
+  // Searches for the largest datagram the kernel sends without fragmentation to |address|:|port|,
+  // in rounds separated by |PROBE_WAIT_MS| until the result is stable.
+  private static int probePathMtu(final Network network, final InetAddress address, int port)
+      throws Exception {
+    final boolean isIpv4 = address instanceof Inet4Address;
+    final int headerSize = (isIpv4 ? IPV4_HEADER_SIZE : IPV6_HEADER_SIZE) + UDP_HEADER_SIZE;
+    final FileDescriptor fd =
+        Os.socket(isIpv4 ? OsConstants.AF_INET : OsConstants.AF_INET6, OsConstants.SOCK_DGRAM, 0);
+    try {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && network != null) {
+        network.bindSocket(fd);
+      }
+      if (isIpv4) {
+        Os.setsockoptInt(fd, OsConstants.IPPROTO_IP, IP_MTU_DISCOVER, PMTUDISC_DO);
+      } else {
+        Os.setsockoptInt(fd, OsConstants.IPPROTO_IPV6, IPV6_MTU_DISCOVER, PMTUDISC_DO);
+      }
+      Os.connect(fd, address, port);
+      final byte[] probe = new byte[MAX_PATH_MTU - headerSize];
+      new Random().nextBytes(probe);
+      int pathMtu = MAX_PATH_MTU;
+      for (int round = 0; round < MAX_PROBE_ROUNDS; ++round) {
+        if (round > 0) {
+          Thread.sleep(PROBE_WAIT_MS);
+          if (send(fd, probe, pathMtu - headerSize)) {
+            break;  // No smaller MTU reported.
+          }
+        }
+        // Binary search for the largest accepted size, which may decrease between rounds.
+        int low = MIN_PATH_MTU;
+        int high = pathMtu;
+        while (low < high) {
+          final int mtu = (low + high + 1) / 2;
+          if (send(fd, probe, mtu - headerSize)) {
+            low = mtu;
+          } else {
+            high = mtu - 1;
+          }
+        }
+        pathMtu = low;
+      }
+      return pathMtu;
+    } finally {
+      Os.close(fd);
+    }
+  }
+
+  // Returns whether the kernel sent a datagram of |size| bytes, or false if it exceeds the MTU.
+  private static boolean send(final FileDescriptor fd, final byte[] probe, int size)
+      throws ErrnoException, InterruptedIOException {
+    try {
+      Os.write(fd, probe, 0, size);
+      return true;
+    } catch (ErrnoException e) {
+      if (e.errno == OsConstants.EMSGSIZE) {
+        return false;
+      } else if (e.errno == OsConstants.ECONNREFUSED) {
+        // Reported for a previous probe, which the server did not accept; the error is cleared.
+        return send(fd, probe, size);
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Computes the routes that cover an IP address space except for a set of excluded subnets, for
+ * systems that cannot exclude routes. The cover is minimal: it consists of the largest subnets
+ * that do not overlap the exclusions. Covers are cached in a packed binary form, where each route
+ * is stored as its address followed by its prefix length.
+ */
+class RouteSet {
+  static final int IPV4_ADDRESS_SIZE = 4;
+  static final int IPV6_ADDRESS_SIZE = 16;
+  private static final String IPV4_LITERAL_PATTERN = "\\d{1,3}(\\.\\d{1,3}){3}";
+
+  // Packed covers, keyed by address size and exclusions. Guarded by |RouteSet.class|.
+  private static final Map<String, byte[]> coverCache = new HashMap<>();
+
+  private RouteSet() {}
+
+  /**
+   * Returns the minimal set of routes that covers the address space of the given family, except
+   * for |exclusions|. Exclusions of the other family are ignored.
+   *
+   * @throws IllegalArgumentException if an exclusion is not a valid IP subnet.
+   */
+  static List<Subnet> getRoutes(final List<Subnet> exclusions, boolean isIpv6) {
+    final int addressSize = isIpv6 ? IPV6_ADDRESS_SIZE : IPV4_ADDRESS_SIZE;
+    final StringBuilder key = new StringBuilder().append(addressSize);
+    for (Subnet exclusion : exclusions) {
+      key.append(' ').append(exclusion.address).append('/').append(exclusion.prefix);
+    }
+    byte[] cover;
+    synchronized (RouteSet.class) {
+      cover = coverCache.get(key.toString());
+    }
+    if (cover == null) {
+      final List<byte[]> addresses = new ArrayList<>(exclusions.size());
+      final List<Integer> prefixes = new ArrayList<>(exclusions.size());
+      for (Subnet exclusion : exclusions) {
+        final byte[] address = toAddressBytes(exclusion);
+        if (address.length == addressSize) {
+          addresses.add(address);
+          prefixes.add(exclusion.prefix);
+        }
+      }
+      final int[] prefixArray = new int[prefixes.size()];
+      for (int i = 0; i < prefixArray.length; ++i) {
+        prefixArray[i] = prefixes.get(i);
+      }
+      cover = computeCover(addresses.toArray(new byte[0][]), prefixArray, addressSize);
+      synchronized (RouteSet.class) {
+        coverCache.put(key.toString(), cover);
+      }
+    }
+    return unpack(cover, addressSize);
+  }
+
+  /**
+   * Returns the packed minimal cover of the address space of |addressSize| bytes, except for the
+   * subnets with the given |addresses| and |prefixes|.
+   */
+  static byte[] computeCover(final byte[][] addresses, final int[] prefixes, int addressSize) {
+    final byte[][] masked = new byte[addresses.length][];
+    for (int i = 0; i < addresses.length; ++i) {
+      masked[i] = mask(addresses[i], prefixes[i]);
+    }
+    final ByteArrayOutputStream cover = new ByteArrayOutputStream();
+    addCover(new byte[addressSize], 0, masked, prefixes, cover);
+    return cover.toByteArray();
+  }
+
+  // Adds the cover of the subnet |base|/|prefix| to |cover|. The subnet is added whole if it does
+  // not overlap any exclusion, skipped if an exclusion contains it, and split in halves otherwise.
+  private static void addCover(final byte[] base, int prefix, final byte[][] addresses,
+      final int[] prefixes, ByteArrayOutputStream cover) {
+    boolean overlaps = false;
+    for (int i = 0; i < addresses.length; ++i) {
+      if (prefixes[i] <= prefix && matches(addresses[i], base, prefixes[i])) {
+        return;
+      }
+      if (!overlaps && matches(addresses[i], base, prefix)) {
+        overlaps = true;
+      }
+    }
+    if (!overlaps) {
+      cover.write(base, 0, base.length);
+      cover.write(prefix);
+      return;
+    }
+    addCover(base, prefix + 1, addresses, prefixes, cover);
+    final byte[] upperHalf = Arrays.copyOf(base, base.length);
+    upperHalf[prefix / 8] |= (byte) (0x80 >>> (prefix % 8));
+    addCover(upperHalf, prefix + 1, addresses, prefixes, cover);
+  }
+
+  // Returns whether the first |bits| bits of |a| and |b| are equal.
+  private static boolean matches(final byte[] a, final byte[] b, int bits) {
+    final int bytes = bits / 8;
+    for (int i = 0; i < bytes; ++i) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    final int remainingBits = bits % 8;
+    if (remainingBits == 0) {
+      return true;
+    }
+    final int mask = 0xff << (8 - remainingBits);
+    return ((a[bytes] ^ b[bytes]) & mask) == 0;
+  }
+
+  // Returns a copy of |address| with the bits after the first |prefix| bits cleared.
+  private static byte[] mask(final byte[] address, int prefix) {
+    final byte[] masked = new byte[address.length];
+    for (int i = 0; i < address.length; ++i) {
+      final int bits = Math.max(0, Math.min(8, prefix - 8 * i));
+      masked[i] = (byte) (address[i] & (0xff << (8 - bits)));
+    }
+    return masked;
+  }
+
+  private static List<Subnet> unpack(final byte[] cover, int addressSize) {
+    final int entrySize = addressSize + 1;
+    final List<Subnet> routes = new ArrayList<>(cover.length / entrySize);
+    for (int offset = 0; offset < cover.length; offset += entrySize) {
+      if (addressSize == IPV4_ADDRESS_SIZE) {
+        final StringBuilder address = new StringBuilder(15).append(cover[offset] & 0xff);
+        for (int i = 1; i < IPV4_ADDRESS_SIZE; ++i) {
+          address.append('.').append(cover[offset + i] & 0xff);
+        }
+        routes.add(new Subnet(address.toString(), cover[offset + IPV4_ADDRESS_SIZE] & 0xff));
+        continue;
+      }
+      try {
+        final InetAddress address =
+            InetAddress.getByAddress(Arrays.copyOfRange(cover, offset, offset + addressSize));
+        routes.add(new Subnet(address.getHostAddress(), cover[offset + addressSize] & 0xff));
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e);  // Not reached, the address size is valid.
+      }
+    }
+    return routes;
+  }
+
+  private static byte[] toAddressBytes(final Subnet subnet) {
+    // Only accept IP literals, so that host names are not resolved.
+    if (subnet.address == null || (subnet.address.indexOf(':') < 0
+        && !subnet.address.matches(IPV4_LITERAL_PATTERN))) {
+      throw new IllegalArgumentException(
+          String.format(Locale.ROOT, "Invalid subnet address: %s", subnet.address));
+    }
+    final byte[] address;
+    try {
+      address = InetAddress.getByName(subnet.address).getAddress();
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException(
+          String.format(Locale.ROOT, "Invalid subnet address: %s", subnet.address), e);
+    }
+    if (subnet.prefix < 0 || subnet.prefix > 8 * address.length) {
+      throw new IllegalArgumentException(
+          String.format(Locale.ROOT, "Invalid subnet prefix: %d", subnet.prefix));
+    }
+    return address;
+  }
+}
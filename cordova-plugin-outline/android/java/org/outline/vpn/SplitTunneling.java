@@ -0,0 +1,93 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Selects the applications whose traffic goes through the VPN, by package name. Our own
+ * application always bypasses the VPN. Immutable.
+ */
+class SplitTunneling {
+  enum Mode {
+    // All applications.
+    ALL("all"),
+    // Only the listed applications.
+    ALLOWLIST("allowlist"),
+    // All but the listed applications.
+    DENYLIST("denylist");
+
+    public final String value;
+
+    Mode(final String value) {
+      this.value = value;
+    }
+
+    static Mode fromValue(final String value) {
+      for (Mode mode : values()) {
+        if (mode.value.equals(value)) {
+          return mode;
+        }
+      }
+      throw new IllegalArgumentException(
+          String.format(Locale.ROOT, "Invalid split tunneling mode: %s", value));
+    }
+  }
+
+  static final SplitTunneling DEFAULT =
+      new SplitTunneling(Mode.ALL, Collections.<String>emptySet());
+
+  public final Mode mode;
+  public final Set<String> packages;
+
+  SplitTunneling(Mode mode, final Set<String> packages) {
+    this.mode = mode;
+    this.packages = Collections.unmodifiableSet(
+        mode == Mode.ALL ? Collections.<String>emptySet() : new TreeSet<>(packages));
+  }
+
+  /**
+   * Parses split tunneling settings of the form {"mode": "allowlist", "packages": ["a.b"]}.
+   *
+   * @throws JSONException if a field is missing or malformed.
+   * @throws IllegalArgumentException if the mode is invalid.
+   */
+  static SplitTunneling fromJson(final JSONObject json) throws JSONException {
+    final Mode mode = Mode.fromValue(json.getString("mode"));
+    final JSONArray packagesJson = json.optJSONArray("packages");
+    final Set<String> packages = new TreeSet<>();
+    for (int i = 0; packagesJson != null && i < packagesJson.length(); ++i) {
+      final String packageName = packagesJson.getString(i).trim();
+      if (!packageName.isEmpty()) {
+        packages.add(packageName);
+      }
+    }
+    return new SplitTunneling(mode, packages);
+  }
+
+  JSONObject toJson() throws JSONException {
+    final JSONArray packagesJson = new JSONArray();
+    for (String packageName : packages) {
+      packagesJson.put(packageName);
+    }
+    return new JSONObject().put("mode", mode.value).put("packages", packagesJson);
+  }
+}
@@ -0,0 +1,38 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+/* Represents an IP subnet. */
+class Subnet {
+  public String address;
+  public int prefix;
+
+  public Subnet(String address, int prefix) {
+    this.address = address;
+    this.prefix = prefix;
+  }
+
+  /* Parses a subnet in CIDR format. */
+  public static Subnet parse(final String subnet) throws IllegalArgumentException {
+    if (subnet == null) {
+      throw new IllegalArgumentException("Must provide a subnet string");
+    }
+    final String[] components = subnet.split("/", 2);
+    if (components.length != 2) {
+      throw new IllegalArgumentException("Malformed subnet string");
+    }
+    return new Subnet(components[0], Integer.parseInt(components[1]));
+  }
+}
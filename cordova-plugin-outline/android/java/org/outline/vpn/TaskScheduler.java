@@ -0,0 +1,335 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs the blocking tasks of the VPN service on a pool of worker threads, in priority lanes: queued
+ * tasks the user waits for run before background work, and tasks of the same priority run in
+ * submission order. Tasks can have a deadline, after which they are cancelled, and a group, to be
+ * cancelled together. Workers exit after |IDLE_THREAD_TIMEOUT_MS| without tasks, so an idle
+ * scheduler holds no threads. Thread-safe.
+ */
+class TaskScheduler {
+  private static final Logger LOG = Logger.getLogger(TaskScheduler.class.getName());
+  private static final int IDLE_THREAD_TIMEOUT_MS = 10000;
+  // Timeout of tasks that run until they complete or are cancelled.
+  static final long NO_TIMEOUT = 0;
+
+  /* Priority lanes, highest first. */
+  enum Priority {
+    // Tasks the user waits for, such as starting a connection and checking its server.
+    USER,
+    // Speculative or revalidation work, such as warming up a connection or probing servers.
+    BACKGROUND
+  }
+
+  /* Statistics of a priority lane. Guarded by |TaskScheduler.this|. */
+  private static class LaneStats {
+    int queued = 0;
+    int maxQueued = 0;
+    long started = 0;
+    long expired = 0;
+    long cancelled = 0;
+    long totalWaitNanos = 0;
+    long maxWaitNanos = 0;
+
+    JSONObject toJson() throws JSONException {
+      return new JSONObject()
+          .put("queued", queued)
+          .put("maxQueued", maxQueued)
+          .put("started", started)
+          .put("expired", expired)
+          .put("cancelled", cancelled)
+          .put("averageWaitMs", started == 0 ? 0 : (double) totalWaitNanos / started / 1e6)
+          .put("maxWaitMs", maxWaitNanos / 1e6);
+    }
+  }
+
+  /* Task queued or running in the pool. Ordered by priority, then by submission. */
+  private class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+    final String name;
+    // Only changed by |promote| while the task is out of the queue. Guarded by
+    // |TaskScheduler.this| otherwise.
+    Priority priority;
+    final Object group;
+    final long sequence;
+    final long submitNanos = System.nanoTime();
+    // Cancels the task at its deadline, if it has one.
+    final Runnable expiration = new Runnable() {
+      @Override
+      public void run() {
+        expire(Task.this);
+      }
+    };
+    // Guarded by |TaskScheduler.this|.
+    boolean isStarted = false;
+    boolean isExpired = false;
+
+    Task(final String name, Priority priority, final Object group, long sequence,
+        final Callable<T> callable) {
+      super(callable);
+      this.name = name;
+      this.priority = priority;
+      this.group = group;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      if (!onTaskStarted(this)) {
+        return;
+      }
+      super.run();
+    }
+
+    @Override
+    protected void done() {
+      onTaskDone(this);
+    }
+
+    @Override
+    public int compareTo(final Task<?> other) {
+      if (priority != other.priority) {
+        return priority.compareTo(other.priority);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final Handler deadlineHandler = new Handler(Looper.getMainLooper());
+  private long nextSequence = 0;
+  // Tasks queued or running, to cancel groups. Guarded by |this|.
+  private final Set<Task<?>> tasks = new HashSet<>();
+  private final LaneStats[] laneStats = new LaneStats[Priority.values().length];
+
+  /**
+   * Constructor.
+   *
+   * @param name prefix of the worker threads' names.
+   * @param maxThreads maximum number of tasks that run concurrently.
+   */
+  TaskScheduler(final String name, int maxThreads) {
+    for (int i = 0; i < laneStats.length; ++i) {
+      laneStats[i] = new LaneStats();
+    }
+    final AtomicInteger threadCount = new AtomicInteger();
+    // The pool only grows past its core size when the queue is full, which an unbounded queue never
+    // is, so the core threads are the workers, and they time out when idle.
+    executor = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_THREAD_TIMEOUT_MS,
+        TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            return new Thread(runnable,
+                String.format(Locale.ROOT, "%s-%d", name, threadCount.incrementAndGet()));
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queues |callable| to run with |priority|.
+   *
+   * @param name describes the task in logs.
+   * @param group tasks to cancel together with |cancel|, or null.
+   * @param timeoutMs time from submission after which the task is cancelled, interrupting it if it
+   *     is running, or |NO_TIMEOUT|.
+   * @return the task's future, which throws a |CancellationException| if the task is cancelled or
+   *     exceeds its deadline.
+   */
+  <T> Future<T> submit(final String name, Priority priority, final Object group, long timeoutMs,
+      final Callable<T> callable) {
+    final Task<T> task;
+    synchronized (this) {
+      task = new Task<>(name, priority, group, nextSequence++, callable);
+      tasks.add(task);
+      final LaneStats stats = laneStats[priority.ordinal()];
+      stats.maxQueued = Math.max(stats.maxQueued, ++stats.queued);
+    }
+    if (timeoutMs != NO_TIMEOUT) {
+      deadlineHandler.postDelayed(task.expiration, timeoutMs);
+    }
+    try {
+      executor.execute(task);
+    } catch (RuntimeException e) {
+      task.cancel(false);
+      throw e;
+    }
+    return task;
+  }
+
+  /* Queues |runnable| to run with |priority|. See |submit|. */
+  Future<?> execute(final String name, Priority priority, final Object group, long timeoutMs,
+      final Runnable runnable) {
+    return submit(name, priority, group, timeoutMs, Executors.callable(runnable));
+  }
+
+  /**
+   * Raises the priority of the queued tasks of |group| to |priority|, e.g. when the user starts
+   * waiting for background work. Tasks keep their order among the tasks of the same priority.
+   * Running tasks are unaffected.
+   */
+  void promote(final Object group, Priority priority) {
+    final List<Task<?>> groupTasks = new ArrayList<>();
+    synchronized (this) {
+      for (Task<?> task : tasks) {
+        if (task.group == group && !task.isStarted && task.priority.compareTo(priority) > 0) {
+          groupTasks.add(task);
+        }
+      }
+    }
+    for (Task<?> task : groupTasks) {
+      // Re-queue the task, since the queue's order cannot change in place.
+      if (!executor.remove(task)) {
+        continue;  // Started or cancelled in the meantime.
+      }
+      synchronized (this) {
+        --laneStats[task.priority.ordinal()].queued;
+        task.priority = priority;
+        final LaneStats stats = laneStats[priority.ordinal()];
+        stats.maxQueued = Math.max(stats.maxQueued, ++stats.queued);
+      }
+      try {
+        executor.execute(task);
+      } catch (RuntimeException e) {
+        task.cancel(false);  // Shut down.
+      }
+    }
+  }
+
+  /* Cancels the queued and running tasks of |group|, interrupting those that are running. */
+  void cancel(final Object group) {
+    final List<Task<?>> groupTasks = new ArrayList<>();
+    synchronized (this) {
+      for (Task<?> task : tasks) {
+        if (task.group == group) {
+          groupTasks.add(task);
+        }
+      }
+    }
+    for (Task<?> task : groupTasks) {
+      task.cancel(true);
+    }
+  }
+
+  /* Cancels all tasks, and stops the workers once they exit. */
+  void shutdown() {
+    executor.shutdownNow();
+    final List<Task<?>> remainingTasks;
+    synchronized (this) {
+      remainingTasks = new ArrayList<>(tasks);
+    }
+    for (Task<?> task : remainingTasks) {
+      task.cancel(true);
+    }
+  }
+
+  /**
+   * Returns the number of worker threads, and the statistics of each lane, keyed by priority: the
+   * number of tasks queued and the maximum, the number of tasks started, expired and cancelled,
+   * and the average and maximum time tasks waited in the queue.
+   */
+  synchronized JSONObject getStats() throws JSONException {
+    final JSONObject lanes = new JSONObject();
+    for (Priority priority : Priority.values()) {
+      lanes.put(priority.name().toLowerCase(Locale.ROOT),
+          laneStats[priority.ordinal()].toJson());
+    }
+    return new JSONObject().put("threads", executor.getPoolSize()).put("lanes", lanes);
+  }
+
+  // Returns whether |task| should run, or false if it expired in the queue.
+  private boolean onTaskStarted(final Task<?> task) {
+    synchronized (this) {
+      if (task.isDone()) {
+        return false;  // Cancelled; |onTaskDone| updated the queue.
+      }
+      final LaneStats stats = laneStats[task.priority.ordinal()];
+      final long waitNanos = System.nanoTime() - task.submitNanos;
+      task.isStarted = true;
+      --stats.queued;
+      ++stats.started;
+      stats.totalWaitNanos += waitNanos;
+      stats.maxWaitNanos = Math.max(stats.maxWaitNanos, waitNanos);
+    }
+    return true;
+  }
+
+  private void expire(final Task<?> task) {
+    synchronized (this) {
+      if (task.isDone()) {
+        return;
+      }
+      task.isExpired = true;
+    }
+    LOG.warning(String.format(Locale.ROOT, "Task %s exceeded its deadline.", task.name));
+    task.cancel(true);
+  }
+
+  private void onTaskDone(final Task<?> task) {
+    deadlineHandler.removeCallbacks(task.expiration);
+    final boolean wasQueued;
+    synchronized (this) {
+      tasks.remove(task);
+      final LaneStats stats = laneStats[task.priority.ordinal()];
+      wasQueued = !task.isStarted;
+      if (wasQueued) {
+        --stats.queued;
+      }
+      if (task.isExpired) {
+        ++stats.expired;
+      } else if (task.isCancelled()) {
+        ++stats.cancelled;
+      }
+    }
+    if (wasQueued) {
+      // Do not keep cancelled tasks in the queue until a worker polls them.
+      executor.remove(task);
+    }
+    if (!task.isCancelled()) {
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, String.format(Locale.ROOT, "Task %s failed", task.name),
+            e.getCause());
+      } catch (CancellationException | InterruptedException e) {
+        // Unreachable once done and not cancelled.
+      }
+    }
+  }
+}
@@ -16,19 +16,67 @@ package org.outline.vpn;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.outline.OutlinePlugin;
 
-// Persistence layer for a single connection configuration. Uses |SharedPreferences| as the store.
+/**
+ * Persistence layer for the last connection configuration, and the profiles of the servers that
+ * connected successfully. Uses |SharedPreferences| as the store.
+ *
+ * <p>Updates are held in memory and written behind: updates made within |WRITE_DELAY_MS| of each
+ * other are coalesced into a single commit on a background thread, so that callers do not block
+ * on disk. Reads observe pending updates. Call |flush| where the process may die.
+ */
 class VpnConnectionStore {
   private static final Logger LOG = Logger.getLogger(VpnConnectionStore.class.getName());
   private static final String CONNECTION_KEY = "connection";
   private static final String CONNECTION_STATUS_KEY = "connectionStatus";
   private static final String CONNECTION_SUPPORTS_UDP = "connectionSupportsUdp";
+  private static final String SPLIT_TUNNELING_KEY = "splitTunneling";
+  private static final String IPV6_ENABLED_KEY = "ipv6Enabled";
+  private static final String PROFILES_KEY = "profiles";
+  private static final int MAX_PROFILES = 16;
+  private static final int WRITE_DELAY_MS = 100;
+  // Pending value of removed keys.
+  private static final Object REMOVED = new Object();
+  // Writes the pending updates of all stores. Does not keep the process alive.
+  private static final ScheduledExecutorService writeExecutor =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, "outline-connection-store");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
 
   private final SharedPreferences preferences;
+  // Updates not yet committed, by key. Guarded by |this|.
+  private final Map<String, Object> pendingUpdates = new HashMap<>();
+  private boolean isWriteScheduled = false;
+  private long updateCount = 0;
+  // Profiles by connection ID, parsed on first use. Guarded by |this|.
+  private Map<String, ConnectionProfile> profiles = null;
+  // Serializes commits, so they apply in order. Guards the write statistics.
+  private final Object writeLock = new Object();
+  private long writeCount = 0;
+  private long totalWriteNanos = 0;
+  private long maxWriteNanos = 0;
 
   public VpnConnectionStore(Context context) {
     this.preferences = context.getSharedPreferences(
@@ -40,12 +88,11 @@ class VpnConnectionStore {
       LOG.severe("Received null JSON connection");
       return;
     }
-    SharedPreferences.Editor editor = preferences.edit();
-    editor.putString(CONNECTION_KEY, connection.toString()).commit();
+    update(CONNECTION_KEY, connection.toString());
   }
 
   public JSONObject load() {
-    final String jsonConnection = preferences.getString(CONNECTION_KEY, null);
+    final String jsonConnection = getString(CONNECTION_KEY, null);
     if (jsonConnection == null) {
       return null;
     }
@@ -59,12 +106,11 @@ class VpnConnectionStore {
   }
 
   public void clear() {
-    SharedPreferences.Editor editor = preferences.edit();
-    editor.remove(CONNECTION_KEY).commit();
+    update(CONNECTION_KEY, REMOVED);
   }
 
   public OutlinePlugin.ConnectionStatus getConnectionStatus() {
-    final String connectionStatus = preferences.getString(
+    final String connectionStatus = getString(
         CONNECTION_STATUS_KEY, OutlinePlugin.ConnectionStatus.DISCONNECTED.toString());
     return OutlinePlugin.ConnectionStatus.valueOf(connectionStatus);
   }
@@ -74,16 +120,252 @@ class VpnConnectionStore {
       LOG.severe("Received null connection status");
       return;
     }
-    SharedPreferences.Editor editor = preferences.edit();
-    editor.putString(CONNECTION_STATUS_KEY, status.toString()).commit();
+    update(CONNECTION_STATUS_KEY, status.toString());
   }
 
   public void setIsUdpSupported(boolean isUdpSupported) {
-    SharedPreferences.Editor editor = preferences.edit();
-    editor.putBoolean(CONNECTION_SUPPORTS_UDP, isUdpSupported).commit();
+    update(CONNECTION_SUPPORTS_UDP, isUdpSupported);
   }
 
   public boolean isUdpSupported() {
-    return preferences.getBoolean(CONNECTION_SUPPORTS_UDP, false);
+    return getBoolean(CONNECTION_SUPPORTS_UDP, false);
+  }
+
+  public void setIpv6Enabled(boolean isIpv6Enabled) {
+    update(IPV6_ENABLED_KEY, isIpv6Enabled);
+  }
+
+  public boolean isIpv6Enabled() {
+    return getBoolean(IPV6_ENABLED_KEY, false);
+  }
+
+  public void saveSplitTunneling(final SplitTunneling splitTunneling) {
+    try {
+      update(SPLIT_TUNNELING_KEY, splitTunneling.toJson().toString());
+    } catch (JSONException e) {
+      LOG.severe("Failed to serialize split tunneling settings");
+    }
+  }
+
+  // Returns the saved split tunneling settings, or the default ones if there are none.
+  public SplitTunneling loadSplitTunneling() {
+    final String jsonSplitTunneling = getString(SPLIT_TUNNELING_KEY, null);
+    if (jsonSplitTunneling == null) {
+      return SplitTunneling.DEFAULT;
+    }
+    try {
+      return SplitTunneling.fromJson(new JSONObject(jsonSplitTunneling));
+    } catch (Exception e) {
+      LOG.severe("Failed to deserialize split tunneling settings");
+    }
+    return SplitTunneling.DEFAULT;
+  }
+
+  /**
+   * Records that the connection |id| to the server |config| started successfully. Keeps the last
+   * measured round-trip time of the profile. Evicts the least recently successful profile when
+   * there are more than |MAX_PROFILES|.
+   */
+  public synchronized void recordSuccess(
+      final String id, final JSONObject config, boolean isUdpSupported) {
+    final Map<String, ConnectionProfile> profiles = getProfiles();
+    final ConnectionProfile previous = profiles.remove(id);
+    final boolean isSameServer = previous != null
+        && previous.isServer(config.optString("host"), config.optInt("port"));
+    final long rttMs = isSameServer ? previous.rttMs : ConnectionProfile.UNKNOWN_RTT;
+    // Insertion order is the order of success.
+    profiles.put(id, new ConnectionProfile(
+        id, config, System.currentTimeMillis(), rttMs, isUdpSupported));
+    if (profiles.size() > MAX_PROFILES) {
+      profiles.remove(profiles.keySet().iterator().next());
+    }
+    saveProfiles();
+  }
+
+  /* Records the round-trip time to the server at |host|:|port| in the profiles that use it. */
+  public synchronized void recordRtt(final String host, int port, long rttMs) {
+    boolean isUpdated = false;
+    for (Map.Entry<String, ConnectionProfile> entry : getProfiles().entrySet()) {
+      if (entry.getValue().isServer(host, port) && entry.getValue().rttMs != rttMs) {
+        entry.setValue(entry.getValue().withRtt(rttMs));
+        isUpdated = true;
+      }
+    }
+    if (isUpdated) {
+      saveProfiles();
+    }
+  }
+
+  /**
+   * Returns the profiles to try when starting a connection automatically, in order: the most
+   * recently successful first, then the others by ascending round-trip time, with unmeasured ones
+   * last, and by recency.
+   */
+  public synchronized List<ConnectionProfile> getAutoStartCandidates() {
+    final List<ConnectionProfile> candidates = new ArrayList<>(getProfiles().values());
+    Collections.sort(candidates, new Comparator<ConnectionProfile>() {
+      @Override
+      public int compare(ConnectionProfile a, ConnectionProfile b) {
+        return Long.compare(b.lastSuccessMs, a.lastSuccessMs);
+      }
+    });
+    if (candidates.size() > 2) {
+      Collections.sort(candidates.subList(1, candidates.size()),
+          new Comparator<ConnectionProfile>() {
+            @Override
+            public int compare(ConnectionProfile a, ConnectionProfile b) {
+              if (a.rttMs != b.rttMs) {
+                return a.rttMs < 0 ? 1 : b.rttMs < 0 ? -1 : Long.compare(a.rttMs, b.rttMs);
+              }
+              return Long.compare(b.lastSuccessMs, a.lastSuccessMs);
+            }
+          });
+    }
+    return candidates;
+  }
+
+  /* Commits the pending updates on the calling thread. Blocks on disk. */
+  public void flush() {
+    writePendingUpdates();
+  }
+
+  /**
+   * Returns the number of updates and of commits, and the average and maximum commit latency, in
+   * milliseconds.
+   */
+  public JSONObject getWriteStats() throws JSONException {
+    final long updates;
+    synchronized (this) {
+      updates = updateCount;
+    }
+    synchronized (writeLock) {
+      return new JSONObject()
+          .put("updates", updates)
+          .put("writes", writeCount)
+          .put("averageWriteMs",
+              writeCount == 0 ? 0 : (double) totalWriteNanos / writeCount / 1e6)
+          .put("maxWriteMs", maxWriteNanos / 1e6);
+    }
+  }
+
+  private synchronized void update(final String key, final Object value) {
+    pendingUpdates.put(key, value);
+    ++updateCount;
+    if (isWriteScheduled) {
+      return;
+    }
+    isWriteScheduled = true;
+    writeExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        writePendingUpdates();
+      }
+    }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  // Returns the profiles, parsing them on first use. Profiles are created from the last connection
+  // if none were stored.
+  private Map<String, ConnectionProfile> getProfiles() {
+    if (profiles != null) {
+      return profiles;
+    }
+    profiles = new LinkedHashMap<>();
+    final String jsonProfiles = getString(PROFILES_KEY, null);
+    try {
+      if (jsonProfiles != null) {
+        final JSONArray profilesJson = new JSONArray(jsonProfiles);
+        for (int i = 0; i < profilesJson.length(); ++i) {
+          final ConnectionProfile profile =
+              ConnectionProfile.fromJson(profilesJson.getJSONObject(i));
+          profiles.put(profile.id, profile);
+        }
+      } else {
+        final JSONObject connection = load();
+        if (connection != null) {
+          final ConnectionProfile profile = new ConnectionProfile(connection.getString("id"),
+              connection.getJSONObject("config"), System.currentTimeMillis(),
+              ConnectionProfile.UNKNOWN_RTT, isUdpSupported());
+          profiles.put(profile.id, profile);
+        }
+      }
+    } catch (JSONException e) {
+      LOG.severe("Failed to deserialize connection profiles");
+    }
+    return profiles;
+  }
+
+  private void saveProfiles() {
+    final JSONArray profilesJson = new JSONArray();
+    try {
+      for (ConnectionProfile profile : profiles.values()) {
+        profilesJson.put(profile.toJson());
+      }
+    } catch (JSONException e) {
+      LOG.severe("Failed to serialize connection profiles");
+      return;
+    }
+    update(PROFILES_KEY, profilesJson.toString());
+  }
+
+  private synchronized String getString(final String key, final String defaultValue) {
+    final Object value = pendingUpdates.get(key);
+    if (value == null) {
+      return preferences.getString(key, defaultValue);
+    }
+    return value == REMOVED ? defaultValue : (String) value;
+  }
+
+  private synchronized boolean getBoolean(final String key, boolean defaultValue) {
+    final Object value = pendingUpdates.get(key);
+    if (value == null) {
+      return preferences.getBoolean(key, defaultValue);
+    }
+    return value == REMOVED ? defaultValue : (Boolean) value;
+  }
+
+  // Commits the pending updates in a single write. Updates stay pending until committed, so that
+  // reads observe them in the meantime; those superseded during the commit stay pending.
+  private void writePendingUpdates() {
+    synchronized (writeLock) {
+      final Map<String, Object> updates;
+      synchronized (this) {
+        isWriteScheduled = false;
+        if (pendingUpdates.isEmpty()) {
+          return;
+        }
+        updates = new HashMap<>(pendingUpdates);
+      }
+      final SharedPreferences.Editor editor = preferences.edit();
+      for (Map.Entry<String, Object> update : updates.entrySet()) {
+        final Object value = update.getValue();
+        if (value == REMOVED) {
+          editor.remove(update.getKey());
+        } else if (value instanceof Boolean) {
+          editor.putBoolean(update.getKey(), (Boolean) value);
+        } else {
+          editor.putString(update.getKey(), (String) value);
+        }
+      }
+      final long startNanos = System.nanoTime();
+      final boolean isCommitted = editor.commit();
+      final long writeNanos = System.nanoTime() - startNanos;
+      ++writeCount;
+      totalWriteNanos += writeNanos;
+      maxWriteNanos = Math.max(maxWriteNanos, writeNanos);
+      if (!isCommitted) {
+        // The updates stay pending, and are retried with the next write.
+        LOG.warning("Failed to write the connection store");
+        return;
+      }
+      synchronized (this) {
+        for (Map.Entry<String, Object> update : updates.entrySet()) {
+          if (pendingUpdates.get(update.getKey()) == update.getValue()) {
+            pendingUpdates.remove(update.getKey());
+          }
+        }
+      }
+      LOG.fine(String.format(Locale.ROOT, "Wrote %d updates to the connection store in %d us",
+          updates.size(), TimeUnit.NANOSECONDS.toMicros(writeNanos)));
+    }
   }
 }
@@ -18,12 +18,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
+import android.os.SystemClock;
 import org.outline.OutlinePlugin;
 
 // Starts the VpnTunnelService on boot and after app updates. Receives broadcasts for
 // android.intent.action.BOOT_COMPLETED and android.intent.action.MY_PACKAGE_REPLACED.
 public class VpnServiceStarter extends BroadcastReceiver {
   public static final String AUTOSTART_EXTRA = "autostart";
+  // Time of the automatic start request, in milliseconds since boot.
+  public static final String AUTOSTART_TIME_EXTRA = "autostartTime";
 
   @Override
   public void onReceive(Context context, Intent intent) {
@@ -35,6 +38,7 @@ public class VpnServiceStarter extends BroadcastReceiver {
     }
     Intent serviceIntent = new Intent(context, VpnTunnelService.class);
     serviceIntent.putExtra(AUTOSTART_EXTRA, true);
+    serviceIntent.putExtra(AUTOSTART_TIME_EXTRA, SystemClock.elapsedRealtime());
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
       context.startForegroundService(serviceIntent);
     } else {
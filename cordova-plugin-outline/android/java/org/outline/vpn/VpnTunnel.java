@@ -14,18 +14,25 @@
 
 package org.outline.vpn;
 
+import android.content.pm.PackageManager;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.net.VpnService;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.Random;
 import org.outline.tun2socks.Tun2SocksJni;
+import org.outline.tun2socks.UserspaceTun2Socks;
 
 /**
  * Manages the life-cycle of the system VPN, and of the tunnel that processes its traffic.
@@ -36,23 +43,36 @@ public class VpnTunnel {
   private static final String VPN_INTERFACE_PRIVATE_LAN = "10.111.222.%s";
   private static final int VPN_INTERFACE_PREFIX_LENGTH = 24;
   private static final String VPN_INTERFACE_NETMASK = "255.255.255.0";
-  private static final String VPN_IPV6_NULL = null;  // No IPv6 support.
-  private static final int VPN_INTERFACE_MTU = 1500;
+  // Address of the userspace engine's caching DNS responder, on the VPN's private LAN.
+  private static final String VPN_INTERFACE_DNS_HOST = "3";
+  // Unique local address range of the VPN, used when IPv6 is enabled.
+  private static final String VPN_INTERFACE_IPV6_PRIVATE_LAN = "fd66:f83a:c650::%s";
+  private static final int VPN_INTERFACE_IPV6_PREFIX_LENGTH = 64;
   // OpenDNS and Dyn IP addresses.
   private static final String[] DNS_RESOLVER_IP_ADDRESSES = {
     "216.146.35.35", "216.146.36.36",
     "208.67.222.222", "208.67.220.220"
   };
-  private static final String PRIVATE_LAN_BYPASS_SUBNETS_ID = "reserved_bypass_subnets";
+  private static final String RESERVED_EXCLUDED_SUBNETS_ID = "reserved_excluded_subnets";
+  // API level of Android 13, which adds |VpnService.Builder.excludeRoute|.
+  private static final int EXCLUDE_ROUTE_API_LEVEL = 33;
   private static final int DNS_RESOLVER_PORT = 53;
   private static final int TRANSPARENT_DNS_ENABLED = 1;
   private static final int SOCKS5_UDP_ENABLED = 1;
   private static final int SOCKS5_UDP_DISABLED = 0;
+  // Selects the userspace tun2socks engine instead of the native one, to compare their
+  // throughput and CPU usage.
+  private static final boolean USE_USERSPACE_TUN2SOCKS = false;
 
   private final VpnTunnelService vpnService;
   private String dnsResolverAddress;
+  private boolean isIpv6Enabled;
+  private int mtu;
+  // Underlying network of the VPN when it was established, or null for the default one.
+  private Network network;
   private ParcelFileDescriptor tunFd;
   private Thread tun2socksThread = null;
+  private UserspaceTun2Socks userspaceTun2Socks = null;
 
   /**
    * Constructor.
@@ -69,7 +89,12 @@ public class VpnTunnel {
 
   /**
    * Establishes a system-wide VPN that routes all device traffic to its TUN interface. Randomly
-   * selects between OpenDNS and Dyn resolvers to set the VPN's DNS resolvers.
+   * selects between OpenDNS and Dyn resolvers to set the VPN's DNS resolvers. With the userspace
+   * engine, the VPN's DNS server is a local caching responder that forwards misses to the selected
+   * resolver through the tunnel. If IPv6 is enabled, the VPN also gets a unique local IPv6 address
+   * and routes IPv6 traffic, so that dual-stack applications do not bypass it or stall. The MTU
+   * of the VPN is derived from the path MTU to the server over the active network, if it has been
+   * discovered, without probing it; see |VpnTunnelService.getTunMtu|.
    *
    * @return boolean indicating whether the VPN was successfully established.
    */
@@ -77,27 +102,54 @@ public class VpnTunnel {
     LOG.info("Establishing the VPN.");
     try {
       dnsResolverAddress = selectDnsResolverAddress();
+      isIpv6Enabled = vpnService.isIpv6Enabled();
+      final Network activeNetwork = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+          ? vpnService.getSystemService(ConnectivityManager.class).getActiveNetwork()
+          : null;
+      network = activeNetwork;
+      mtu = vpnService.getTunMtu(activeNetwork);
+      final String dnsServerAddress = USE_USERSPACE_TUN2SOCKS
+          ? String.format(Locale.ROOT, VPN_INTERFACE_PRIVATE_LAN, VPN_INTERFACE_DNS_HOST)
+          : dnsResolverAddress;
       VpnService.Builder builder =
           vpnService.newBuilder()
               .setSession(vpnService.getApplicationName())
-              .setMtu(VPN_INTERFACE_MTU)
+              .setMtu(mtu)
               .addAddress(String.format(Locale.ROOT, VPN_INTERFACE_PRIVATE_LAN, "1"),
                   VPN_INTERFACE_PREFIX_LENGTH)
-              .addDnsServer(dnsResolverAddress)
-              .addDisallowedApplication(vpnService.getPackageName());
+              .addDnsServer(dnsServerAddress);
+      if (isIpv6Enabled) {
+        builder.addAddress(String.format(Locale.ROOT, VPN_INTERFACE_IPV6_PRIVATE_LAN, "1"),
+            VPN_INTERFACE_IPV6_PREFIX_LENGTH);
+      }
+      applySplitTunneling(builder, vpnService.getInstalledSplitTunneling());
 
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-        final Network activeNetwork =
-            vpnService.getSystemService(ConnectivityManager.class).getActiveNetwork();
         builder.setUnderlyingNetworks(new Network[] {activeNetwork});
       }
-      // In absence of an API to remove routes, instead of adding the default route (0.0.0.0/0),
-      // retrieve the list of subnets that excludes those reserved for special use.
-      final ArrayList<Subnet> reservedBypassSubnets = getReservedBypassSubnets();
-      for (Subnet subnet : reservedBypassSubnets) {
-        builder.addRoute(subnet.address, subnet.prefix);
+      final List<Subnet> excludedSubnets = getReservedExcludedSubnets();
+      if (!addDefaultRouteWithExclusions(builder, excludedSubnets, isIpv6Enabled)) {
+        // In absence of an API to exclude routes, instead of adding the default routes (0.0.0.0/0
+        // and ::/0), add the routes that cover the rest of the address space.
+        for (Subnet subnet : RouteSet.getRoutes(excludedSubnets, false)) {
+          builder.addRoute(subnet.address, subnet.prefix);
+        }
+        if (isIpv6Enabled) {
+          for (Subnet subnet : RouteSet.getRoutes(excludedSubnets, true)) {
+            builder.addRoute(subnet.address, subnet.prefix);
+          }
+        }
       }
+      final ParcelFileDescriptor previousTunFd = tunFd;
       tunFd = builder.establish();
+      if (previousTunFd != null && tunFd != null) {
+        // Reestablished; the system has switched to the new interface.
+        try {
+          previousTunFd.close();
+        } catch (IOException e) {
+          LOG.warning("Failed to close the previous VPN interface file descriptor.");
+        }
+      }
       return tunFd != null;
     } catch (Exception e) {
       LOG.log(Level.SEVERE, "Failed to establish the VPN", e);
@@ -127,8 +179,8 @@ public class VpnTunnel {
    * @param socksServerAddress IP address of the SOCKS server.
    * @param remoteUdpForwardingEnabled whether the remote server supports UDP forwarding.
    * @throws IllegalArgumentException if |socksServerAddress| is null.
-   * @throws IllegalStateException if the VPN has not been established, or the tunnel is already
-   *     connected.
+   * @throws IllegalStateException if the VPN has not been established, the tunnel is already
+   *     connected, or the tunnel's engine fails to start.
    */
   public synchronized void connectTunnel(
       final String socksServerAddress, boolean remoteUdpForwardingEnabled) {
@@ -139,17 +191,24 @@ public class VpnTunnel {
     if (tunFd == null) {
       throw new IllegalStateException("Must establish the VPN before connecting the tunnel.");
     }
-    if (tun2socksThread != null) {
+    if (tun2socksThread != null || userspaceTun2Socks != null) {
       throw new IllegalStateException("Tunnel already connected");
     }
+    if (USE_USERSPACE_TUN2SOCKS) {
+      connectUserspaceTunnel(socksServerAddress, remoteUdpForwardingEnabled);
+      return;
+    }
 
     LOG.fine("Starting tun2socks thread");
+    final String routerIpv6Address = isIpv6Enabled
+        ? String.format(Locale.ROOT, VPN_INTERFACE_IPV6_PRIVATE_LAN, "2")
+        : null;
     tun2socksThread =
         new Thread() {
           public void run() {
-            Tun2SocksJni.start(tunFd.getFd(), VPN_INTERFACE_MTU,
+            Tun2SocksJni.start(tunFd.getFd(), mtu,
                 String.format(Locale.ROOT, VPN_INTERFACE_PRIVATE_LAN, "2"), // Router IP address
-                VPN_INTERFACE_NETMASK, VPN_IPV6_NULL, socksServerAddress,
+                VPN_INTERFACE_NETMASK, routerIpv6Address, socksServerAddress,
                 remoteUdpForwardingEnabled ? socksServerAddress : null, // UDP relay IP address
                 remoteUdpForwardingEnabled
                     ? String.format(Locale.ROOT, "%s:%d", dnsResolverAddress, DNS_RESOLVER_PORT)
@@ -161,9 +220,28 @@ public class VpnTunnel {
     tun2socksThread.start();
   }
 
+  /* Returns whether the connected tunnel's engine failed and no longer relays traffic. */
+  public synchronized boolean hasTunnelFailed() {
+    return userspaceTun2Socks != null && userspaceTun2Socks.hasFailed();
+  }
+
+  /* Returns the MTU of the established VPN. */
+  public synchronized int getMtu() {
+    return mtu;
+  }
+
+  /* Returns the underlying network the VPN was last established over, or null if unknown. */
+  public synchronized Network getNetwork() {
+    return network;
+  }
+
   /* Disconnects a tunnel created by a previous call to |connectTunnel|. */
   public synchronized void disconnectTunnel() {
     LOG.info("Disconnecting the tunnel.");
+    if (userspaceTun2Socks != null) {
+      userspaceTun2Socks.stop();
+      userspaceTun2Socks = null;
+    }
     if (tun2socksThread == null) {
       return;
     }
@@ -177,16 +255,90 @@ public class VpnTunnel {
     }
   }
 
+  /**
+   * Updates whether the remote server supports UDP forwarding without disconnecting the tunnel,
+   * if the tunnel's engine allows it.
+   *
+   * @return whether the update was applied; otherwise the tunnel must be reconnected.
+   */
+  public synchronized boolean updateUdpForwarding(boolean remoteUdpForwardingEnabled) {
+    if (userspaceTun2Socks == null) {
+      return false;
+    }
+    userspaceTun2Socks.setUdpEnabled(remoteUdpForwardingEnabled);
+    return true;
+  }
+
+  // Connects the tunnel with the userspace engine. Unlike the native engine, DNS queries are
+  // redirected to the VPN's resolver regardless of UDP support; without it they go over TCP.
+  private void connectUserspaceTunnel(
+      final String socksServerAddress, boolean remoteUdpForwardingEnabled) {
+    LOG.fine("Starting userspace tun2socks");
+    try {
+      final String[] hostAndPort = socksServerAddress.split(":", 2);
+      final UserspaceTun2Socks engine = new UserspaceTun2Socks(tunFd, mtu,
+          new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])),
+          new InetSocketAddress(dnsResolverAddress, DNS_RESOLVER_PORT),
+          remoteUdpForwardingEnabled, vpnService.getTrafficStats(),
+          new UserspaceTun2Socks.Listener() {
+            @Override
+            public void onFailure() {
+              vpnService.onTunnelFailure();
+            }
+          });
+      engine.start();
+      userspaceTun2Socks = engine;
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to start userspace tun2socks", e);
+    }
+  }
+
   /* Returns a random IP address from |DNS_RESOLVER_IP_ADDRESSES|. */
   private String selectDnsResolverAddress() {
     return DNS_RESOLVER_IP_ADDRESSES[new Random().nextInt(DNS_RESOLVER_IP_ADDRESSES.length)];
   }
 
-  /* Returns a subnet list that excludes reserved subnets. */
-  private ArrayList<Subnet> getReservedBypassSubnets() {
+  /* Selects the applications that use the VPN. Our application always bypasses it. */
+  private void applySplitTunneling(
+      VpnService.Builder builder, final SplitTunneling splitTunneling) {
+    if (splitTunneling.mode == SplitTunneling.Mode.ALLOWLIST) {
+      int allowedApplications = 0;
+      for (String packageName : splitTunneling.packages) {
+        try {
+          builder.addAllowedApplication(packageName);
+          ++allowedApplications;
+        } catch (PackageManager.NameNotFoundException e) {
+          LOG.warning(String.format(Locale.ROOT, "Application not found: %s", packageName));
+        }
+      }
+      if (allowedApplications > 0) {
+        return;
+      }
+      // Without allowed applications, the VPN applies to all of them.
+      LOG.warning("No allowed application installed, routing all applications through the VPN");
+    }
+    try {
+      builder.addDisallowedApplication(vpnService.getPackageName());
+    } catch (PackageManager.NameNotFoundException e) {
+      throw new IllegalStateException("Own package not found", e);  // Not reached.
+    }
+    if (splitTunneling.mode != SplitTunneling.Mode.DENYLIST) {
+      return;
+    }
+    for (String packageName : splitTunneling.packages) {
+      try {
+        builder.addDisallowedApplication(packageName);
+      } catch (PackageManager.NameNotFoundException e) {
+        LOG.warning(String.format(Locale.ROOT, "Application not found: %s", packageName));
+      }
+    }
+  }
+
+  /* Returns the subnets reserved for special use, which are excluded from the VPN. */
+  private List<Subnet> getReservedExcludedSubnets() {
     final String[] subnetStrings = vpnService.getResources().getStringArray(
-        vpnService.getResourceId(PRIVATE_LAN_BYPASS_SUBNETS_ID, "array"));
-    ArrayList<Subnet> subnets = new ArrayList<>(subnetStrings.length);
+        vpnService.getResourceId(RESERVED_EXCLUDED_SUBNETS_ID, "array"));
+    final List<Subnet> subnets = new ArrayList<>(subnetStrings.length);
     for (final String subnetString : subnetStrings) {
       try {
         subnets.add(Subnet.parse(subnetString));
@@ -197,26 +349,48 @@ public class VpnTunnel {
     return subnets;
   }
 
-  /* Represents an IP subnet. */
-  private static class Subnet {
-    public String address;
-    public int prefix;
-
-    public Subnet(String address, int prefix) {
-      this.address = address;
-      this.prefix = prefix;
+  /**
+   * Adds the IPv4 default route to |builder|, and the IPv6 one if |isIpv6Enabled|, and excludes the
+   * subnets in |excludedSubnets| of the routed address families, on systems that support excluding
+   * routes. Calls the API through reflection, since it is newer than the SDK the plugin is compiled
+   * against.
+   *
+   * @return whether the routes were added; otherwise |builder| is unchanged.
+   */
+  private static boolean addDefaultRouteWithExclusions(
+      VpnService.Builder builder, final List<Subnet> excludedSubnets, boolean isIpv6Enabled) {
+    if (Build.VERSION.SDK_INT < EXCLUDE_ROUTE_API_LEVEL) {
+      return false;
     }
-
-    /* Parses a subnet in CIDR format. */
-    public static Subnet parse(final String subnet) throws IllegalArgumentException {
-      if (subnet == null) {
-        throw new IllegalArgumentException("Must provide a subnet string");
+    final List<Object> prefixes = new ArrayList<>(excludedSubnets.size());
+    final Method excludeRoute;
+    try {
+      final Class<?> ipPrefixClass = Class.forName("android.net.IpPrefix");
+      final Constructor<?> ipPrefixConstructor =
+          ipPrefixClass.getConstructor(InetAddress.class, int.class);
+      excludeRoute = VpnService.Builder.class.getMethod("excludeRoute", ipPrefixClass);
+      for (Subnet subnet : excludedSubnets) {
+        final InetAddress address = InetAddress.getByName(subnet.address);
+        if (isIpv6Enabled || address.getAddress().length == RouteSet.IPV4_ADDRESS_SIZE) {
+          prefixes.add(ipPrefixConstructor.newInstance(address, subnet.prefix));
+        }
       }
-      final String[] components = subnet.split("/", 2);
-      if (components.length != 2) {
-        throw new IllegalArgumentException("Malformed subnet string");
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Failed to prepare route exclusions", e);
+      return false;
+    }
+    builder.addRoute("0.0.0.0", 0);
+    if (isIpv6Enabled) {
+      builder.addRoute("::", 0);
+    }
+    for (Object prefix : prefixes) {
+      try {
+        excludeRoute.invoke(builder, prefix);
+      } catch (Exception e) {
+        // The default route is already added; the VPN must not be established without exclusions.
+        throw new IllegalStateException("Failed to exclude route", e);
       }
-      return new Subnet(components[0], Integer.parseInt(components[1]));
     }
+    return true;
   }
 }
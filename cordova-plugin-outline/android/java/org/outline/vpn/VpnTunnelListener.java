@@ -0,0 +1,32 @@
+// Copyright 2018 The Outline Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package org.outline.vpn;
+
+/**
+ * Receives the events of the connections managed by |VpnTunnelService|. Register listeners through
+ * |VpnTunnelService.LocalBinder|. Events are delivered in order on the service's event loop, off
+ * the main thread, so listeners must return promptly and not call back into the service's
+ * blocking methods.
+ */
+public interface VpnTunnelListener {
+  /* A start of |connection| completed with |errorCode|, an |OutlinePlugin.ErrorCode| value. */
+  void onStart(ConnectionHandle connection, int errorCode);
+
+  /* A stop of |connection| completed with |errorCode|, an |OutlinePlugin.ErrorCode| value. */
+  void onStop(ConnectionHandle connection, int errorCode);
+
+  /* The active |connection| changed to |status|, an |OutlinePlugin.ConnectionStatus| value. */
+  void onStatusChange(ConnectionHandle connection, int status);
+}
@@ -18,8 +18,10 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
@@ -31,21 +33,39 @@ import android.net.NetworkRequest;
 import android.net.VpnService;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.outline.OutlinePlugin;
+import org.outline.shadowsocks.CancellationToken;
 import org.outline.shadowsocks.Shadowsocks;
 import org.outline.shadowsocks.ShadowsocksConnectivity;
+import org.outline.shadowsocks.ShadowsocksServerRace;
+import org.outline.stats.TrafficStats;
 
 /**
  * Android background service responsible for managing VPN connections. Clients must bind to this
@@ -54,36 +74,187 @@ import org.outline.shadowsocks.ShadowsocksConnectivity;
 public class VpnTunnelService extends VpnService {
   private static final Logger LOG = Logger.getLogger(VpnTunnelService.class.getName());
   private static final int THREAD_POOL_SIZE = 5;
+  // Enough for the probes of a start and of a background check to run at once.
+  private static final int CHECK_THREAD_POOL_SIZE = 6;
   private static final int NOTIFICATION_SERVICE_ID = 1;
   private static final int NOTIFICATION_COLOR = 0x00BFA5;
   private static final String NOTIFICATION_CHANNEL_ID = "outline-vpn";
   private static final String CONNECTION_ID_KEY = "id";
   private static final String CONNECTION_CONFIG_KEY = "config";
+  private static final int SERVER_RACE_TIMEOUT_MS = 10000;
+  // Time a warmed-up connection is kept, waiting for the user to connect.
+  private static final int WARM_UP_WINDOW_MS = 60000;
+  private static final int STATS_SAMPLE_INTERVAL_MS = 1000;
+  // Time |onDestroy| waits for the connection to be torn down.
+  private static final int DESTROY_TIMEOUT_MS = 2000;
+  // Deadline of each server connectivity check, beyond the checks' own socket timeouts.
+  private static final int CONNECTIVITY_CHECK_TIMEOUT_MS = 15000;
+
+  /* States of the connection lifecycle. */
+  private enum ConnectionState {
+    // No connection.
+    IDLE,
+    // Starting the local server of a new connection and checking its remote server.
+    STARTING,
+    // The tunnel is connected.
+    CONNECTED,
+    // The underlying network was lost, or the VPN is being reestablished.
+    RECONNECTING,
+    // Checking a new server, to switch the connected tunnel to it.
+    SWITCHING,
+    // Tearing down the connection.
+    STOPPING
+  }
+
+  /* Request to start a connection. */
+  private static class StartRequest {
+    final String connectionId;
+    final JSONObject config;
+    final boolean isAutoStart;
+    // For automatic starts, the time of the request since boot, and the profiles to fall back to.
+    final long requestTimeMs;
+    final List<ConnectionProfile> candidates;
+    // Cancelled when the start is superseded, closing the sockets of its checks.
+    final CancellationToken cancellation = new CancellationToken();
+
+    StartRequest(final String connectionId, final JSONObject config, boolean isAutoStart,
+        long requestTimeMs, final List<ConnectionProfile> candidates) {
+      this.connectionId = connectionId;
+      this.config = config;
+      this.isAutoStart = isAutoStart;
+      this.requestTimeMs = requestTimeMs;
+      this.candidates = candidates;
+    }
+  }
 
   private final IBinder binder = new LocalBinder();
-  private ThreadPoolExecutor executorService;
+  // Listeners registered through |binder|, notified on the event loop.
+  private final List<VpnTunnelListener> listeners = new CopyOnWriteArrayList<>();
+  private TaskScheduler scheduler;
+  // Runs the probes of |checkServerConnectivity|, which tasks of |scheduler| wait for, in a pool of
+  // their own so that the waiting tasks cannot starve them. Also runs the server race's checks.
+  private TaskScheduler checkScheduler;
   private VpnTunnel vpnTunnel;
   private Shadowsocks shadowsocks;
-  private String activeConnectionId = null;
-  private JSONObject activeServerConfig = null;
+  // Runs the connection lifecycle events one at a time, in order; see |postEvent|. Blocking work,
+  // such as checking servers, runs on |scheduler| and posts its result back as an event.
+  private final ExecutorService eventLoop = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "outline-vpn-events");
+    }
+  });
+  // Written on the event loop only.
+  private ConnectionState state = ConnectionState.IDLE;
+  // Incremented by every start and teardown, so that the results of superseded transitions are
+  // dropped. Written on the event loop only.
+  private volatile int connectionGeneration = 0;
+  // Connection being started, until it connects or fails. Its tasks are grouped under the request.
+  // Written on the event loop only.
+  private StartRequest pendingStart = null;
+  // Cancels the background checks of the active connection, which are also grouped under it, when
+  // the connection is torn down. Written on the event loop only.
+  private CancellationToken revalidation = new CancellationToken();
+  // Cancels the server race of |rankServers| in progress, if any, when a connection is started or
+  // stopped. Also groups the race's checks on |checkScheduler|.
+  private volatile CancellationToken serverRace = new CancellationToken();
+  private volatile String activeConnectionId = null;
+  private volatile JSONObject activeServerConfig = null;
   private NetworkConnectivityMonitor networkConnectivityMonitor;
   private VpnConnectionStore connectionStore;
+  // Guards |notificationBuilder|, which is updated on the event loop, and on the main thread when
+  // the service is auto-started.
+  private final Object notificationLock = new Object();
   private Notification.Builder notificationBuilder;
+  private final TrafficStats trafficStats = new TrafficStats();
+  private final ScheduledExecutorService statsSampler =
+      Executors.newSingleThreadScheduledExecutor();
+  private ScheduledFuture<?> statsSampling = null;
+  // Connection prepared by |warmUpLastConnection|, until started or discarded.
+  private final Object warmUpLock = new Object();
+  private WarmUp warmUp = null;
+  // Split tunneling settings, and the same settings restricted to installed applications, or null
+  // until resolved. Guarded by |splitTunnelingLock|.
+  private final Object splitTunnelingLock = new Object();
+  private SplitTunneling splitTunneling = SplitTunneling.DEFAULT;
+  private SplitTunneling installedSplitTunneling = null;
+  private final PathMtuDiscovery pathMtuDiscovery = new PathMtuDiscovery();
+  // Timings of the active connection, if it was started automatically; see
+  // |autoStartLastSuccessfulConnection|.
+  private volatile JSONObject autoStartMetrics = null;
+  // Whether the VPN carries IPv6 traffic; see |setIpv6Enabled|.
+  private volatile boolean isIpv6Enabled = false;
+  // Resolves the split tunneling packages again when applications are installed or removed.
+  private final BroadcastReceiver packageChangeReceiver = new BroadcastReceiver() {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      synchronized (splitTunnelingLock) {
+        installedSplitTunneling = null;
+      }
+    }
+  };
+
+  /* Local Shadowsocks server started ahead of a connection, and the result of its checks. */
+  private static class WarmUp {
+    final JSONObject config;
+    final CancellationToken cancellation = new CancellationToken();
+    Future<OutlinePlugin.ErrorCode> result;
+    // Priority of the warm-up's tasks, raised once a start waits for them.
+    volatile TaskScheduler.Priority priority = TaskScheduler.Priority.BACKGROUND;
+
+    WarmUp(JSONObject config) {
+      this.config = config;
+    }
+
+    // Returns whether the warm-up was done for the server in |config|.
+    boolean isFor(JSONObject config) {
+      for (String key : new String[] {"host", "port", "method", "password"}) {
+        if (!this.config.optString(key).equals(config.optString(key))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
 
   public class LocalBinder extends Binder {
     public VpnTunnelService getService() {
       return VpnTunnelService.this;
     }
+
+    /* Registers |listener| to receive connection events. */
+    public void addListener(final VpnTunnelListener listener) {
+      listeners.add(listener);
+    }
+
+    public void removeListener(final VpnTunnelListener listener) {
+      listeners.remove(listener);
+    }
   }
 
   @Override
   public void onCreate() {
     LOG.info("Creating VPN service.");
     vpnTunnel = new VpnTunnel(this);
-    shadowsocks = new Shadowsocks(this);
-    executorService = (ThreadPoolExecutor) Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    shadowsocks = new Shadowsocks(this, trafficStats, new Shadowsocks.Listener() {
+      @Override
+      public void onFailure() {
+        onShadowsocksFailure();
+      }
+    });
+    scheduler = new TaskScheduler("outline-vpn-worker", THREAD_POOL_SIZE);
+    checkScheduler = new TaskScheduler("outline-vpn-check", CHECK_THREAD_POOL_SIZE);
     networkConnectivityMonitor = new NetworkConnectivityMonitor();
     connectionStore = new VpnConnectionStore(VpnTunnelService.this);
+    synchronized (splitTunnelingLock) {
+      splitTunneling = connectionStore.loadSplitTunneling();
+    }
+    isIpv6Enabled = connectionStore.isIpv6Enabled();
+    final IntentFilter packageChangeFilter = new IntentFilter();
+    packageChangeFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    packageChangeFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    packageChangeFilter.addDataScheme("package");
+    registerReceiver(packageChangeReceiver, packageChangeFilter);
   }
 
   @Override
@@ -105,7 +276,8 @@ public class VpnTunnelService extends VpnService {
           intent.getBooleanExtra(VpnServiceStarter.AUTOSTART_EXTRA, false);
       boolean startedByAlwaysOn = VpnService.SERVICE_INTERFACE.equals(intent.getAction());
       if (startedByVpnStarter || startedByAlwaysOn) {
-        startLastSuccessfulConnectionOrExit();
+        startLastSuccessfulConnectionOrExit(intent.getLongExtra(
+            VpnServiceStarter.AUTOSTART_TIME_EXTRA, SystemClock.elapsedRealtime()));
       }
     }
     return superOnStartReturnValue;
@@ -114,14 +286,41 @@ public class VpnTunnelService extends VpnService {
   @Override
   public void onRevoke() {
     LOG.info("VPN revoked.");
-    broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
-    tearDownActiveConnection();
+    postEvent("revoke", new Runnable() {
+      @Override
+      public void run() {
+        broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
+        tearDownActiveConnection();
+        // The process may be killed once the VPN is revoked.
+        connectionStore.flush();
+      }
+    });
   }
 
   @Override
   public void onDestroy() {
     LOG.info("Destroying VPN service.");
-    tearDownActiveConnection();
+    cancelServerRace();
+    postEvent("destroy", new Runnable() {
+      @Override
+      public void run() {
+        tearDownActiveConnection();
+        connectionStore.flush();
+      }
+    });
+    eventLoop.shutdown();
+    try {
+      if (!eventLoop.awaitTermination(DESTROY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        LOG.warning("Timed out tearing down the connection.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    scheduler.shutdown();
+    checkScheduler.shutdown();
+    networkConnectivityMonitor.shutdown();
+    statsSampler.shutdownNow();
+    unregisterReceiver(packageChangeReceiver);
   }
 
   public VpnService.Builder newBuilder() {
@@ -136,93 +335,54 @@ public class VpnTunnelService extends VpnService {
    * |remote Shadowsocks server|.
    *
    * <p>This method can be called multiple times with different configurations. The VPN will not be
-   * teared down. Broadcasts an intent with action OutlinePlugin.Action.START and an error code extra
-   * with the result of the operation, as defined in OutlinePlugin.ErrorCode. Displays a persistent
-   * notification for the duration of the connection.
+   * torn down. Reports the result of the operation, as defined in OutlinePlugin.ErrorCode, through
+   * |VpnTunnelListener.onStart|. Displays a persistent notification for the duration of the
+   * connection. Returns immediately; the start fails if it is superseded by another start or a
+   * stop before it completes.
    *
    * @param connectionId unique identifier for the connection.
    * @param config Shadowsocks configuration parameters.
    * @throws IllegalArgumentException if |connectionId| or |config| are missing.
    */
   public void startConnection(final String connectionId, final JSONObject config) {
-    startConnection(connectionId, config, false);
+    startConnection(new StartRequest(connectionId, config, false, 0, null));
   }
 
-  private void startConnection(
-      final String connectionId, final JSONObject config, boolean isAutoStart) {
-    LOG.info(String.format(Locale.ROOT, "Starting connection %s.", connectionId));
-    if (connectionId == null || config == null) {
+  /* Posts |request| to the event loop. Returns immediately. */
+  private void startConnection(final StartRequest request) {
+    LOG.info(String.format(Locale.ROOT, "Starting connection %s.", request.connectionId));
+    if (request.connectionId == null || request.config == null) {
       throw new IllegalArgumentException("Must provide a connection ID and configuration.");
     }
-    final boolean isRestart = activeConnectionId != null;
-    final boolean isNewConnection = !connectionId.equals(activeConnectionId);
-    OutlinePlugin.ErrorCode errorCode = OutlinePlugin.ErrorCode.NO_ERROR;
-    if (isNewConnection) {
-      // Broadcast the previous instance disconnect event before reassigning the connection ID.
-      broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
-      stopForeground();
-      try {
-        // Only (re)start Shadowsocks if this is a new connection.
-        // Do not perform connectivity checks when connecting on startup. We should avoid failing
-        // the connection due to a network error, as network may not be ready.
-        errorCode = startShadowsocks(config, !isAutoStart).get();
-        if (!(errorCode == OutlinePlugin.ErrorCode.NO_ERROR
-                || errorCode == OutlinePlugin.ErrorCode.UDP_RELAY_NOT_ENABLED)) {
-          onVpnStartFailure(errorCode);
-          return;
-        }
-      } catch (Exception e) {
-        onVpnStartFailure(OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE);
-        return;
-      }
-    }
-    activeConnectionId = connectionId;
-    activeServerConfig = config;
-
-    if (isRestart) {
-      vpnTunnel.disconnectTunnel();
-    } else {
-      // Only establish the VPN if this is not a connection restart.
-      if (!vpnTunnel.establishVpn()) {
-        LOG.severe("Failed to establish the VPN");
-        onVpnStartFailure(OutlinePlugin.ErrorCode.VPN_START_FAILURE);
-        return;
+    cancelServerRace();
+    postEvent("start", new Runnable() {
+      @Override
+      public void run() {
+        onStart(request);
       }
-      startNetworkConnectivityMonitor();
-    }
-
-    final boolean remoteUdpForwardingEnabled = !isNewConnection || isAutoStart
-        ? connectionStore.isUdpSupported()
-        : errorCode == OutlinePlugin.ErrorCode.NO_ERROR;
-    try {
-      vpnTunnel.connectTunnel(shadowsocks.getLocalServerAddress(), remoteUdpForwardingEnabled);
-    } catch (Exception e) {
-      LOG.log(Level.SEVERE, "Failed to connect the tunnel", e);
-      onVpnStartFailure(OutlinePlugin.ErrorCode.VPN_START_FAILURE);
-      return;
-    }
-    broadcastVpnStart(OutlinePlugin.ErrorCode.NO_ERROR);
-    startForegroundWithNotification(config, OutlinePlugin.ConnectionStatus.CONNECTED);
-    storeActiveConnection(connectionId, config, remoteUdpForwardingEnabled);
+    });
   }
 
   /**
    * Tears down a connection started by calling |startConnection|. Stops tun2socks, shadowsocks, and
-   * the system-wide VPN.
+   * the system-wide VPN. If the connection is still starting, the start is abandoned and fails.
+   * Reports the result through |VpnTunnelListener.onStop|, with OutlinePlugin.ErrorCode.UNEXPECTED
+   * if the connection is neither active nor starting. Returns immediately.
    *
    * @param connectionId unique identifier for the connection.
    * @throws IllegalArgumentException if |connectionId| is missing.
-   * @throws IllegalStateException if the connection represented by |connectionId| is not active.
    */
   public void stopConnection(final String connectionId) {
     if (connectionId == null) {
       throw new IllegalArgumentException("Must provide a connection ID.");
-    } else if (!connectionId.equals(activeConnectionId)) {
-      throw new IllegalStateException(
-          String.format(Locale.ROOT, "Connection %s not active.", connectionId));
     }
-    broadcastVpnStop();
-    tearDownActiveConnection();
+    cancelServerRace();
+    postEvent("stop", new Runnable() {
+      @Override
+      public void run() {
+        onStop(connectionId);
+      }
+    });
   }
 
   /**
@@ -239,20 +399,666 @@ public class VpnTunnelService extends VpnService {
     return connectionId.equals(activeConnectionId);
   }
 
+  /**
+   * Returns the traffic counters of an active connection, as returned by |TrafficStats.toJson|:
+   * bytes and packets sent and received, open TCP and UDP sessions, and failed connection attempts
+   * to the server, along with a |window| of samples taken every second, oldest first, from which
+   * rates can be computed. Also includes the write statistics of the connection store, as
+   * |storeWrites|, the queue statistics of the service's worker threads, as |scheduler|, and if the
+   * connection was started automatically, the time from boot and from the start request until the
+   * tunnel connected, as |autoStart|.
+   *
+   * @param connectionId unique identifier for the connection.
+   * @throws IllegalArgumentException if |connectionId| is missing.
+   * @throws IllegalStateException if the connection represented by |connectionId| is not active.
+   */
+  public JSONObject getConnectionStats(final String connectionId) throws JSONException {
+    if (connectionId == null) {
+      throw new IllegalArgumentException("Must provide a connection ID.");
+    } else if (!connectionId.equals(activeConnectionId)) {
+      throw new IllegalStateException(
+          String.format(Locale.ROOT, "Connection %s not active.", connectionId));
+    }
+    return trafficStats.toJson()
+        .put("storeWrites", connectionStore.getWriteStats())
+        .put("scheduler", scheduler.getStats())
+        .putOpt("autoStart", autoStartMetrics);
+  }
+
+  // Split tunneling API
+
+  /* Returns the split tunneling settings, in the format accepted by |setSplitTunneling|. */
+  public JSONObject getSplitTunneling() throws JSONException {
+    synchronized (splitTunnelingLock) {
+      return splitTunneling.toJson();
+    }
+  }
+
+  /**
+   * Selects the applications whose traffic goes through the VPN, and persists the selection.
+   * Reestablishes the VPN if a connection is active, so the selection applies immediately.
+   *
+   * @param settings object with a |mode|, one of "all", "allowlist" or "denylist", and the
+   *     |packages| to include in an allowlist, or exclude in a denylist.
+   * @throws JSONException if |settings| is malformed.
+   * @throws IllegalArgumentException if the mode is invalid.
+   */
+  public void setSplitTunneling(final JSONObject settings) throws JSONException {
+    final SplitTunneling newSplitTunneling = SplitTunneling.fromJson(settings);
+    synchronized (splitTunnelingLock) {
+      splitTunneling = newSplitTunneling;
+      installedSplitTunneling = null;
+    }
+    connectionStore.saveSplitTunneling(newSplitTunneling);
+    if (activeConnectionId != null) {
+      postEvent("reestablish", new Runnable() {
+        @Override
+        public void run() {
+          if (activeConnectionId != null) {
+            reestablishVpn();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Returns the split tunneling settings, restricted to installed applications other than ours.
+   * The package lookups are cached until the settings change, or applications are installed or
+   * removed.
+   */
+  SplitTunneling getInstalledSplitTunneling() {
+    synchronized (splitTunnelingLock) {
+      if (installedSplitTunneling != null) {
+        return installedSplitTunneling;
+      }
+      final PackageManager packageManager = getPackageManager();
+      final Set<String> installedPackages = new HashSet<>();
+      for (String packageName : splitTunneling.packages) {
+        if (packageName.equals(getPackageName())) {
+          continue;
+        }
+        try {
+          packageManager.getApplicationInfo(packageName, 0);
+          installedPackages.add(packageName);
+        } catch (PackageManager.NameNotFoundException e) {
+          LOG.fine(String.format(Locale.ROOT, "Split tunneling package not installed: %s",
+              packageName));
+        }
+      }
+      installedSplitTunneling = new SplitTunneling(splitTunneling.mode, installedPackages);
+      return installedSplitTunneling;
+    }
+  }
+
+  // IPv6 API
+
+  /**
+   * Sets whether the VPN carries IPv6 traffic, and persists the setting. When disabled, IPv6
+   * traffic bypasses the VPN, so it should only be enabled with servers that reach IPv6
+   * destinations. Reestablishes the VPN if a connection is active and the setting changed.
+   */
+  public void setIpv6Enabled(boolean isIpv6Enabled) {
+    if (this.isIpv6Enabled == isIpv6Enabled) {
+      return;
+    }
+    this.isIpv6Enabled = isIpv6Enabled;
+    connectionStore.setIpv6Enabled(isIpv6Enabled);
+    if (activeConnectionId != null) {
+      postEvent("reestablish", new Runnable() {
+        @Override
+        public void run() {
+          if (activeConnectionId != null) {
+            reestablishVpn();
+          }
+        }
+      });
+    }
+  }
+
+  boolean isIpv6Enabled() {
+    return isIpv6Enabled;
+  }
+
+  /**
+   * Returns the MTU for the VPN of the active connection over |network|, derived from the path MTU
+   * to its server if it has been discovered for |network|, or the default MTU otherwise. Does not
+   * block; see |discoverTunMtu|.
+   *
+   * @param network underlying network, or null for the default one.
+   */
+  int getTunMtu(final Network network) {
+    final JSONObject config = activeServerConfig;
+    if (config == null) {
+      return PathMtuDiscovery.getDefaultTunMtu();
+    }
+    return pathMtuDiscovery.getCachedTunMtu(
+        network, config.optString("host"), config.optInt("port"));
+  }
+
+  /* Returns the MTU for the VPN of the connection to the server in |config| over |network|, probing
+   * the path unless the result for |network| is cached. Blocks; called on a worker thread. */
+  private int discoverTunMtu(final Network network, final JSONObject config) {
+    return pathMtuDiscovery.discoverTunMtu(
+        network, config.optString("host"), config.optInt("port"));
+  }
+
+  /* Discovers the path MTU of the newly established VPN in the background, and reestablishes the
+   * VPN if the MTU for its network differs from the one it was established with. Runs on the event
+   * loop. */
+  private void scheduleMtuDiscovery() {
+    final Network network = vpnTunnel.getNetwork();
+    if (network == null) {
+      return;  // Results for the default network are not cached, so they cannot be applied.
+    }
+    final int generation = connectionGeneration;
+    final String connectionId = activeConnectionId;
+    final JSONObject config = activeServerConfig;
+    final Runnable mtuDiscoveryTask = new Runnable() {
+      @Override
+      public void run() {
+        final int tunMtu = discoverTunMtu(network, config);
+        postEvent("mtuDiscovered", new Runnable() {
+          @Override
+          public void run() {
+            if (generation != connectionGeneration || !connectionId.equals(activeConnectionId)
+                || state != ConnectionState.CONNECTED || tunMtu == vpnTunnel.getMtu()) {
+              return;
+            }
+            LOG.info(String.format(Locale.ROOT, "MTU: %d -> %d", vpnTunnel.getMtu(), tunMtu));
+            reestablishVpn();
+          }
+        });
+      }
+    };
+    scheduler.execute("mtuDiscovery", TaskScheduler.Priority.BACKGROUND, revalidation,
+        TaskScheduler.NO_TIMEOUT, mtuDiscoveryTask);
+  }
+
+  // Establishes the VPN of the active connection again, to apply new settings. The connection is
+  // torn down if this fails. Runs on the event loop.
+  private void reestablishVpn() {
+    LOG.info("Reestablishing the VPN.");
+    final ConnectionState previousState = state;
+    if (previousState == ConnectionState.CONNECTED) {
+      setState(ConnectionState.RECONNECTING);
+    }
+    vpnTunnel.disconnectTunnel();
+    try {
+      if (!vpnTunnel.establishVpn()) {
+        throw new IllegalStateException("Failed to establish the VPN");
+      }
+      vpnTunnel.connectTunnel(
+          shadowsocks.getLocalServerAddress(), connectionStore.isUdpSupported());
+      setState(previousState);
+    } catch (Exception e) {
+      LOG.log(Level.SEVERE, "Failed to reestablish the VPN", e);
+      broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
+      tearDownActiveConnection();
+    }
+  }
+
+  /* Called by the tunnel when its engine stops relaying traffic on its own. Disconnects the active
+   * connection, since the tunnel would otherwise report CONNECTED while dropping all traffic. */
+  void onTunnelFailure() {
+    postEvent("tunnelFailure", new Runnable() {
+      @Override
+      public void run() {
+        if (activeConnectionId == null || !vpnTunnel.hasTunnelFailed()) {
+          return;  // The failed tunnel was already disconnected.
+        }
+        LOG.severe("The tunnel failed, disconnecting.");
+        broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
+        tearDownActiveConnection();
+      }
+    });
+  }
+
+  /* Called when the local Shadowsocks server stops serving on its own. Disconnects the active
+   * connection, whose traffic would otherwise fail while it reports CONNECTED. A start in progress
+   * replaces the server, and reports its own failure. */
+  private void onShadowsocksFailure() {
+    postEvent("shadowsocksFailure", new Runnable() {
+      @Override
+      public void run() {
+        if (activeConnectionId == null || pendingStart != null || shadowsocks.isRunning()) {
+          return;
+        }
+        LOG.severe("The local Shadowsocks server failed, disconnecting.");
+        broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
+        tearDownActiveConnection();
+      }
+    });
+  }
+
+  /**
+   * Speculatively prepares the last connection, so that it starts faster if the user reconnects to
+   * it soon: starts the local Shadowsocks server and checks the remote server in the background.
+   * The preparation is discarded if the connection is not started within |WARM_UP_WINDOW_MS|. Does
+   * nothing if a connection is active or there is no previous connection. Does not block.
+   */
+  public void warmUpLastConnection() {
+    final JSONObject connection = connectionStore.load();
+    final JSONObject config =
+        connection == null ? null : connection.optJSONObject(CONNECTION_CONFIG_KEY);
+    if (config == null) {
+      return;
+    }
+    synchronized (warmUpLock) {
+      if (activeConnectionId != null || warmUp != null) {
+        return;
+      }
+      LOG.info("Warming up the last connection.");
+      final WarmUp newWarmUp = new WarmUp(config);
+      warmUp = newWarmUp;
+      newWarmUp.result = scheduler.submit("warmUp", TaskScheduler.Priority.BACKGROUND, newWarmUp,
+          TaskScheduler.NO_TIMEOUT, new Callable<OutlinePlugin.ErrorCode>() {
+            public OutlinePlugin.ErrorCode call() {
+              // Starts of connections are also synchronized on |shadowsocks|, and take the warm-up
+              // before starting their server, so they replace the warm-up's server. |warmUpLock| is
+              // only held briefly, since the event loop takes it.
+              synchronized (shadowsocks) {
+                synchronized (warmUpLock) {
+                  // Do not replace the server of a connection that started in the meantime.
+                  if (warmUp != newWarmUp) {
+                    return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+                  }
+                }
+                try {
+                  if (!shadowsocks.start(config, newWarmUp.cancellation)) {
+                    return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+                  }
+                } catch (JSONException e) {
+                  LOG.log(Level.SEVERE, "Failed to parse the Shadowsocks config", e);
+                  return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+                }
+              }
+              return checkServerConnectivity(newWarmUp.priority, newWarmUp,
+                  newWarmUp.cancellation, Shadowsocks.LOCAL_SERVER_ADDRESS,
+                  Integer.parseInt(Shadowsocks.LOCAL_SERVER_PORT), config.optString("host"),
+                  config.optInt("port"));
+            }
+          });
+      new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+        @Override
+        public void run() {
+          postEvent("discardWarmUp", new Runnable() {
+            @Override
+            public void run() {
+              discardWarmUp(newWarmUp);
+            }
+          });
+        }
+      }, WARM_UP_WINDOW_MS);
+    }
+  }
+
+  /* Returns the warmed-up connection, if any, which the caller becomes responsible for. */
+  private WarmUp takeWarmUp() {
+    synchronized (warmUpLock) {
+      final WarmUp takenWarmUp = warmUp;
+      warmUp = null;
+      return takenWarmUp;
+    }
+  }
+
+  /* Stops the local server started by |staleWarmUp|, unless the connection has been started. Runs
+   * on the event loop, which starts connections, so none can start concurrently. */
+  private void discardWarmUp(WarmUp staleWarmUp) {
+    synchronized (warmUpLock) {
+      if (warmUp != staleWarmUp) {
+        return;
+      }
+      warmUp = null;
+    }
+    LOG.info("Discarding the warmed-up connection.");
+    // Cancelling first wakes up a start in progress, which holds |shadowsocks| until it returns.
+    cancelWarmUp(staleWarmUp);
+    shadowsocks.stop();
+  }
+
+  /* Cancels the tasks of |warmUp|. Does not stop its local server, which a start may replace. */
+  private void cancelWarmUp(final WarmUp warmUp) {
+    warmUp.cancellation.cancel();
+    cancelTasks(warmUp);
+  }
+
+  /* Returns the result of |warmUp|'s connectivity checks, waiting for them to complete, if it was
+   * done for |config| and succeeded. Returns null otherwise, in which case the connection must be
+   * started from scratch. The warm-up's remaining tasks are promoted to the user's priority, so
+   * that the start does not wait behind background work. */
+  private OutlinePlugin.ErrorCode getWarmUpResult(WarmUp warmUp, JSONObject config) {
+    if (warmUp == null) {
+      return null;
+    } else if (!warmUp.isFor(config)) {
+      cancelWarmUp(warmUp);
+      return null;
+    }
+    warmUp.priority = TaskScheduler.Priority.USER;
+    scheduler.promote(warmUp, TaskScheduler.Priority.USER);
+    checkScheduler.promote(warmUp, TaskScheduler.Priority.USER);
+    try {
+      final OutlinePlugin.ErrorCode errorCode = warmUp.result.get();
+      if ((errorCode == OutlinePlugin.ErrorCode.NO_ERROR
+              || errorCode == OutlinePlugin.ErrorCode.UDP_RELAY_NOT_ENABLED)
+          && shadowsocks.isRunning()) {
+        return errorCode;
+      }
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Failed to warm up the connection", e);
+    }
+    return null;
+  }
+
+  /**
+   * Checks the servers in |configs| concurrently and ranks them by round-trip time. Does not affect
+   * the active connection. Blocks until the race ends; a start, a stop, or another race ends it
+   * early, failing the checks that have not completed.
+   *
+   * @param configs Shadowsocks configuration parameters of the candidate servers.
+   * @param waitForAll whether to wait for all checks to complete, in order to find the server with
+   *     the lowest round-trip time; otherwise ranks the first healthy server first.
+   * @return the ranking, best server first. Each entry holds the |index| of the server in
+   *     |configs|, an |errorCode| as defined in OutlinePlugin.ErrorCode, the round-trip time
+   *     |rttMs| or -1 if unknown, and whether the checks completed, |isComplete|.
+   * @throws IllegalArgumentException if |configs| is missing or empty.
+   */
+  public JSONArray rankServers(final JSONArray configs, boolean waitForAll) throws JSONException {
+    if (configs == null || configs.length() == 0) {
+      throw new IllegalArgumentException("Must provide at least one server configuration.");
+    }
+    final List<JSONObject> candidates = new ArrayList<>(configs.length());
+    for (int i = 0; i < configs.length(); ++i) {
+      candidates.add(configs.getJSONObject(i));
+    }
+    LOG.info(String.format(Locale.ROOT, "Racing %d servers.", candidates.size()));
+    final CancellationToken cancellation = new CancellationToken();
+    cancelServerRace();
+    serverRace = cancellation;
+    // The user waits for the race, so its checks run with user priority, grouped under the race.
+    final Executor raceExecutor = new Executor() {
+      @Override
+      public void execute(Runnable check) {
+        checkScheduler.execute("serverRaceCheck", TaskScheduler.Priority.USER, cancellation,
+            SERVER_RACE_TIMEOUT_MS, check);
+      }
+    };
+    final List<ShadowsocksServerRace.Result> results;
+    try {
+      results = ShadowsocksServerRace.run(
+          candidates, waitForAll, SERVER_RACE_TIMEOUT_MS, raceExecutor, cancellation);
+    } finally {
+      cancelTasks(cancellation);  // Dequeue the checks that did not start.
+    }
+    final JSONArray ranking = new JSONArray();
+    for (ShadowsocksServerRace.Result result : results) {
+      OutlinePlugin.ErrorCode errorCode = OutlinePlugin.ErrorCode.SERVER_UNREACHABLE;
+      if (!result.isConfigValid) {
+        errorCode = OutlinePlugin.ErrorCode.ILLEGAL_SERVER_CONFIGURATION;
+      } else if (result.isHealthy()) {
+        errorCode = OutlinePlugin.ErrorCode.NO_ERROR;
+      } else if (result.isReachable) {
+        errorCode = OutlinePlugin.ErrorCode.INVALID_SERVER_CREDENTIALS;
+      }
+      ranking.put(new JSONObject()
+                      .put("index", result.index)
+                      .put("errorCode", errorCode.value)
+                      .put("rttMs", result.rttMs)
+                      .put("isComplete", result.isComplete));
+    }
+    return ranking;
+  }
+
+  /* Ends the server race in progress, closing the sockets of its checks. */
+  private void cancelServerRace() {
+    final CancellationToken race = serverRace;
+    race.cancel();
+    cancelTasks(race);
+  }
+
+  /* Cancels the tasks of |group| and their connectivity checks. */
+  private void cancelTasks(final Object group) {
+    scheduler.cancel(group);
+    checkScheduler.cancel(group);
+  }
+
+  // Connection lifecycle
+
+  /* Runs |event| on the event loop, after the events posted before it. Returns immediately. */
+  private void postEvent(final String name, final Runnable event) {
+    try {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          LOG.fine(String.format(Locale.ROOT, "Event %s in state %s", name, state));
+          try {
+            event.run();
+          } catch (Exception e) {
+            LOG.log(Level.SEVERE, String.format(Locale.ROOT, "Failed to handle event %s", name), e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warning(String.format(Locale.ROOT, "Dropped event %s after the service was destroyed",
+          name));
+    }
+  }
+
+  private void setState(ConnectionState newState) {
+    LOG.info(String.format(Locale.ROOT, "Connection state: %s -> %s", state, newState));
+    state = newState;
+  }
+
+  /* Handles a start request. Restarts the active connection in place, or starts the local server
+   * of a new connection on a worker thread, and continues with |onShadowsocksStarted|. */
+  private void onStart(final StartRequest request) {
+    final int generation = ++connectionGeneration;
+    abandonPendingStart();
+    final boolean isRestart = activeConnectionId != null;
+    // Do not perform connectivity checks when connecting on startup. We should avoid failing the
+    // connection due to a network error, as network may not be ready.
+    final WarmUp warmUp = takeUsableWarmUp(request, !isRestart && !request.isAutoStart);
+    if (request.connectionId.equals(activeConnectionId)) {
+      completeStart(request, false, false, OutlinePlugin.ErrorCode.NO_ERROR);
+      return;
+    }
+    // Switch servers in place when possible, keeping the tunnel and the connections in flight.
+    final boolean isSwitch = isRestart && shadowsocks.canSwitchTo(request.config);
+    // Broadcast the previous instance disconnect event before reassigning the connection ID.
+    broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.DISCONNECTED);
+    stopForeground();
+    pendingStart = request;
+    setState(isSwitch ? ConnectionState.SWITCHING : ConnectionState.STARTING);
+    final Runnable startTask = new Runnable() {
+      @Override
+      public void run() {
+        OutlinePlugin.ErrorCode errorCode;
+        try {
+          errorCode = getWarmUpResult(warmUp, request.config);
+          if (errorCode != null) {
+            LOG.info("Using the warmed-up connection.");
+          } else if (isSwitch) {
+            errorCode = switchShadowsocks(request, generation);
+          } else {
+            errorCode = startShadowsocks(request, !request.isAutoStart, generation);
+          }
+        } catch (Exception e) {
+          errorCode = OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+        }
+        final OutlinePlugin.ErrorCode startErrorCode = errorCode;
+        postEvent("shadowsocksStarted", new Runnable() {
+          @Override
+          public void run() {
+            onShadowsocksStarted(request, generation, isSwitch, startErrorCode);
+          }
+        });
+      }
+    };
+    scheduler.execute(
+        "start", TaskScheduler.Priority.USER, request, TaskScheduler.NO_TIMEOUT, startTask);
+  }
+
+  /* Takes the warmed-up connection for |request|, if any and |canUseWarmUp|, and cancels it
+   * otherwise. A taken warm-up is cancelled along with the request, if it is superseded. */
+  private WarmUp takeUsableWarmUp(final StartRequest request, boolean canUseWarmUp) {
+    final WarmUp warmUp = takeWarmUp();
+    if (warmUp == null) {
+      return null;
+    } else if (!canUseWarmUp) {
+      cancelWarmUp(warmUp);
+      return null;
+    }
+    request.cancellation.register(new Closeable() {
+      @Override
+      public void close() {
+        cancelWarmUp(warmUp);
+      }
+    });
+    return warmUp;
+  }
+
+  private void onShadowsocksStarted(final StartRequest request, int generation, boolean isSwitch,
+      OutlinePlugin.ErrorCode errorCode) {
+    if (generation != connectionGeneration) {
+      LOG.info(String.format(Locale.ROOT, "Dropping the superseded start of connection %s.",
+          request.connectionId));
+      return;
+    }
+    pendingStart = null;
+    if (!(errorCode == OutlinePlugin.ErrorCode.NO_ERROR
+            || errorCode == OutlinePlugin.ErrorCode.UDP_RELAY_NOT_ENABLED)) {
+      // A failed switch only discards the new server; the local server still relays to the
+      // previous one.
+      if (isSwitch && shadowsocks.isRunning()) {
+        onSwitchFailure(request.connectionId, errorCode);
+      } else {
+        onVpnStartFailure(request.connectionId, errorCode);
+      }
+      return;
+    }
+    completeStart(request, true, isSwitch, errorCode);
+  }
+
+  /* Connects the tunnel of a started connection, establishing the VPN if there is no active
+   * connection. |errorCode| is the result of the local server's start. */
+  private void completeStart(final StartRequest request, boolean isNewConnection, boolean isSwitch,
+      OutlinePlugin.ErrorCode errorCode) {
+    final boolean isRestart = activeConnectionId != null;
+    activeConnectionId = request.connectionId;
+    activeServerConfig = request.config;
+    if (isNewConnection) {
+      trafficStats.reset();
+    }
+
+    final boolean remoteUdpForwardingEnabled = !isNewConnection || request.isAutoStart
+        ? connectionStore.isUdpSupported()
+        : errorCode == OutlinePlugin.ErrorCode.NO_ERROR;
+    if (isRestart && (isSwitch || !isNewConnection)
+        && updateTunnelInPlace(remoteUdpForwardingEnabled, isSwitch)) {
+      LOG.info("Restarted the connection without reconnecting the tunnel.");
+    } else {
+      if (isRestart) {
+        vpnTunnel.disconnectTunnel();
+      } else {
+        // Only establish the VPN if this is not a connection restart.
+        if (!vpnTunnel.establishVpn()) {
+          LOG.severe("Failed to establish the VPN");
+          onVpnStartFailure(request.connectionId, OutlinePlugin.ErrorCode.VPN_START_FAILURE);
+          return;
+        }
+        startNetworkConnectivityMonitor();
+      }
+      try {
+        vpnTunnel.connectTunnel(shadowsocks.getLocalServerAddress(), remoteUdpForwardingEnabled);
+      } catch (Exception e) {
+        LOG.log(Level.SEVERE, "Failed to connect the tunnel", e);
+        onVpnStartFailure(request.connectionId, OutlinePlugin.ErrorCode.VPN_START_FAILURE);
+        return;
+      }
+    }
+    setState(ConnectionState.CONNECTED);
+    broadcastVpnStart(request.connectionId, OutlinePlugin.ErrorCode.NO_ERROR);
+    startStatsSampling();
+    startForegroundWithNotification(request.config, OutlinePlugin.ConnectionStatus.CONNECTED);
+    storeActiveConnection(request.connectionId, request.config, remoteUdpForwardingEnabled);
+    if (!isRestart) {
+      scheduleMtuDiscovery();
+    }
+    if (request.isAutoStart) {
+      onAutoStarted(request);
+    }
+  }
+
+  private void onStop(final String connectionId) {
+    if (!connectionId.equals(activeConnectionId)
+        && (pendingStart == null || !connectionId.equals(pendingStart.connectionId))) {
+      LOG.warning(String.format(Locale.ROOT, "Connection %s not active.", connectionId));
+      broadcastVpnStop(connectionId, OutlinePlugin.ErrorCode.UNEXPECTED);
+      return;
+    }
+    broadcastVpnStop(connectionId, OutlinePlugin.ErrorCode.NO_ERROR);
+    tearDownActiveConnection();
+  }
+
+  /* Fails the start in progress, if any, and cancels its tasks. Their result will be dropped as
+   * superseded. */
+  private void abandonPendingStart() {
+    if (pendingStart == null) {
+      return;
+    }
+    LOG.info(String.format(Locale.ROOT, "Abandoning the start of connection %s.",
+        pendingStart.connectionId));
+    pendingStart.cancellation.cancel();
+    cancelTasks(pendingStart);
+    broadcastVpnStart(pendingStart.connectionId, OutlinePlugin.ErrorCode.VPN_START_FAILURE);
+    pendingStart = null;
+  }
+
+  /* Returns whether the connected tunnel can serve a restarted connection, whose server supports
+   * UDP forwarding as given by |remoteUdpForwardingEnabled|. The tunnel must be reconnected when
+   * UDP support changes, unless its engine can apply the change in place. |isServerSwitch| denotes
+   * whether the local server switched servers, which the tunnel is unaware of. */
+  private boolean updateTunnelInPlace(boolean remoteUdpForwardingEnabled, boolean isServerSwitch) {
+    if (isServerSwitch && remoteUdpForwardingEnabled == connectionStore.isUdpSupported()) {
+      return true;
+    }
+    return vpnTunnel.updateUdpForwarding(remoteUdpForwardingEnabled);
+  }
+
   /* Helper method to broadcast a VPN start the failure and reset the service state. */
-  private void onVpnStartFailure(OutlinePlugin.ErrorCode errorCode) {
-    broadcastVpnStart(errorCode);
+  private void onVpnStartFailure(final String connectionId, OutlinePlugin.ErrorCode errorCode) {
+    broadcastVpnStart(connectionId, errorCode);
     tearDownActiveConnection();
   }
 
-  /* Helper method to tear down an active connection. */
+  /* Reports the failed start of |connectionId|, which was to switch the active connection to its
+   * server, and keeps the active connection. */
+  private void onSwitchFailure(final String connectionId, OutlinePlugin.ErrorCode errorCode) {
+    LOG.warning(String.format(Locale.ROOT, "Failed to switch to connection %s; keeping %s.",
+        connectionId, activeConnectionId));
+    broadcastVpnStart(connectionId, errorCode);
+    setState(ConnectionState.CONNECTED);
+    broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.CONNECTED);
+    startForegroundWithNotification(activeServerConfig, OutlinePlugin.ConnectionStatus.CONNECTED);
+  }
+
+  /* Helper method to tear down an active connection, and abandon any start in progress. */
   private void tearDownActiveConnection() {
+    setState(ConnectionState.STOPPING);
+    ++connectionGeneration;
+    abandonPendingStart();
+    revalidation.cancel();
+    cancelTasks(revalidation);
+    revalidation = new CancellationToken();
+    stopStatsSampling();
     stopVpnTunnel();
     stopForeground();
     activeConnectionId = null;
     activeServerConfig = null;
+    autoStartMetrics = null;
     stopNetworkConnectivityMonitor();
     connectionStore.setConnectionStatus(OutlinePlugin.ConnectionStatus.DISCONNECTED);
+    setState(ConnectionState.IDLE);
   }
 
   /* Helper method that stops Shadowsocks, tun2socks, and tears down the VPN. */
@@ -262,67 +1068,154 @@ public class VpnTunnelService extends VpnService {
     vpnTunnel.tearDownVpn();
   }
 
+  // Stats
+
+  private synchronized void startStatsSampling() {
+    if (statsSampling != null) {
+      return;
+    }
+    statsSampling = statsSampler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        trafficStats.sample();
+      }
+    }, 0, STATS_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopStatsSampling() {
+    if (statsSampling != null) {
+      statsSampling.cancel(false);
+      statsSampling = null;
+    }
+  }
+
   // Shadowsocks
 
   /* Starts a local Shadowsocks server and performs connectivity tests if
-   * |performConnectivityChecks| is true, to ensure compatibility. Returns a Future encapsulating an
-   * error code, as defined in OutlinePlugin.ErrorCode. */
-  private Future<OutlinePlugin.ErrorCode> startShadowsocks(
-      final JSONObject config, final boolean performConnectivityChecks) {
-    return executorService.submit(
-        new Callable<OutlinePlugin.ErrorCode>() {
-          public OutlinePlugin.ErrorCode call() {
-            try {
-              // No need to stop explicitly; shadowsocks.start will stop any running instances.
-              if (!shadowsocks.start(config)) {
-                LOG.severe("Failed to start Shadowsocks.");
-                return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
-              }
-              if (performConnectivityChecks) {
-                return checkServerConnectivity(Shadowsocks.LOCAL_SERVER_ADDRESS,
-                    Integer.parseInt(Shadowsocks.LOCAL_SERVER_PORT), config.getString("host"),
-                    config.getInt("port"));
-              }
-              return OutlinePlugin.ErrorCode.NO_ERROR;
-            } catch (JSONException e) {
-              LOG.log(Level.SEVERE, "Failed to parse the Shadowsocks config", e);
-            }
-            return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
-          }
-        });
+   * |performConnectivityChecks| is true, to ensure compatibility. Returns an error code, as defined
+   * in OutlinePlugin.ErrorCode. Called on a worker thread; does not start the server if the start
+   * of |generation| has been superseded. */
+  private OutlinePlugin.ErrorCode startShadowsocks(final StartRequest request,
+      final boolean performConnectivityChecks, int generation) {
+    final JSONObject config = request.config;
+    try {
+      // Shadowsocks synchronizes its methods on the instance, so a stop on the event loop either
+      // precedes this check or follows the start.
+      synchronized (shadowsocks) {
+        if (generation != connectionGeneration) {
+          return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+        }
+        // No need to stop explicitly; shadowsocks.start will stop any running instances.
+        if (!shadowsocks.start(config, request.cancellation)) {
+          LOG.severe("Failed to start Shadowsocks.");
+          return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+        }
+      }
+      if (performConnectivityChecks) {
+        return checkServerConnectivity(TaskScheduler.Priority.USER, request, request.cancellation,
+            Shadowsocks.LOCAL_SERVER_ADDRESS, Integer.parseInt(Shadowsocks.LOCAL_SERVER_PORT),
+            config.getString("host"), config.getInt("port"));
+      }
+      return OutlinePlugin.ErrorCode.NO_ERROR;
+    } catch (JSONException e) {
+      LOG.log(Level.SEVERE, "Failed to parse the Shadowsocks config", e);
+    }
+    return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+  }
+
+  /* Switches the running local Shadowsocks server to |config| without dropping its connections.
+   * The new server is checked through a temporary local server before any traffic is redirected to
+   * it. Returns an error code, as defined in OutlinePlugin.ErrorCode. Called on a worker thread;
+   * does not switch if the start of |generation| has been superseded. */
+  private OutlinePlugin.ErrorCode switchShadowsocks(final StartRequest request, int generation) {
+    final JSONObject config = request.config;
+    try {
+      final int candidatePort;
+      synchronized (shadowsocks) {
+        if (generation != connectionGeneration) {
+          return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+        }
+        candidatePort = shadowsocks.prepareSwitch(config);
+      }
+      if (candidatePort < 0) {
+        LOG.severe("Failed to start Shadowsocks.");
+        return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+      }
+      final OutlinePlugin.ErrorCode errorCode = checkServerConnectivity(TaskScheduler.Priority.USER,
+          request, request.cancellation, Shadowsocks.LOCAL_SERVER_ADDRESS, candidatePort,
+          config.getString("host"), config.getInt("port"));
+      synchronized (shadowsocks) {
+        if (generation != connectionGeneration) {
+          // The superseding start or stop has discarded the temporary server.
+          return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+        }
+        if (!(errorCode == OutlinePlugin.ErrorCode.NO_ERROR
+                || errorCode == OutlinePlugin.ErrorCode.UDP_RELAY_NOT_ENABLED)) {
+          shadowsocks.discardSwitch();
+          return errorCode;
+        }
+        if (!shadowsocks.commitSwitch()) {
+          return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
+        }
+      }
+      return errorCode;
+    } catch (JSONException e) {
+      LOG.log(Level.SEVERE, "Failed to parse the Shadowsocks config", e);
+    }
+    shadowsocks.discardSwitch();
+    return OutlinePlugin.ErrorCode.SHADOWSOCKS_START_FAILURE;
   }
 
   /* Checks that the remote server is reachable, allows UDP forwarding, and the credentials are
-   * valid. Executes the three checks in parallel in order to minimize the user's wait time. */
+   * valid. Executes the three checks in parallel in order to minimize the user's wait time, with
+   * |priority|, as tasks of |group| on |checkScheduler|, and waits for them. The checks fail as
+   * soon as |cancellation| is cancelled. */
   private OutlinePlugin.ErrorCode checkServerConnectivity(
+      TaskScheduler.Priority priority,
+      final Object group,
+      final CancellationToken cancellation,
       final String localServerAddress,
       final int localServerPort,
       final String remoteServerAddress,
       final int remoteServerPort) {
+    // Measured by the reachability check, and used by the UDP check once known, so that the UDP
+    // check starts without waiting for it.
+    final ShadowsocksConnectivity.RttEstimate serverRtt =
+        new ShadowsocksConnectivity.RttEstimate();
     final Callable<Boolean> udpForwardingCheck =
         new Callable<Boolean>() {
           public Boolean call() {
-            return ShadowsocksConnectivity.isUdpForwardingEnabled(
-                localServerAddress, localServerPort);
+            return ShadowsocksConnectivity
+                .probeUdpForwarding(localServerAddress, localServerPort, serverRtt, cancellation)
+                .isUdpForwardingEnabled();
           }
         };
     final Callable<Boolean> reachabilityCheck =
         new Callable<Boolean>() {
           public Boolean call() {
-            return ShadowsocksConnectivity.isServerReachable(remoteServerAddress, remoteServerPort);
+            long rttMs = ConnectionProfile.UNKNOWN_RTT;
+            try {
+              rttMs = measureServerRtt(remoteServerAddress, remoteServerPort, cancellation);
+            } finally {
+              serverRtt.set(rttMs);
+            }
+            return rttMs != ConnectionProfile.UNKNOWN_RTT;
           }
         };
     final Callable<Boolean> credentialsValidationCheck =
         new Callable<Boolean>() {
           public Boolean call() {
             return ShadowsocksConnectivity.validateServerCredentials(
-                localServerAddress, localServerPort);
+                localServerAddress, localServerPort, cancellation);
           }
         };
     try {
-      Future<Boolean> udpCheckResult = executorService.submit(udpForwardingCheck);
-      Future<Boolean> reachabilityCheckResult = executorService.submit(reachabilityCheck);
-      Future<Boolean> credentialsCheckResult = executorService.submit(credentialsValidationCheck);
+      Future<Boolean> udpCheckResult = checkScheduler.submit("udpForwardingCheck", priority, group,
+          CONNECTIVITY_CHECK_TIMEOUT_MS, udpForwardingCheck);
+      Future<Boolean> reachabilityCheckResult = checkScheduler.submit("reachabilityCheck", priority,
+          group, CONNECTIVITY_CHECK_TIMEOUT_MS, reachabilityCheck);
+      Future<Boolean> credentialsCheckResult = checkScheduler.submit("credentialsCheck", priority,
+          group, CONNECTIVITY_CHECK_TIMEOUT_MS, credentialsValidationCheck);
       boolean isUdpForwardingEnabled = udpCheckResult.get();
       if (isUdpForwardingEnabled) {
         // The UDP forwarding check is a superset of the TCP checks. Don't wait for the other tests
@@ -348,10 +1241,39 @@ public class VpnTunnelService extends VpnService {
     return OutlinePlugin.ErrorCode.SERVER_UNREACHABLE;
   }
 
+  /* Returns the time to connect to the remote server, and records it in the profiles of its
+   * connections. Returns |ConnectionProfile.UNKNOWN_RTT| if the server is unreachable, or
+   * |cancellation| is cancelled first. */
+  private long measureServerRtt(final String remoteServerAddress, int remoteServerPort,
+      final CancellationToken cancellation) {
+    final long rttMs = ShadowsocksConnectivity.measureServerRtt(
+        remoteServerAddress, remoteServerPort, cancellation);
+    if (rttMs < 0) {
+      return ConnectionProfile.UNKNOWN_RTT;
+    }
+    connectionStore.recordRtt(remoteServerAddress, remoteServerPort, rttMs);
+    return rttMs;
+  }
+
   // Connectivity
 
+  /**
+   * Reacts to changes of the underlying network. Routing and status changes are applied as events
+   * arrive, while the remote server's UDP support is checked once the network settles: events are
+   * coalesced for |NETWORK_SETTLE_MS|, only the latest network is checked, off the callback thread,
+   * and checks superseded by a newer event are cancelled and their result discarded.
+   */
   private class NetworkConnectivityMonitor extends ConnectivityManager.NetworkCallback {
+    private static final int NETWORK_SETTLE_MS = 1000;
+
     private ConnectivityManager connectivityManager;
+    private final ScheduledExecutorService networkCheckExecutor =
+        Executors.newSingleThreadScheduledExecutor();
+    // Incremented with each network event, to identify superseded checks. Guarded by |this|.
+    private int networkEventCount = 0;
+    // Cancels the probes of the pending or running check. Guarded by |this|.
+    private CancellationToken networkCheckCancellation = new CancellationToken();
+    private ScheduledFuture<?> pendingNetworkCheck = null;
 
     public NetworkConnectivityMonitor() {
       this.connectivityManager =
@@ -359,14 +1281,31 @@ public class VpnTunnelService extends VpnService {
     }
 
     @Override
-    public void onAvailable(Network network) {
+    public void onAvailable(final Network network) {
       NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
       LOG.fine(String.format(Locale.ROOT, "Network available: %s", networkInfo));
       if (networkInfo == null || networkInfo.getState() != NetworkInfo.State.CONNECTED) {
         return;
       }
-      broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.CONNECTED);
-      startForegroundWithNotification(activeServerConfig, OutlinePlugin.ConnectionStatus.CONNECTED);
+      postEvent("networkAvailable", new Runnable() {
+        @Override
+        public void run() {
+          onNetworkAvailable(network);
+        }
+      });
+    }
+
+    private void onNetworkAvailable(final Network network) {
+      if (activeConnectionId == null) {
+        return;
+      }
+      // Switches and restarts report their own status once they complete.
+      if (state == ConnectionState.CONNECTED || state == ConnectionState.RECONNECTING) {
+        setState(ConnectionState.CONNECTED);
+        broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.CONNECTED);
+        startForegroundWithNotification(
+            activeServerConfig, OutlinePlugin.ConnectionStatus.CONNECTED);
+      }
 
       if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
         // Indicate that traffic will be sent over the current active network.
@@ -377,20 +1316,11 @@ public class VpnTunnelService extends VpnService {
         // `getActiveNetworkInfo` have been observed to return the underlying network set by us.
         setUnderlyingNetworks(new Network[] {network});
       }
-
-      final boolean wasUdpSupported = connectionStore.isUdpSupported();
-      final boolean isUdpSupported = ShadowsocksConnectivity.isUdpForwardingEnabled(
-          Shadowsocks.LOCAL_SERVER_ADDRESS, Integer.parseInt(Shadowsocks.LOCAL_SERVER_PORT));
-      connectionStore.setIsUdpSupported(isUdpSupported);
-      LOG.info(String.format("UDP support: %s -> %s", wasUdpSupported, isUdpSupported));
-      if (isUdpSupported != wasUdpSupported) {
-        // UDP forwarding support changed with the network; restart the connection.
-        startConnection(activeConnectionId, activeServerConfig);
-      }
+      scheduleNetworkCheck(network);
     }
 
     @Override
-    public void onLost(Network network) {
+    public void onLost(final Network network) {
       LOG.fine(String.format(
           Locale.ROOT, "Network lost: %s", connectivityManager.getNetworkInfo(network)));
       NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
@@ -398,6 +1328,23 @@ public class VpnTunnelService extends VpnService {
           && activeNetworkInfo.getState() == NetworkInfo.State.CONNECTED) {
         return;
       }
+      pathMtuDiscovery.invalidate(network);
+      cancelNetworkCheck();
+      postEvent("networkLost", new Runnable() {
+        @Override
+        public void run() {
+          onNetworkLost();
+        }
+      });
+    }
+
+    private void onNetworkLost() {
+      if (activeConnectionId == null) {
+        return;
+      }
+      if (state == ConnectionState.CONNECTED) {
+        setState(ConnectionState.RECONNECTING);
+      }
       broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus.RECONNECTING);
       startForegroundWithNotification(
           activeServerConfig, OutlinePlugin.ConnectionStatus.RECONNECTING);
@@ -406,6 +1353,90 @@ public class VpnTunnelService extends VpnService {
         setUnderlyingNetworks(null);
       }
     }
+
+    // Cancels any pending check, and stops checking networks.
+    void shutdown() {
+      cancelNetworkCheck();
+      networkCheckExecutor.shutdownNow();
+    }
+
+    // Cancels the pending or running check, if any. Its result is discarded.
+    synchronized void cancelNetworkCheck() {
+      ++networkEventCount;
+      networkCheckCancellation.cancel();
+      networkCheckCancellation = new CancellationToken();
+      if (pendingNetworkCheck != null) {
+        pendingNetworkCheck.cancel(true);
+        pendingNetworkCheck = null;
+      }
+    }
+
+    // Schedules a check of |network| once it settles, superseding any previous check.
+    private synchronized void scheduleNetworkCheck(final Network network) {
+      cancelNetworkCheck();
+      final int eventCount = networkEventCount;
+      final CancellationToken cancellation = networkCheckCancellation;
+      try {
+        pendingNetworkCheck = networkCheckExecutor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            checkNetwork(network, eventCount, cancellation);
+          }
+        }, NETWORK_SETTLE_MS, TimeUnit.MILLISECONDS);
+      } catch (Exception e) {
+        LOG.log(Level.WARNING, "Failed to schedule the network check", e);
+      }
+    }
+
+    private synchronized boolean isSuperseded(int eventCount) {
+      return eventCount != networkEventCount;
+    }
+
+    // Discards the connections established over the previous network, reestablishes the VPN if the
+    // MTU for |network| differs, and otherwise restarts the connection if the remote server's UDP
+    // support changed with |network|. Does nothing if a newer network event supersedes
+    // |eventCount|, or a start or teardown supersedes the connection. The probes fail as soon as
+    // |cancellation| is cancelled.
+    private void checkNetwork(
+        Network network, final int eventCount, final CancellationToken cancellation) {
+      final int generation = connectionGeneration;
+      final String connectionId = activeConnectionId;
+      final JSONObject config = activeServerConfig;
+      if (isSuperseded(eventCount) || config == null) {
+        return;
+      }
+      LOG.fine(String.format(Locale.ROOT, "Checking settled network: %s", network));
+      shadowsocks.onNetworkChanged();
+
+      final boolean wasUdpSupported = connectionStore.isUdpSupported();
+      final boolean isUdpSupported =
+          ShadowsocksConnectivity
+              .probeUdpForwarding(Shadowsocks.LOCAL_SERVER_ADDRESS,
+                  Integer.parseInt(Shadowsocks.LOCAL_SERVER_PORT), config.optString("host"),
+                  config.optInt("port"), cancellation)
+              .isUdpForwardingEnabled();
+      final int tunMtu = discoverTunMtu(network, config);
+      postEvent("networkChecked", new Runnable() {
+        @Override
+        public void run() {
+          if (isSuperseded(eventCount) || generation != connectionGeneration
+              || !connectionId.equals(activeConnectionId)) {
+            LOG.fine("Discarding superseded network check.");
+            return;
+          }
+          connectionStore.setIsUdpSupported(isUdpSupported);
+          LOG.info(String.format("UDP support: %s -> %s", wasUdpSupported, isUdpSupported));
+          if (tunMtu != vpnTunnel.getMtu()) {
+            LOG.info(String.format(Locale.ROOT, "MTU: %d -> %d", vpnTunnel.getMtu(), tunMtu));
+            // Also reconnects the tunnel with the new UDP support.
+            reestablishVpn();
+          } else if (isUdpSupported != wasUdpSupported) {
+            // UDP forwarding support changed with the network; restart the connection.
+            onStart(new StartRequest(connectionId, config, false, 0, null));
+          }
+        }
+      });
+    }
   }
 
   private void startNetworkConnectivityMonitor() {
@@ -427,6 +1458,7 @@ public class VpnTunnelService extends VpnService {
   private void stopNetworkConnectivityMonitor() {
     final ConnectivityManager connectivityManager =
         (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+    networkConnectivityMonitor.cancelNetworkCheck();
     try {
       connectivityManager.unregisterNetworkCallback(networkConnectivityMonitor);
     } catch (Exception e) {
@@ -436,67 +1468,183 @@ public class VpnTunnelService extends VpnService {
 
   // Broadcasts
 
+  // Events are broadcast to the listeners directly, on the event loop that produces them.
+
   /* Broadcast VPN start. |errorCode| determines whether the VPN was started successfully, or
    * specifies the error condition. */
-  private void broadcastVpnStart(OutlinePlugin.ErrorCode errorCode) {
-    Intent vpnStart = new Intent(OutlinePlugin.Action.START.value);
-    vpnStart.putExtra(OutlinePlugin.IntentExtra.ERROR_CODE.value, errorCode.value);
-    dispatchBroadcast(vpnStart);
+  private void broadcastVpnStart(final String connectionId, OutlinePlugin.ErrorCode errorCode) {
+    final ConnectionHandle connection = ConnectionHandle.of(connectionId);
+    for (VpnTunnelListener listener : listeners) {
+      try {
+        listener.onStart(connection, errorCode.value);
+      } catch (Exception e) {
+        logListenerFailure("onStart", e);
+      }
+    }
   }
 
   /* Broadcast VPN stop. */
-  private void broadcastVpnStop() {
-    Intent vpnStop = new Intent(OutlinePlugin.Action.STOP.value);
-    vpnStop.putExtra(OutlinePlugin.IntentExtra.ERROR_CODE.value,
-                     OutlinePlugin.ErrorCode.NO_ERROR.value);
-    dispatchBroadcast(vpnStop);
+  private void broadcastVpnStop(final String connectionId, OutlinePlugin.ErrorCode errorCode) {
+    final ConnectionHandle connection = ConnectionHandle.of(connectionId);
+    for (VpnTunnelListener listener : listeners) {
+      try {
+        listener.onStop(connection, errorCode.value);
+      } catch (Exception e) {
+        logListenerFailure("onStop", e);
+      }
+    }
   }
 
-  /* Broadcast change in the VPN connectivity. */
+  /* Broadcast change in the VPN connectivity of the active connection, if any. */
   private void broadcastVpnConnectivityChange(OutlinePlugin.ConnectionStatus status) {
-    Intent statusChange = new Intent(OutlinePlugin.Action.ON_STATUS_CHANGE.value);
-    statusChange.putExtra(OutlinePlugin.IntentExtra.PAYLOAD.value, status.value);
-    statusChange.putExtra(
-        OutlinePlugin.IntentExtra.ERROR_CODE.value, OutlinePlugin.ErrorCode.NO_ERROR.value);
-    dispatchBroadcast(statusChange);
+    final String connectionId = activeConnectionId;
+    if (connectionId == null) {
+      return;
+    }
+    final ConnectionHandle connection = ConnectionHandle.of(connectionId);
+    for (VpnTunnelListener listener : listeners) {
+      try {
+        listener.onStatusChange(connection, status.value);
+      } catch (Exception e) {
+        logListenerFailure("onStatusChange", e);
+      }
+    }
   }
 
-  private void dispatchBroadcast(Intent broadcast) {
-    if (activeConnectionId != null) {
-      broadcast.putExtra(OutlinePlugin.IntentExtra.CONNECTION_ID.value, activeConnectionId);
-    }
-    LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+  // Logs the failure of a listener, which must not skip the other listeners nor the rest of the
+  // event that notifies them.
+  private static void logListenerFailure(final String method, final Exception e) {
+    LOG.log(Level.SEVERE, String.format(Locale.ROOT, "Listener failed in %s", method), e);
   }
 
   // Autostart
 
-  private void startLastSuccessfulConnectionOrExit() {
-    LOG.info("Received an auto-connect request, loading last successful connection.");
-    JSONObject connection = connectionStore.load();
-    if (connection == null) {
-      LOG.info("Last successful connection not found. User not connected at shutdown/install.");
-      stopSelf();
+  /* Starts the last successful connection in the background, or stops the service if there is
+   * none. Returns immediately. |requestTimeMs| is the time of the request, since boot. */
+  private void startLastSuccessfulConnectionOrExit(final long requestTimeMs) {
+    LOG.info("Received an auto-connect request.");
+    // Start the service in the foreground as per Android 8+ background service execution limits,
+    // before loading the connection. Requires android.permission.FOREGROUND_SERVICE since
+    // Android P.
+    startForegroundWithNotification(null, OutlinePlugin.ConnectionStatus.RECONNECTING);
+    final Runnable autoStartTask = new Runnable() {
+      @Override
+      public void run() {
+        autoStartLastSuccessfulConnection(requestTimeMs);
+      }
+    };
+    scheduler.execute(
+        "autoStart", TaskScheduler.Priority.USER, null, TaskScheduler.NO_TIMEOUT, autoStartTask);
+  }
+
+  // Loads the connections to auto-start on a worker thread, and continues on the event loop.
+  private void autoStartLastSuccessfulConnection(final long requestTimeMs) {
+    LOG.info("Loading last successful connection.");
+    final List<ConnectionProfile> candidates = connectionStore.getAutoStartCandidates();
+    // We cannot prepare the VPN when running as a background service, as it requires UI.
+    final boolean isPrepared =
+        candidates.isEmpty() || VpnTunnelService.prepare(VpnTunnelService.this) == null;
+    postEvent("autoStart", new Runnable() {
+      @Override
+      public void run() {
+        onAutoStartCandidatesLoaded(candidates, isPrepared, requestTimeMs);
+      }
+    });
+  }
+
+  // Starts the first of |candidates|, or stops the service if there is none or the VPN is not
+  // prepared, unless a connection was started in the meantime. Runs on the event loop.
+  private void onAutoStartCandidatesLoaded(
+      final List<ConnectionProfile> candidates, boolean isPrepared, long requestTimeMs) {
+    if (candidates.isEmpty() || !isPrepared) {
+      if (candidates.isEmpty()) {
+        LOG.info("Last successful connection not found. User not connected at shutdown/install.");
+      } else {
+        LOG.warning("VPN not prepared, aborting auto-connect.");
+      }
+      if (activeConnectionId == null && pendingStart == null) {
+        stopForeground();
+        stopSelf();
+      }
       return;
     }
-    if (VpnTunnelService.prepare(VpnTunnelService.this) != null) {
-      // We cannot prepare the VPN when running as a background service, as it requires UI.
-      LOG.warning("VPN not prepared, aborting auto-connect.");
-      stopSelf();
-      return;
+    final ConnectionProfile profile = candidates.get(0);
+    synchronized (notificationLock) {
+      if (notificationBuilder != null) {
+        notificationBuilder.setContentTitle(getServerName(profile.config));
+      }
     }
+    startForegroundWithNotification(profile.config, OutlinePlugin.ConnectionStatus.RECONNECTING);
+    startConnection(new StartRequest(profile.id, profile.config, true, requestTimeMs, candidates));
+  }
+
+  // Records how long the auto-start of |request| took, and falls back to another server if its
+  // server is unreachable. Runs on the event loop, once the connection is active.
+  private void onAutoStarted(final StartRequest request) {
+    final long nowMs = SystemClock.elapsedRealtime();
+    final long requestTimeMs = request.requestTimeMs;
     try {
-      final JSONObject config = connection.getJSONObject(CONNECTION_CONFIG_KEY);
-      // Start the service in the foreground as per Android 8+ background service execution limits.
-      // Requires android.permission.FOREGROUND_SERVICE since Android P.
-      startForegroundWithNotification(config, OutlinePlugin.ConnectionStatus.RECONNECTING);
-      startConnection(connection.getString(CONNECTION_ID_KEY),
-          connection.getJSONObject(CONNECTION_CONFIG_KEY), true);
+      autoStartMetrics = new JSONObject()
+          .put("bootToTunnelMs", nowMs)
+          .put("requestToTunnelMs", nowMs - requestTimeMs);
     } catch (JSONException e) {
-      LOG.log(Level.SEVERE, "Failed to retrieve JSON connection data", e);
-      stopSelf();
+      // Unreachable with numeric values.
+    }
+    LOG.info(String.format(Locale.ROOT, "Auto-started the tunnel %d ms after boot, %d ms after the"
+        + " request.", nowMs, nowMs - requestTimeMs));
+    if (request.candidates.size() > 1) {
+      fallBackFromUnreachableServer(request.candidates);
     }
   }
 
+  /* Checks the reachability of the auto-started connection's server in the background, and
+   * switches to the first reachable server among |candidates| if it is down. Keeps the connection
+   * if no server is reachable, as the network may not be ready, or if another connection has
+   * started in the meantime. */
+  private void fallBackFromUnreachableServer(final List<ConnectionProfile> candidates) {
+    final String autoStartedId = candidates.get(0).id;
+    final CancellationToken cancellation = revalidation;
+    final Runnable autoStartFallbackTask = new Runnable() {
+      @Override
+      public void run() {
+        for (ConnectionProfile candidate : candidates) {
+          final String host = candidate.config.optString("host");
+          final int port = candidate.config.optInt("port");
+          if (measureServerRtt(host, port, cancellation) == ConnectionProfile.UNKNOWN_RTT) {
+            if (cancellation.isCancelled()) {
+              return;
+            }
+            LOG.info(String.format(Locale.ROOT, "Auto-start candidate %s unreachable.",
+                candidate.id));
+            continue;
+          }
+          if (!candidate.id.equals(autoStartedId)) {
+            switchToFallback(autoStartedId, candidate);
+          }
+          return;
+        }
+        LOG.warning("No auto-start candidate is reachable.");
+      }
+    };
+    scheduler.execute("autoStartFallback", TaskScheduler.Priority.BACKGROUND, cancellation,
+        TaskScheduler.NO_TIMEOUT, autoStartFallbackTask);
+  }
+
+  // Starts the connection of |candidate|, unless a connection other than |autoStartedId| is active
+  // or starting by then.
+  private void switchToFallback(final String autoStartedId, final ConnectionProfile candidate) {
+    postEvent("fallBack", new Runnable() {
+      @Override
+      public void run() {
+        if (!autoStartedId.equals(activeConnectionId) || pendingStart != null) {
+          return;
+        }
+        LOG.info(String.format(Locale.ROOT, "Falling back to connection %s.", candidate.id));
+        onStart(new StartRequest(candidate.id, candidate.config, false, 0, null));
+      }
+    });
+  }
+
   private void storeActiveConnection(
       final String connectionId, final JSONObject config, boolean isUdpSupported) {
     LOG.info("Storing active connection.");
@@ -507,6 +1655,7 @@ public class VpnTunnelService extends VpnService {
     } catch (JSONException e) {
       LOG.log(Level.SEVERE, "Failed to store JSON connection data", e);
     }
+    connectionStore.recordSuccess(connectionId, config, isUdpSupported);
     connectionStore.setConnectionStatus(OutlinePlugin.ConnectionStatus.CONNECTED);
     connectionStore.setIsUdpSupported(isUdpSupported);
   }
@@ -517,16 +1666,18 @@ public class VpnTunnelService extends VpnService {
   private void startForegroundWithNotification(
       final JSONObject serverConfig, OutlinePlugin.ConnectionStatus status) {
     try {
-      if (notificationBuilder == null) {
-        // Cache the notification builder so we can update the existing notification - creating a
-        // new notification has the side effect of resetting the connection timer.
-        notificationBuilder = getNotificationBuilder(serverConfig);
-      }
-      final String statusStringResourceId = status == OutlinePlugin.ConnectionStatus.CONNECTED
-          ? "connected_server_state"
-          : "reconnecting_server_state";
-      notificationBuilder.setContentText(getStringResource(statusStringResourceId));
-      startForeground(NOTIFICATION_SERVICE_ID, notificationBuilder.build());
+      synchronized (notificationLock) {
+        if (notificationBuilder == null) {
+          // Cache the notification builder so we can update the existing notification - creating a
+          // new notification has the side effect of resetting the connection timer.
+          notificationBuilder = getNotificationBuilder(serverConfig);
+        }
+        final String statusStringResourceId = status == OutlinePlugin.ConnectionStatus.CONNECTED
+            ? "connected_server_state"
+            : "reconnecting_server_state";
+        notificationBuilder.setContentText(getStringResource(statusStringResourceId));
+        startForeground(NOTIFICATION_SERVICE_ID, notificationBuilder.build());
+      }
     } catch (Exception e) {
       LOG.warning("Unable to display persistent notification");
     }
@@ -564,8 +1715,10 @@ public class VpnTunnelService extends VpnService {
 
   /* Stops the foreground service and removes the persistent notification. */
   private void stopForeground() {
-    stopForeground(true /* remove notification */);
-    notificationBuilder = null;
+    synchronized (notificationLock) {
+      stopForeground(true /* remove notification */);
+      notificationBuilder = null;
+    }
   }
 
   /* Retrieves the MainActivity class from the application package. */
@@ -578,6 +1731,11 @@ public class VpnTunnelService extends VpnService {
     }
   }
 
+  /* Returns the traffic counters of the active connection. */
+  TrafficStats getTrafficStats() {
+    return trafficStats;
+  }
+
   /* Retrieves the ID for a resource. This is equivalent to using the generated R class. */
   public int getResourceId(final String name, final String type) {
     return getResources().getIdentifier(name, type, getPackageName());
@@ -586,6 +1744,9 @@ public class VpnTunnelService extends VpnService {
   /* Returns the server's name from |serverConfig|. If the name is not present, it falls back to the
    * host name (IP address), or the application name if neither can be retrieved. */
   private final String getServerName(final JSONObject serverConfig) {
+    if (serverConfig == null) {
+      return getStringResource("server_default_name_outline");
+    }
     try {
       String serverName = serverConfig.getString("name");
       if (serverName == null || serverName.equals("")) {
@@ -33,6 +33,25 @@ const log = {
   }
 };
 
+// Selects the applications whose traffic goes through the VPN. Android only.
+//  - mode: 'all', 'allowlist' to only include |packages|, or 'denylist' to exclude them.
+//  - packages: application package names.
+// Applies immediately to an active connection, and persists across restarts.
+const splitTunneling = {
+  get: function() {
+    return new Promise(function(resolve, reject) {
+      exec(resolve, reject, PLUGIN_NAME, 'getSplitTunneling', []);
+    });
+  },
+
+  set: function(mode, packages) {
+    return new Promise(function(resolve, reject) {
+      exec(resolve, reject, PLUGIN_NAME, 'setSplitTunneling',
+           [{mode: mode, packages: packages || []}]);
+    });
+  }
+};
+
 function quitApplication() {
   exec(function() {}, function() {}, PLUGIN_NAME, 'quitApplication', []);
 }
@@ -101,6 +120,20 @@ Connection.prototype.start = function() {
   return this._promiseExec('start', [this.config]);
 };
 
+// Starts a connection to the fastest healthy server among this connection's configuration and
+// |alternateConfigs|, and switches this connection's configuration to it. Servers are checked
+// concurrently; the first healthy one wins, unless |waitForAll| is set, in which case the one with
+// the lowest round-trip time wins. Resolves with the ranking of the servers, best first. Each
+// entry has the |index| of the server, 0 being this connection's configuration, its |errorCode|,
+// round-trip time |rttMs| (-1 if unknown), and whether its checks completed, |isComplete|.
+Connection.prototype.startFastest = function(alternateConfigs, waitForAll) {
+  const configs = [this.config].concat(alternateConfigs || []);
+  return this._promiseExec('startFastest', [configs, !!waitForAll]).then(function(ranking) {
+    this.config = configs[ranking[0].index];
+    return ranking;
+  }.bind(this));
+};
+
 Connection.prototype.stop = function() {
   return this._promiseExec('stop', []);
 };
@@ -113,6 +146,13 @@ Connection.prototype.isReachable = function() {
   return this._promiseExec('isReachable', [this.config.host, this.config.port]);
 };
 
+// Resolves with the connection's traffic counters and a window of recent samples. On Android, also
+// includes the write statistics of the connection store as `storeWrites`, the queue statistics of
+// the worker threads as `scheduler`, and the auto-start timings as `autoStart`.
+Connection.prototype.getStats = function() {
+  return this._promiseExec('getStats', []);
+};
+
 Connection.prototype.onStatusChange = function(listener) {
   const onError = function(err) {
     console.warn('Failed to execute disconnect listener', err);
@@ -125,4 +165,5 @@ module.exports = {
   ConnectionStatus: ConnectionStatus,
   log: log,
   quitApplication: quitApplication,
+  splitTunneling: splitTunneling,
 };
@@ -36,6 +36,17 @@ declare namespace cordova.plugins.outline {
   // Quits the application. Only supported in macOS.
   function quitApplication(): void;
 
+  type SplitTunnelingMode = 'all'|'allowlist'|'denylist';
+
+  // Selects the applications whose traffic goes through the VPN, by package name: all of them,
+  // only the listed ones, or all but the listed ones. Applies immediately to an active
+  // connection and persists across restarts. Only supported in Android.
+  const splitTunneling: {
+    get(): Promise<{mode: SplitTunnelingMode, packages: string[]}>;
+
+    set(mode: SplitTunnelingMode, packages?: string[]): Promise<void>;
+  };
+
   // TODO: Use ShadowsocksConfig library's `Config` interface instead?
   interface ServerConfig {
     method?: string;
@@ -45,6 +56,52 @@ declare namespace cordova.plugins.outline {
     name?: string;
   }
 
+  // A server's entry in the ranking of |Connection.startFastest|, best first. |index| is the
+  // position of the server, 0 being the connection's configuration. |rttMs| is -1 if unknown.
+  interface ServerRanking {
+    index: number;
+    errorCode: number;
+    rttMs: number;
+    isComplete: boolean;
+  }
+
+  // Traffic counters of a connection at |timestampMs|. Bytes count payload to and from the
+  // server; packets count the IP packets read from and written to the VPN device.
+  interface TrafficSample {
+    timestampMs: number;
+    bytesUp: number;
+    bytesDown: number;
+    packetsUp: number;
+    packetsDown: number;
+    tcpSessions: number;
+    udpSessions: number;
+    connectFailures: number;
+  }
+
+  // Queue statistics of a priority lane of the worker threads.
+  interface SchedulerLaneStats {
+    queued: number;
+    maxQueued: number;
+    started: number;
+    expired: number;
+    cancelled: number;
+    averageWaitMs: number;
+    maxWaitMs: number;
+  }
+
+  // Result of |Connection.getStats|: the current counters, and a |window| of samples taken every
+  // second, oldest first. The remaining fields are only reported in Android; |autoStart| is only
+  // present if the connection was started automatically.
+  interface ConnectionStats extends TrafficSample {
+    window: TrafficSample[];
+    storeWrites?: {updates: number, writes: number, averageWriteMs: number, maxWriteMs: number};
+    scheduler?: {
+      threads: number,
+      lanes: {user: SchedulerLaneStats, background: SchedulerLaneStats},
+    };
+    autoStart?: {bootToTunnelMs: number, requestToTunnelMs: number};
+  }
+
   // Represents a VPN connection to a remote server.
   class Connection {
     // Creates a new instance with |serverConfig|.
@@ -62,6 +119,13 @@ declare namespace cordova.plugins.outline {
     // Rejects with an OutlinePluginError.
     start(): Promise<void>;
 
+    // Starts a connection to the fastest healthy server among |config| and |alternateConfigs|,
+    // and switches |config| to it. Servers are checked concurrently; the first healthy one wins,
+    // unless |waitForAll| is set, in which case the one with the lowest round-trip time wins.
+    // Resolves with the ranking of the servers. Rejects with an OutlinePluginError.
+    startFastest(alternateConfigs?: ServerConfig[], waitForAll?: boolean):
+        Promise<ServerRanking[]>;
+
     // Stops the connection and VPN service.
     stop(): Promise<void>;
 
@@ -72,6 +136,10 @@ declare namespace cordova.plugins.outline {
     // a socket to the IP and port specified in |config|.
     isReachable(): Promise<boolean>;
 
+    // Returns the traffic counters of the connection. Rejects with an OutlinePluginError if the
+    // connection is not active.
+    getStats(): Promise<ConnectionStats>;
+
     // Sets a listener, to be called when the VPN connection status changes.
     onStatusChange(listener: (status: ConnectionStatus) => void): void;
   }